@@ -1,26 +1,41 @@
 package nl.tue.id.oocsi.server;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.LongSummaryStatistics;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import nl.tue.id.oocsi.server.metrics.Metrics;
 import nl.tue.id.oocsi.server.model.Channel;
+import nl.tue.id.oocsi.server.model.ChannelAddress;
 import nl.tue.id.oocsi.server.model.Client;
+import nl.tue.id.oocsi.server.model.FunctionGroup;
 import nl.tue.id.oocsi.server.model.Server;
 import nl.tue.id.oocsi.server.protocol.Message;
 import nl.tue.id.oocsi.server.services.AbstractService;
+import nl.tue.id.oocsi.server.services.AsyncLogWriter;
 import nl.tue.id.oocsi.server.services.NIOSocketService;
 import nl.tue.id.oocsi.server.services.PresenceTracker;
+import nl.tue.id.oocsi.server.services.SlowConsumerPolicy;
+import nl.tue.id.oocsi.server.store.EventJournal;
+import nl.tue.id.oocsi.server.store.RetainedStore;
 
 /**
  * main server component for running OOCSI
@@ -37,7 +52,20 @@ public class OOCSIServer extends Server {
 	private int maxClients = 100;
 	public int port = 4444;
 	public boolean isLogging = false;
+	public int logSample = 1;
 	public String[] users = null;
+	public boolean relayMode = false;
+	public int ioThreads = Runtime.getRuntime().availableProcessors();
+	public int maxLineLength = NIOSocketService.DEFAULT_MAX_LINE_LENGTH;
+	public long maxQueueBytes = NIOSocketService.DEFAULT_MAX_QUEUE_BYTES;
+	public SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+	public long queueTTL = NIOSocketService.DEFAULT_QUEUE_TTL;
+	public boolean prometheus = false;
+	public String retainStoreFile = null;
+	public int historySize = 0;
+	public String[] historyChannels = {};
+	public String journalDirectory = null;
+	public long historyTTL = 0;
 
 	// default channels
 	public static final String SERVER = "SERVER";
@@ -47,9 +75,11 @@ public class OOCSIServer extends Server {
 	public static final String OOCSI_CLIENTS = "OOCSI_clients";
 	public static final String OOCSI_METRICS = "OOCSI_metrics";
 
+	// log buffer
+	private static final int LOG_BUFFER_SIZE = 65536;
+	private static final int LOG_BATCH_SIZE = 1024;
+
 	// metrics
-	private static int messageCount = 0;
-	private static int messageTotal = 0;
 	private static final long SERVER_START = System.currentTimeMillis();
 
 	// singleton server instance
@@ -58,6 +88,14 @@ public class OOCSIServer extends Server {
 	// services
 	AbstractService[] services;
 
+	// durable store for retained messages (optional)
+	private RetainedStore retainedStore;
+
+	// asynchronous log writer for server log, events and connections
+	private final AsyncLogWriter<LogEntry> logWriter = new AsyncLogWriter<LogEntry>(LOG_BUFFER_SIZE, LOG_BATCH_SIZE,
+	        this::writeLog);
+	private PrintStream logOut;
+
 	/**
 	 * initialize minimal server without any services running
 	 * 
@@ -144,12 +182,53 @@ public class OOCSIServer extends Server {
 		addChannel(new Channel(OOCSI_CONNECTIONS, PresenceTracker.NULL_LISTENER));
 		addChannel(new Channel(OOCSI_EVENTS, PresenceTracker.NULL_LISTENER));
 
+		// relay JSON payloads without parsing them
+		protocol.setRelayMode(relayMode);
+
+		// channel history is opt-in per channel
+		if (historySize > 0) {
+			if (historyChannels.length == 0) {
+				OOCSIServer.log("No history channels given (-historychannels), channel history is off");
+			} else {
+				OOCSIServer.log("Keeping the last " + historySize + " messages of channels "
+				        + String.join(", ", historyChannels));
+			}
+		}
+
+		// journal of all public messages
+		if (journalDirectory != null) {
+			journal = new EventJournal(Paths.get(journalDirectory));
+			OOCSIServer.log("Opened journal in " + journalDirectory + " with " + journal.segments() + " segments");
+		}
+
+		// recover retained messages
+		if (retainStoreFile != null) {
+			long start = System.currentTimeMillis();
+			retainedStore = new RetainedStore(Paths.get(retainStoreFile));
+			Runtime.getRuntime().addShutdownHook(new Thread(retainedStore::close));
+			OOCSIServer.log("Recovered " + retainedStore.size() + " retained messages from " + retainStoreFile + " in "
+			        + (System.currentTimeMillis() - start) + "ms");
+		}
+
 		// output status message
 		OOCSIServer.log("Started OOCSI server v" + OOCSIServer.VERSION + " for max. " + maxClients + " parallel clients"
 		        + (isLogging ? " and activated logging" : "") + ".");
 
 		// start TCP/socket server
-		NIOSocketService tcp = new NIOSocketService(this, port, users);
+		NIOSocketService tcp = new NIOSocketService(this, port, users, ioThreads);
+		tcp.setMaxLineLength(maxLineLength);
+		tcp.setOutboundQueueLimits(maxQueueBytes, slowConsumerPolicy, queueTTL);
+		tcp.setMetricsEndpoint(prometheus);
+
+		// server gauges for the metrics endpoint
+		Metrics.gauge("oocsi_uptime_seconds", "Time since server start.",
+		        () -> (System.currentTimeMillis() - SERVER_START) / 1000);
+		Metrics.gauge("oocsi_clients", "Connected clients.", () -> clients.size());
+		Metrics.gauge("oocsi_channels", "Open channels.", () -> subChannels.size());
+		Metrics.gauge("oocsi_delayed_messages", "Delayed messages pending delivery.", () -> delayedMessages.pending());
+		Metrics.gauge("oocsi_function_groups", "Shared channel function groups.", () -> FunctionGroup.count());
+		Metrics.gauge("oocsi_journal_dropped", "Messages not journaled because the journal buffer was full.",
+		        () -> journal != null ? journal.dropped() : 0);
 
 		// start services
 		startServices(new AbstractService[] { tcp });
@@ -157,8 +236,10 @@ public class OOCSIServer extends Server {
 		// start timer for posting channel and client information to the respective channels
 		Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(new StatusTimeTask(), 5, 1, TimeUnit.SECONDS);
 
-		// start timer for pinging clients that have not sent any data in the last 5 seconds
-		Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(new PingTask(), 5, 5, TimeUnit.SECONDS);
+		// start timer for pinging clients that have not sent any data in the last 5 seconds, closing stale clients and
+		// channels with expired retained messages
+		Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(new PingTask(), TICK_INTERVAL, TICK_INTERVAL,
+		        TimeUnit.MILLISECONDS);
 
 		// start timer for presence tracking refreshes
 		Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(() -> {
@@ -206,11 +287,11 @@ public class OOCSIServer extends Server {
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see nl.tue.id.oocsi.server.model.Channel#getChannel(java.lang.String)
+	 * @see nl.tue.id.oocsi.server.model.Channel#getChannel(nl.tue.id.oocsi.server.model.ChannelAddress)
 	 */
 	@Override
-	public Channel getChannel(String channelName) {
-		Channel c = super.getChannel(channelName);
+	public Channel getChannel(ChannelAddress address) {
+		Channel c = super.getChannel(address);
 
 
 		return c;
@@ -273,23 +354,37 @@ public class OOCSIServer extends Server {
 	}
 
 	/**
-	 * logging of a general server event (can be switched off with startup parameter '-logging')
+	 * logging of a general server event (can be switched off with startup parameter '-logging'); the message is
+	 * written asynchronously
 	 * 
 	 * @param message
 	 */
 	public static void log(String message) {
 		if (INSTANCE.isLogging) {
-			INSTANCE.internalLog(message);
+			INSTANCE.logWriter.offer(new LogEntry(message));
 		}
 	}
 
 	/**
-	 * internal logging function that can be overridden by a subclass
+	 * internal logging function that can be overridden by a subclass; called on the log writer thread
 	 * 
 	 * @param message
 	 */
 	protected void internalLog(String message) {
-		System.out.println(new Date() + " " + message);
+		if (logOut == null) {
+			logOut = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+		}
+		logOut.println(new Date() + " " + message);
+	}
+
+	/**
+	 * flush internal log after a batch of log entries has been written; called on the log writer thread
+	 * 
+	 */
+	protected void internalLogFlush() {
+		if (logOut != null) {
+			logOut.flush();
+		}
 	}
 
 	/**
@@ -303,7 +398,7 @@ public class OOCSIServer extends Server {
 	 */
 	public static void logEvent(String sender, String channel, String recipient, Map<String, Object> data,
 	        Date timestamp) {
-		logEvent(sender, channel, Collections.singletonList(recipient), data, timestamp);
+		logEvent(sender, channel, Collections.singletonList(recipient), () -> data, timestamp);
 	}
 
 	/**
@@ -317,49 +412,140 @@ public class OOCSIServer extends Server {
 	 */
 	public static void logEvent(String sender, String channel, List<String> recipients, Map<String, Object> data,
 	        Date timestamp) {
+		logEvent(sender, channel, recipients, () -> data, timestamp);
+	}
+
+	/**
+	 * logging of message event (can be switched off with startup parameter '-logging'); the message data is only
+	 * accessed if logging is on
+	 * 
+	 * @param channel
+	 * @param recipient
+	 * @param message
+	 */
+	public static void logEvent(String channel, String recipient, Message message) {
+		logEvent(channel, Collections.singletonList(recipient), message);
+	}
+
+	/**
+	 * logging of message event (can be switched off with startup parameter '-logging'); the message data is only
+	 * accessed if logging is on
+	 * 
+	 * @param channel
+	 * @param recipients
+	 * @param message
+	 */
+	public static void logEvent(String channel, List<String> recipients, Message message) {
+		logEvent(message.getSender(), channel, recipients, message::getData, message.getTimestamp());
+	}
+
+	/**
+	 * count message event for the metrics without logging it
+	 * 
+	 * @param sender
+	 * @return false if the event is not counted (internal events)
+	 */
+	public static boolean countEvent(String sender) {
+		if (SERVER.equals(sender) || OOCSI_EVENTS.equals(sender)) {
+			return false;
+		}
+
+		// log metrics
+		Metrics.EVENTS.increment();
+
+		return true;
+	}
+
+	/**
+	 * retrieve the server instance that provides the startup parameters, i.e., the first server of this JVM
+	 * 
+	 * @return
+	 */
+	public static OOCSIServer getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * retrieve the durable store for retained messages or null if not configured (startup parameter '-retainstore')
+	 * 
+	 * @return
+	 */
+	public static RetainedStore getRetainedStore() {
+		return INSTANCE != null ? INSTANCE.retainedStore : null;
+	}
+
+	/**
+	 * retrieve the number of messages kept per channel for replay (startup parameter '-history'), 0 if off
+	 * 
+	 * @return
+	 */
+	public static int getHistorySize() {
+		return INSTANCE != null ? INSTANCE.historySize : 0;
+	}
+
+	/**
+	 * retrieve the names of channels that keep a history (startup parameter '-historychannels'), which can be wildcard
+	 * channel names like "sensors/#"
+	 * 
+	 * @return
+	 */
+	public static String[] getHistoryChannels() {
+		return INSTANCE != null ? INSTANCE.historyChannels : new String[0];
+	}
+
+	/**
+	 * retrieve the maximum age of messages kept per channel in ms (startup parameter '-historyttl'), 0 if unlimited
+	 * 
+	 * @return
+	 */
+	public static long getHistoryTTL() {
+		return INSTANCE != null ? INSTANCE.historyTTL : 0;
+	}
+
+	/**
+	 * check whether event logging is on (startup parameter '-logging')
+	 * 
+	 * @return
+	 */
+	public static boolean isLogging() {
+		return INSTANCE != null && INSTANCE.isLogging;
+	}
+
+	/**
+	 * logging of event (can be switched off with startup parameter '-logging'); events are counted here, but only
+	 * every n-th event is logged (startup parameter '-logsample n'), asynchronously
+	 * 
+	 * @param sender
+	 * @param channel
+	 * @param recipients
+	 * @param data
+	 * @param timestamp
+	 */
+	private static void logEvent(String sender, String channel, List<String> recipients,
+	        Supplier<Map<String, Object>> data, Date timestamp) {
 
 		// don't ever send to these internal channels
 		recipients.remove(OOCSI_EVENTS);
 		recipients.remove(OOCSI_METRICS);
 		recipients.remove(OOCSI_CONNECTIONS);
 
-		if (SERVER.equals(sender) || OOCSI_EVENTS.equals(sender) || recipients.isEmpty()) {
+		if (recipients.isEmpty() || !countEvent(sender)) {
 			return;
 		}
 
-		// log metrics
-		messageCount++;
-		messageTotal++;
-
 		if (INSTANCE.isLogging) {
-			if (channel.length() == 0) {
-				log(OOCSI_EVENTS + " " + sender + " --> " + recipients);
-			} else {
-				log(OOCSI_EVENTS + " " + sender + " --( " + channel + " )--> " + recipients);
+			final int sample = INSTANCE.logSample;
+			if (sample > 1 && ThreadLocalRandom.current().nextInt(sample) != 0) {
+				return;
 			}
 
-			Channel logChannel = INSTANCE.getChannel(OOCSI_EVENTS);
-			if (logChannel != null) {
-
-				// strip secret data items starting with '_'
-				LongSummaryStatistics lss = data.entrySet().stream().filter(e -> !e.getKey().startsWith("_"))
-				        .collect(Collectors.summarizingLong(e -> e.getValue().toString().length()));
-
-				Map<String, Object> eventStats = new HashMap<>();
-				eventStats.put("size", lss.getSum());
-				eventStats.put("count", lss.getCount());
-
-				Message message = new Message(SERVER, OOCSI_EVENTS, timestamp, eventStats);
-				message.addData("PUB", sender);
-				message.addData("CHANNEL", channel);
-				message.addData("SUB", recipients);
-				logChannel.send(message);
-			}
+			INSTANCE.logWriter.offer(new LogEntry(sender, channel, recipients, data, timestamp));
 		}
 	}
 
 	/**
-	 * logging of connection/channel update (can be switched off with startup parameter '-logging')
+	 * logging of connection/channel update (can be switched off with startup parameter '-logging'); written
+	 * asynchronously
 	 * 
 	 * @param message
 	 */
@@ -370,15 +556,76 @@ public class OOCSIServer extends Server {
 		}
 
 		if (INSTANCE.isLogging) {
-			log(OOCSI_CONNECTIONS + " " + client + "->" + channel + " (" + operation + ")");
-
-			Channel logChannel = INSTANCE.getChannel(OOCSI_CONNECTIONS);
-			if (logChannel != null) {
-				Message message = new Message(SERVER, OOCSI_CONNECTIONS, timestamp);
-				message.addData("CLIENT", client);
-				message.addData("CHANNEL", channel);
-				message.addData("OP", operation);
-				logChannel.send(message);
+			INSTANCE.logWriter.offer(new LogEntry(client, channel, operation, timestamp));
+		}
+	}
+
+	/**
+	 * write a batch of log entries (on the log writer thread): log lines are written in one go, events from the same
+	 * sender on the same channel are coalesced into a single OOCSI_events message
+	 * 
+	 * @param batch
+	 */
+	private void writeLog(List<LogEntry> batch) {
+		long dropped = logWriter.takeDropped();
+		if (dropped > 0) {
+			internalLog("Log buffer full, dropped " + dropped + " log entries");
+		}
+
+		final Channel eventChannel = getChannel(OOCSI_EVENTS);
+		final boolean publishEvents = eventChannel != null && eventChannel.hasSubscribers();
+		Map<String, EventSummary> events = null;
+
+		for (LogEntry entry : batch) {
+			switch (entry.type) {
+			case LogEntry.EVENT:
+				if (entry.channel.length() == 0) {
+					internalLog(OOCSI_EVENTS + " " + entry.sender + " --> " + entry.recipients);
+				} else {
+					internalLog(OOCSI_EVENTS + " " + entry.sender + " --( " + entry.channel + " )--> " + entry.recipients);
+				}
+
+				if (publishEvents) {
+					if (events == null) {
+						events = new LinkedHashMap<String, EventSummary>();
+					}
+					events.computeIfAbsent(entry.sender + '\n' + entry.channel, k -> new EventSummary(entry)).add(entry);
+				}
+				break;
+			case LogEntry.CONNECTION:
+				internalLog(OOCSI_CONNECTIONS + " " + entry.sender + "->" + entry.channel + " (" + entry.text + ")");
+
+				Channel logChannel = getChannel(OOCSI_CONNECTIONS);
+				if (logChannel != null) {
+					Message message = new Message(SERVER, OOCSI_CONNECTIONS, entry.timestamp);
+					message.addData("CLIENT", entry.sender);
+					message.addData("CHANNEL", entry.channel);
+					message.addData("OP", entry.text);
+					logChannel.send(message);
+				}
+				break;
+			default:
+				internalLog(entry.text);
+			}
+		}
+		internalLogFlush();
+
+		// coalesced event notifications
+		if (events != null) {
+			for (EventSummary summary : events.values()) {
+				Map<String, Object> eventStats = new HashMap<>();
+				eventStats.put("size", summary.size);
+				eventStats.put("count", summary.count);
+				eventStats.put("events", summary.events);
+				if (logSample > 1) {
+					eventStats.put("sample", logSample);
+				}
+
+				Message message = new Message(SERVER, OOCSI_EVENTS, summary.timestamp, eventStats);
+				message.addData("PUB", summary.sender);
+				message.addData("CHANNEL", summary.channel);
+				message.addData("SUB", new ArrayList<String>(summary.recipients));
+				eventChannel.send(message);
 			}
 		}
 	}
@@ -394,8 +641,34 @@ public class OOCSIServer extends Server {
 				this.port = Integer.parseInt(args[i + 1]);
 			} else if (argument.equals("-clients") && args.length >= i + 2) {
 				this.maxClients = Integer.parseInt(args[i + 1]);
+			} else if (argument.equals("-iothreads") && args.length >= i + 2) {
+				this.ioThreads = Integer.parseInt(args[i + 1]);
+			} else if (argument.equals("-maxline") && args.length >= i + 2) {
+				this.maxLineLength = Integer.parseInt(args[i + 1]);
+			} else if (argument.equals("-queuebytes") && args.length >= i + 2) {
+				this.maxQueueBytes = Long.parseLong(args[i + 1]);
+			} else if (argument.equals("-queuepolicy") && args.length >= i + 2) {
+				this.slowConsumerPolicy = SlowConsumerPolicy.parse(args[i + 1]);
+			} else if (argument.equals("-queuettl") && args.length >= i + 2) {
+				this.queueTTL = Long.parseLong(args[i + 1]);
+			} else if (argument.equals("-prometheus")) {
+				this.prometheus = true;
+			} else if (argument.equals("-retainstore") && args.length >= i + 2) {
+				this.retainStoreFile = args[i + 1];
+			} else if (argument.equals("-history") && args.length >= i + 2) {
+				this.historySize = Math.max(0, Integer.parseInt(args[i + 1]));
+			} else if (argument.equals("-historychannels") && args.length >= i + 2) {
+				this.historyChannels = args[i + 1].split(",");
+			} else if (argument.equals("-historyttl") && args.length >= i + 2) {
+				this.historyTTL = Math.max(0, Long.parseLong(args[i + 1])) * 1000;
+			} else if (argument.equals("-journal") && args.length >= i + 2) {
+				this.journalDirectory = args[i + 1];
+			} else if (argument.equals("-relay")) {
+				this.relayMode = true;
 			} else if (argument.equals("-logging")) {
 				this.isLogging = true;
+			} else if (argument.equals("-logsample") && args.length >= i + 2) {
+				this.logSample = Math.max(1, Integer.parseInt(args[i + 1]));
 			} else if (argument.equals("-users") && args.length >= i + 2) {
 				String userList = args[i + 1];
 				if (userList.matches(
@@ -423,19 +696,11 @@ public class OOCSIServer extends Server {
 		}
 
 		/**
-		 * run the ping task
+		 * run the ping task: keep-alive ping-pong with socket clients and clean-up, only for expired timeouts
 		 * 
 		 */
 		public void statusTask() {
-			long start = System.currentTimeMillis();
-
-			// keep-alive ping-pong with socket clients
-			for (Client client : INSTANCE.getClients()) {
-				// only ping if last action is at least 5 seconds ago
-				if (client.lastAction() + 5000 < start) {
-					client.ping();
-				}
-			}
+			tick();
 		}
 	}
 
@@ -462,28 +727,17 @@ public class OOCSIServer extends Server {
 		public void statusTask() {
 			long start = System.currentTimeMillis();
 
-			// clean up first
-			closeStaleClients();
-			closeEmptyChannels();
-
-			// dispatch delayed messages
-			synchronized (delayedMessages) {
-				final Date now = new Date();
-				delayedMessages.values().removeIf(message -> {
-					if (message.getTimestamp().before(now)) {
-						Channel c = getChannel(message.getRecipient());
-						if (c != null && c.validate(message.getRecipient())) {
-							c.send(message);
-						}
-
-						// remove message from map
-						return true;
-					}
-					return false;
-				});
-			}
+			// update metrics rates
+			Metrics.tick();
 
-			long afterCleans = System.currentTimeMillis();
+			// report messages that could not be journaled
+			final EventJournal j = INSTANCE.journal;
+			if (j != null) {
+				long dropped = j.takeDropped();
+				if (dropped > 0) {
+					OOCSIServer.log("Journal buffer full, dropped " + dropped + " messages");
+				}
+			}
 
 			// check if we have a subscriber for public channel information
 			Channel channels = INSTANCE.getChannel(OOCSI_CHANNELS);
@@ -522,10 +776,29 @@ public class OOCSIServer extends Server {
 				message.addData("uptime", System.currentTimeMillis() - SERVER_START);
 
 				// total messages since startup
-				message.addData("messagesTotal", messageTotal);
+				message.addData("messagesTotal", Metrics.EVENTS.total());
 
 				// messages per second
-				message.addData("messages", messageCount);
+				message.addData("messages", Metrics.EVENTS.rate());
+
+				// bytes per second
+				message.addData("bytesIn", Metrics.BYTES_IN.rate());
+				message.addData("bytesOut", Metrics.BYTES_OUT.rate());
+
+				// bytes waiting in outbound queues
+				message.addData("queuedBytes", Metrics.queuedBytes());
+
+				// dispatch latency in microseconds and mean fan-out
+				message.addData("latency50", Metrics.DISPATCH_LATENCY.quantile(0.5));
+				message.addData("latency99", Metrics.DISPATCH_LATENCY.quantile(0.99));
+				message.addData("fanOut", Metrics.FAN_OUT.mean());
+
+				// messages per second per channel
+				message.addData("channelRates", Metrics.channelRates());
+
+				// delayed messages that are pending, in total and per channel
+				message.addData("delayed", delayedMessages.pending());
+				message.addData("delayedChannels", delayedMessages.pendingPerRecipient());
 
 				// channel count
 				message.addData("channels", INSTANCE.subChannels.size());
@@ -537,17 +810,89 @@ public class OOCSIServer extends Server {
 				metrics.send(message);
 			}
 
-			// reset message count
-			messageCount = 0;
-
 			// log out if status task took too long
 			if (System.currentTimeMillis() - start > 100) {
 				OOCSIServer.log("Status task took longer than 100ms: " + (System.currentTimeMillis() - start));
-				OOCSIServer.log("Also cleans took: " + (afterCleans - start));
-				OOCSIServer.log("Also 1st metrics took: " + (afterFirstMetrics - afterCleans));
+				OOCSIServer.log("Also 1st metrics took: " + (afterFirstMetrics - start));
 				OOCSIServer.log("Also 2nd metrics took: " + (System.currentTimeMillis() - afterFirstMetrics));
 			}
 		}
 	}
 
+	/**
+	 * entry of the asynchronous log: log line, message event or connection update
+	 * 
+	 */
+	static final class LogEntry {
+
+		static final int LINE = 0;
+		static final int EVENT = 1;
+		static final int CONNECTION = 2;
+
+		final int type;
+		final String text;
+		final String sender;
+		final String channel;
+		final List<String> recipients;
+		final Supplier<Map<String, Object>> data;
+		final Date timestamp;
+
+		LogEntry(String text) {
+			this(LINE, text, null, null, null, null, null);
+		}
+
+		LogEntry(String sender, String channel, List<String> recipients, Supplier<Map<String, Object>> data,
+		        Date timestamp) {
+			this(EVENT, null, sender, channel, recipients, data, timestamp);
+		}
+
+		LogEntry(String client, String channel, String operation, Date timestamp) {
+			this(CONNECTION, operation, client, channel, null, null, timestamp);
+		}
+
+		private LogEntry(int type, String text, String sender, String channel, List<String> recipients,
+		        Supplier<Map<String, Object>> data, Date timestamp) {
+			this.type = type;
+			this.text = text;
+			this.sender = sender;
+			this.channel = channel;
+			this.recipients = recipients;
+			this.data = data;
+			this.timestamp = timestamp;
+		}
+	}
+
+	/**
+	 * coalesced message events of one sender on one channel
+	 * 
+	 */
+	static final class EventSummary {
+
+		final String sender;
+		final String channel;
+		final Date timestamp;
+		final Set<String> recipients = new LinkedHashSet<String>();
+		long size = 0;
+		long count = 0;
+		int events = 0;
+
+		EventSummary(LogEntry entry) {
+			this.sender = entry.sender;
+			this.channel = entry.channel;
+			this.timestamp = entry.timestamp;
+		}
+
+		void add(LogEntry entry) {
+			events++;
+			recipients.addAll(entry.recipients);
+
+			// strip secret data items starting with '_'
+			for (Map.Entry<String, Object> e : entry.data.get().entrySet()) {
+				if (!e.getKey().startsWith("_")) {
+					size += e.getValue().toString().length();
+					count++;
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,74 @@
+package nl.tue.id.oocsi.server.metrics;
+
+/**
+ * traffic metrics of a single channel: published messages and bytes, and deliveries to subscribers
+ *
+ */
+public class ChannelMetrics {
+
+	final Rate messages = new Rate();
+	final Rate bytes = new Rate();
+	final Rate deliveries = new Rate();
+
+	private volatile boolean removed = false;
+	private int idleTicks = 0;
+
+	/**
+	 * count a message published on the channel with its size in bytes (0 if unknown) and number of recipients
+	 * 
+	 * @param size
+	 * @param recipients
+	 */
+	public void published(int size, int recipients) {
+		messages.increment();
+		if (size > 0) {
+			bytes.add(size);
+		}
+		if (recipients > 0) {
+			deliveries.add(recipients);
+		}
+	}
+
+	/**
+	 * published messages per second
+	 * 
+	 * @return
+	 */
+	public long messageRate() {
+		return messages.rate();
+	}
+
+	/**
+	 * published bytes per second
+	 * 
+	 * @return
+	 */
+	public long byteRate() {
+		return bytes.rate();
+	}
+
+	/**
+	 * check whether these metrics were removed from the registry (after being idle for too long)
+	 * 
+	 * @return
+	 */
+	public boolean isRemoved() {
+		return removed;
+	}
+
+	/**
+	 * update rates, returns the number of ticks without traffic
+	 * 
+	 * @return
+	 */
+	int tick() {
+		long traffic = messages.tick();
+		bytes.tick();
+		deliveries.tick();
+		return idleTicks = traffic > 0 ? 0 : idleTicks + 1;
+	}
+
+	void remove() {
+		removed = true;
+	}
+}
@@ -0,0 +1,71 @@
+package nl.tue.id.oocsi.server.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * traffic metrics of a single client: received and sent frames and bytes, and the state of its outbound queue
+ *
+ */
+public class ClientMetrics {
+
+	private static final LongSupplier NONE = () -> 0;
+
+	final Rate received = new Rate();
+	final Rate receivedBytes = new Rate();
+	final Rate sent = new Rate();
+	final Rate sentBytes = new Rate();
+
+	final LongSupplier queuedFrames;
+	final LongSupplier queuedBytes;
+	final LongSupplier droppedFrames;
+
+	/**
+	 * create client metrics without outbound queue
+	 * 
+	 */
+	public ClientMetrics() {
+		this(NONE, NONE, NONE);
+	}
+
+	/**
+	 * create client metrics that read the outbound queue state from the given suppliers
+	 * 
+	 * @param queuedFrames
+	 * @param queuedBytes
+	 * @param droppedFrames
+	 */
+	public ClientMetrics(LongSupplier queuedFrames, LongSupplier queuedBytes, LongSupplier droppedFrames) {
+		this.queuedFrames = queuedFrames;
+		this.queuedBytes = queuedBytes;
+		this.droppedFrames = droppedFrames;
+	}
+
+	/**
+	 * count a frame received from the client
+	 * 
+	 * @param size
+	 */
+	public void received(int size) {
+		received.increment();
+		receivedBytes.add(size);
+		Metrics.BYTES_IN.add(size);
+	}
+
+	/**
+	 * count a frame sent (queued) to the client
+	 * 
+	 * @param size
+	 */
+	public void sent(int size) {
+		sent.increment();
+		sentBytes.add(size);
+		Metrics.BYTES_OUT.add(size);
+	}
+
+	void tick() {
+		received.tick();
+		receivedBytes.tick();
+		sent.tick();
+		sentBytes.tick();
+	}
+}
@@ -0,0 +1,121 @@
+package nl.tue.id.oocsi.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * fixed-memory histogram for non-negative values (e.g., latencies in microseconds) with log-linear buckets: values
+ * below 8 are counted exactly, larger values in 8 buckets per power of two, so quantiles are accurate to 12.5%
+ *
+ */
+public class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKETS = (MAX_EXPONENT - 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * record a value, negative values are recorded as 0
+	 * 
+	 * @param value
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+	}
+
+	/**
+	 * number of recorded values
+	 * 
+	 * @return
+	 */
+	public long count() {
+		return count.sum();
+	}
+
+	/**
+	 * sum of recorded values
+	 * 
+	 * @return
+	 */
+	public long sum() {
+		return sum.sum();
+	}
+
+	/**
+	 * mean of recorded values
+	 * 
+	 * @return
+	 */
+	public double mean() {
+		long n = count.sum();
+		return n == 0 ? 0 : sum.sum() / (double) n;
+	}
+
+	/**
+	 * estimate the given quantile (0 to 1) as the upper bound of the bucket that contains it
+	 * 
+	 * @param quantile
+	 * @return
+	 */
+	public long quantile(double quantile) {
+		long n = count.sum();
+		if (n == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return upperBound(i);
+			}
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	/**
+	 * bucket of a value
+	 * 
+	 * @param value
+	 * @return
+	 */
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS
+		        + (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * largest value of a bucket
+	 * 
+	 * @param index
+	 * @return
+	 */
+	static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int subBucket = index % SUB_BUCKETS;
+		return ((SUB_BUCKETS + subBucket + 1L) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}
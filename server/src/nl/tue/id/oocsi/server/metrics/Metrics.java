@@ -0,0 +1,257 @@
+package nl.tue.id.oocsi.server.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * server-wide metrics registry: global counters and histograms, traffic per channel and per client, and additional
+ * gauges; published as OOCSI_metrics messages and in the Prometheus text format
+ *
+ */
+public final class Metrics {
+
+	/**
+	 * message events (messages with at least one public recipient)
+	 */
+	public static final Rate EVENTS = new Rate();
+	/**
+	 * bytes received from all clients
+	 */
+	public static final Rate BYTES_IN = new Rate();
+	/**
+	 * bytes sent to all clients
+	 */
+	public static final Rate BYTES_OUT = new Rate();
+	/**
+	 * time from receiving a message to handing it to all recipients in microseconds
+	 */
+	public static final Histogram DISPATCH_LATENCY = new Histogram();
+	/**
+	 * number of recipients per message sent on a channel
+	 */
+	public static final Histogram FAN_OUT = new Histogram();
+
+	// bounded number of channel series, channels are removed after being idle
+	private static final int MAX_CHANNELS = 10000;
+	private static final int MAX_IDLE_TICKS = 60;
+
+	private static final Map<String, ChannelMetrics> CHANNELS = new ConcurrentHashMap<String, ChannelMetrics>();
+	private static final Map<String, ClientMetrics> CLIENTS = new ConcurrentHashMap<String, ClientMetrics>();
+	private static final Map<String, Gauge> GAUGES = new ConcurrentHashMap<String, Gauge>();
+
+	// not exported, used when there are too many channels
+	private static final ChannelMetrics OVERFLOW = new ChannelMetrics();
+
+	private Metrics() {
+	}
+
+	/**
+	 * retrieve the metrics of a (public) channel
+	 *
+	 * @param channel
+	 * @return
+	 */
+	public static ChannelMetrics channel(String channel) {
+		ChannelMetrics metrics = CHANNELS.get(channel);
+		if (metrics == null) {
+			if (CHANNELS.size() >= MAX_CHANNELS) {
+				return OVERFLOW;
+			}
+			metrics = CHANNELS.computeIfAbsent(channel, k -> new ChannelMetrics());
+		}
+		return metrics;
+	}
+
+	/**
+	 * register the metrics of a connected client
+	 *
+	 * @param client
+	 * @param metrics
+	 */
+	public static void register(String client, ClientMetrics metrics) {
+		CLIENTS.put(client, metrics);
+	}
+
+	/**
+	 * remove the metrics of a client, if they are still registered
+	 *
+	 * @param client
+	 * @param metrics
+	 */
+	public static void unregister(String client, ClientMetrics metrics) {
+		CLIENTS.remove(client, metrics);
+	}
+
+	/**
+	 * register an additional gauge
+	 *
+	 * @param name
+	 * @param help
+	 * @param value
+	 */
+	public static void gauge(String name, String help, LongSupplier value) {
+		GAUGES.put(name, new Gauge(help, value));
+	}
+
+	/**
+	 * update all rates, to be called once per second; idle channels are removed
+	 *
+	 */
+	public static void tick() {
+		EVENTS.tick();
+		BYTES_IN.tick();
+		BYTES_OUT.tick();
+
+		CHANNELS.entrySet().removeIf(e -> {
+			if (e.getValue().tick() > MAX_IDLE_TICKS) {
+				e.getValue().remove();
+				return true;
+			}
+			return false;
+		});
+		OVERFLOW.tick();
+
+		for (ClientMetrics client : CLIENTS.values()) {
+			client.tick();
+		}
+	}
+
+	/**
+	 * messages per second of all channels with traffic in the last second
+	 *
+	 * @return
+	 */
+	public static Map<String, Object> channelRates() {
+		Map<String, Object> rates = new TreeMap<String, Object>();
+		CHANNELS.forEach((channel, metrics) -> {
+			if (metrics.messageRate() > 0) {
+				rates.put(channel, metrics.messageRate());
+			}
+		});
+		return rates;
+	}
+
+	/**
+	 * total number of bytes in the outbound queues of all clients
+	 *
+	 * @return
+	 */
+	public static long queuedBytes() {
+		long queued = 0;
+		for (ClientMetrics client : CLIENTS.values()) {
+			queued += client.queuedBytes.getAsLong();
+		}
+		return queued;
+	}
+
+	/**
+	 * render all metrics in the Prometheus text format (version 0.0.4)
+	 *
+	 * @return
+	 */
+	public static String toPrometheus() {
+		StringBuilder sb = new StringBuilder(4096);
+
+		// additional gauges
+		new TreeMap<String, Gauge>(GAUGES).forEach((name, gauge) -> {
+			header(sb, name, gauge.help, "gauge");
+			sample(sb, name, null, null, gauge.value.getAsLong());
+		});
+
+		// global counters and histograms
+		header(sb, "oocsi_messages_total", "Messages sent to at least one public recipient.", "counter");
+		sample(sb, "oocsi_messages_total", null, null, EVENTS.total());
+		header(sb, "oocsi_received_bytes_total", "Bytes received from clients.", "counter");
+		sample(sb, "oocsi_received_bytes_total", null, null, BYTES_IN.total());
+		header(sb, "oocsi_sent_bytes_total", "Bytes sent to clients.", "counter");
+		sample(sb, "oocsi_sent_bytes_total", null, null, BYTES_OUT.total());
+		summary(sb, "oocsi_dispatch_latency_microseconds", "Time from receiving to dispatching a message.",
+		        DISPATCH_LATENCY);
+		summary(sb, "oocsi_fanout_recipients", "Recipients per message sent on a channel.", FAN_OUT);
+
+		// channels
+		Map<String, ChannelMetrics> channels = new TreeMap<String, ChannelMetrics>(CHANNELS);
+		header(sb, "oocsi_channel_messages_total", "Messages published per channel.", "counter");
+		channels.forEach((name, m) -> sample(sb, "oocsi_channel_messages_total", "channel", name, m.messages.total()));
+		header(sb, "oocsi_channel_bytes_total", "Bytes published per channel.", "counter");
+		channels.forEach((name, m) -> sample(sb, "oocsi_channel_bytes_total", "channel", name, m.bytes.total()));
+		header(sb, "oocsi_channel_deliveries_total", "Messages delivered to subscribers per channel.", "counter");
+		channels.forEach(
+		        (name, m) -> sample(sb, "oocsi_channel_deliveries_total", "channel", name, m.deliveries.total()));
+
+		// clients
+		Map<String, ClientMetrics> clients = new TreeMap<String, ClientMetrics>(CLIENTS);
+		header(sb, "oocsi_client_received_messages_total", "Lines received per client.", "counter");
+		clients.forEach((name, m) -> sample(sb, "oocsi_client_received_messages_total", "client", name,
+		        m.received.total()));
+		header(sb, "oocsi_client_received_bytes_total", "Bytes received per client.", "counter");
+		clients.forEach((name, m) -> sample(sb, "oocsi_client_received_bytes_total", "client", name,
+		        m.receivedBytes.total()));
+		header(sb, "oocsi_client_sent_messages_total", "Frames sent per client.", "counter");
+		clients.forEach(
+		        (name, m) -> sample(sb, "oocsi_client_sent_messages_total", "client", name, m.sent.total()));
+		header(sb, "oocsi_client_sent_bytes_total", "Bytes sent per client.", "counter");
+		clients.forEach(
+		        (name, m) -> sample(sb, "oocsi_client_sent_bytes_total", "client", name, m.sentBytes.total()));
+		header(sb, "oocsi_client_queued_frames", "Frames in the outbound queue per client.", "gauge");
+		clients.forEach((name, m) -> sample(sb, "oocsi_client_queued_frames", "client", name,
+		        m.queuedFrames.getAsLong()));
+		header(sb, "oocsi_client_queued_bytes", "Bytes in the outbound queue per client.", "gauge");
+		clients.forEach(
+		        (name, m) -> sample(sb, "oocsi_client_queued_bytes", "client", name, m.queuedBytes.getAsLong()));
+		header(sb, "oocsi_client_dropped_frames_total", "Frames dropped for slow clients.", "counter");
+		clients.forEach((name, m) -> sample(sb, "oocsi_client_dropped_frames_total", "client", name,
+		        m.droppedFrames.getAsLong()));
+
+		return sb.toString();
+	}
+
+	private static void header(StringBuilder sb, String name, String help, String type) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void summary(StringBuilder sb, String name, String help, Histogram histogram) {
+		header(sb, name, help, "summary");
+		for (String quantile : new String[] { "0.5", "0.9", "0.99" }) {
+			sample(sb, name, "quantile", quantile, histogram.quantile(Double.parseDouble(quantile)));
+		}
+		sample(sb, name + "_sum", null, null, histogram.sum());
+		sample(sb, name + "_count", null, null, histogram.count());
+	}
+
+	private static void sample(StringBuilder sb, String name, String label, String labelValue, long value) {
+		sb.append(name);
+		if (label != null) {
+			sb.append('{').append(label).append("=\"");
+			for (int i = 0; i < labelValue.length(); i++) {
+				char c = labelValue.charAt(i);
+				if (c == '\\' || c == '"') {
+					sb.append('\\').append(c);
+				} else if (c == '\n') {
+					sb.append("\\n");
+				} else {
+					sb.append(c);
+				}
+			}
+			sb.append("\"}");
+		}
+		sb.append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * additional gauge with help text
+	 *
+	 */
+	private static final class Gauge {
+		final String help;
+		final LongSupplier value;
+
+		Gauge(String help, LongSupplier value) {
+			this.help = help;
+			this.value = value;
+		}
+	}
+}
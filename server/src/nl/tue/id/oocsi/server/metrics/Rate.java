@@ -0,0 +1,61 @@
+package nl.tue.id.oocsi.server.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * striped event counter with a total and a rate per tick (the metrics are ticked once per second)
+ *
+ */
+public class Rate {
+
+	private final LongAdder total = new LongAdder();
+	private volatile long lastTotal = 0;
+	private volatile long rate = 0;
+
+	/**
+	 * count one event
+	 * 
+	 */
+	public void increment() {
+		total.increment();
+	}
+
+	/**
+	 * count <code>n</code> events (or bytes)
+	 * 
+	 * @param n
+	 */
+	public void add(long n) {
+		total.add(n);
+	}
+
+	/**
+	 * total count since start
+	 * 
+	 * @return
+	 */
+	public long total() {
+		return total.sum();
+	}
+
+	/**
+	 * count during the last tick (per second)
+	 * 
+	 * @return
+	 */
+	public long rate() {
+		return rate;
+	}
+
+	/**
+	 * compute the rate for the last tick
+	 * 
+	 * @return rate of the last tick
+	 */
+	long tick() {
+		long current = total.sum();
+		rate = current - lastTotal;
+		lastTotal = current;
+		return rate;
+	}
+}
@@ -1,15 +1,19 @@
 package nl.tue.id.oocsi.server.model;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 import nl.tue.id.oocsi.server.OOCSIServer;
+import nl.tue.id.oocsi.server.metrics.ChannelMetrics;
+import nl.tue.id.oocsi.server.metrics.Metrics;
 import nl.tue.id.oocsi.server.protocol.Message;
+import nl.tue.id.oocsi.server.store.RetainedStore;
 
 /**
  * data structure for channel
@@ -24,11 +28,32 @@ public class Channel implements IChannel {
 	protected final Map<String, Channel> subChannels = new ConcurrentHashMap<String, Channel>();
 	private final long creation = System.currentTimeMillis();
 
-	protected String token;
+	// snapshot of subChannels for sending, rebuilt whenever subChannels change
+	private static final Channel[] NO_SUBSCRIBERS = new Channel[0];
+	private volatile Channel[] subscribers = NO_SUBSCRIBERS;
+
+	// function groups of subscriptions with functions by normalized function string, created on first use; each group
+	// evaluates messages once for all of its members
+	private static final FunctionGroup[] NO_GROUPS = new FunctionGroup[0];
+	private Map<String, FunctionGroup> functionGroups;
+	private volatile FunctionGroup[] groups = NO_GROUPS;
+
+	protected final String token;
+	protected final ChannelAddress address;
 	protected Message retainedMessage;
 
+	// traffic metrics of public channels, fetched on first use
+	private ChannelMetrics metrics;
+
+	// last messages for replay to new subscribers, created on first use
+	private volatile ChannelHistory history;
+
+	// whether this channel matches the history channels (startup parameter '-historychannels'), checked on first use
+	private Boolean keepHistory;
+
 	public Channel(String token, ChangeListener changeListener) {
 		this.token = token;
+		this.address = ChannelAddress.of(token);
 		this.presence = changeListener;
 	}
 
@@ -40,7 +65,7 @@ public class Channel implements IChannel {
 	 */
 	@Override
 	public String getName() {
-		return token.replaceFirst(":.*", "");
+		return address.getName();
 	}
 
 	/*
@@ -50,7 +75,7 @@ public class Channel implements IChannel {
 	 */
 	@Override
 	public String toString() {
-		return token.replaceFirst(":.*", "");
+		return address.getName();
 	}
 
 	/**
@@ -60,7 +85,7 @@ public class Channel implements IChannel {
 	 */
 	@Override
 	public boolean isPrivate() {
-		return token.contains(":") || token.contains("/?");
+		return address.isPrivate();
 	}
 
 	/**
@@ -92,32 +117,79 @@ public class Channel implements IChannel {
 	@Override
 	public boolean send(Message message) {
 		// keep track of successful sends
-		AtomicBoolean sendSuccessful = new AtomicBoolean(false);
-		List<String> scs = subChannels.values().stream().filter(subChannel -> {
+		int delivered = 0;
+		int publicRecipients = 0;
+		List<String> scs = null;
+
+		final String sender = message.getSender();
+		final Channel[] recipients = subscribers;
+		for (int i = 0; i < recipients.length; i++) {
+			final Channel subChannel = recipients[i];
+
 			// no echo in channels; use ECHO channel for that
-			return !message.getSender().equals(subChannel.getName());
-		}).map(subChannel -> {
-			// send event
-			if (subChannel.send(message)) {
-				sendSuccessful.compareAndExchange(false, true);
-				return subChannel;
-			} else {
-				return null;
+			if (sender.equals(subChannel.getName()) || !subChannel.send(message)) {
+				continue;
 			}
-		}).filter(sc -> sc != null && !sc.isPrivate()).map(sc -> sc.getName()).collect(Collectors.toList());
+
+			delivered++;
+			if (!subChannel.isPrivate()) {
+				publicRecipients++;
+
+				// recipient names are only needed for event logging
+				if (OOCSIServer.isLogging()) {
+					if (scs == null) {
+						scs = new ArrayList<String>();
+					}
+					scs.add(subChannel.getName());
+				}
+			}
+		}
+
+		// function subscriptions are delivered by their groups
+		final FunctionGroup[] fgs = groups;
+		for (int i = 0; i < fgs.length; i++) {
+			if (scs == null && OOCSIServer.isLogging()) {
+				scs = new ArrayList<String>();
+			}
+			final int members = fgs[i].send(message, scs);
+			delivered += members;
+			publicRecipients += members;
+		}
 
 		// log message to all subChannels in one go
-		if (!scs.isEmpty()) {
-			OOCSIServer.logEvent(message.getSender(), message.getRecipient(), scs, message.data,
-			        message.getTimestamp());
+		if (scs != null && !scs.isEmpty()) {
+			OOCSIServer.logEvent(message.getRecipient(), scs, message);
+		} else if (publicRecipients > 0) {
+			OOCSIServer.countEvent(sender);
+		}
+
+		// channel metrics
+		Metrics.FAN_OUT.record(delivered);
+		if (!address.isPrivate()) {
+			ChannelMetrics m = metrics;
+			if (m == null || m.isRemoved()) {
+				metrics = m = Metrics.channel(getName());
+			}
+			m.published(message.getSize(), delivered);
+		}
+
+		final boolean sendSuccessful = delivered > 0;
+
+		// wildcard channels don't retain messages of the matched channels
+		if (address.isWildcard()) {
+			return sendSuccessful;
 		}
 
 		// new message erases always retained message
 		retainedMessage = null;
+		final RetainedStore store = address.isPrivate() ? null : OOCSIServer.getRetainedStore();
+		if (store != null && store.contains(getName())) {
+			store.remove(getName());
+		}
 
 		// check for retained message flag and store message
-		if (message.data.containsKey(Message.RETAIN_MESSAGE)) {
-			Object retainTimeoutRaw = message.data.getOrDefault(Message.RETAIN_MESSAGE, "0");
+		Object retainTimeoutRaw = message.get(Message.RETAIN_MESSAGE);
+		if (retainTimeoutRaw != null) {
 			try {
 				// retrieve timeout
 				long timeoutSec = Long.parseLong(retainTimeoutRaw.toString());
@@ -126,13 +198,70 @@ public class Channel implements IChannel {
 				// set timeout and store retained message
 				message.validUntil = new Date(System.currentTimeMillis() + (timeoutSec * 1000));
 				retainedMessage = message;
+				if (store != null) {
+					store.put(getName(), message);
+				}
 				OOCSIServer.log("Retained message stored for channel '" + this.token + "' for " + timeoutSec + "secs.");
 			} catch (Exception e) {
 				// do nothing
 			}
 		}
 
-		return sendSuccessful.getPlain();
+		// keep message in channel history
+		final int historySize = OOCSIServer.getHistorySize();
+		if (historySize > 0 && keepsHistory()) {
+			ChannelHistory h = history;
+			if (h == null) {
+				synchronized (this) {
+					h = history;
+					if (h == null) {
+						history = h = new ChannelHistory(historySize, OOCSIServer.getHistoryTTL());
+					}
+				}
+			}
+			h.add(message);
+		}
+
+		return sendSuccessful;
+	}
+
+	/**
+	 * check whether messages to this channel are kept for replay, i.e., whether the channel name matches one of the
+	 * history channels (names or wildcard channel names)
+	 * 
+	 * @return
+	 */
+	private boolean keepsHistory() {
+		Boolean keep = keepHistory;
+		if (keep == null) {
+			keep = false;
+			for (String pattern : OOCSIServer.getHistoryChannels()) {
+				if (TopicTrie.matches(pattern, getName())) {
+					keep = true;
+					break;
+				}
+			}
+			keepHistory = keep;
+		}
+		return keep;
+	}
+
+	/**
+	 * retrieve the history of this channel or null if there is none
+	 * 
+	 * @return
+	 */
+	public ChannelHistory getHistory() {
+		return history;
+	}
+
+	/**
+	 * check whether this channel has any subscribers
+	 * 
+	 * @return
+	 */
+	public boolean hasSubscribers() {
+		return subscribers.length > 0;
 	}
 
 	/**
@@ -142,8 +271,18 @@ public class Channel implements IChannel {
 	 * @return
 	 */
 	public Channel getChannel(String channelName) {
-		Channel channel = subChannels.get(channelName.replaceFirst(":.*", ""));
-		return channel != null && channel.accept(channelName) ? channel : null;
+		return getChannel(ChannelAddress.of(channelName));
+	}
+
+	/**
+	 * retrieve sub-channel if existing
+	 * 
+	 * @param address
+	 * @return
+	 */
+	public Channel getChannel(ChannelAddress address) {
+		Channel channel = subChannels.get(address.getName());
+		return channel != null && channel.accept(address.getToken()) ? channel : null;
 	}
 
 	/**
@@ -153,7 +292,7 @@ public class Channel implements IChannel {
 	 * @return
 	 */
 	public static boolean isPrivate(String channelName) {
-		return !channelName.equals(channelName.replaceFirst(":.*", ""));
+		return ChannelAddress.of(channelName).hasSecret();
 	}
 
 	/**
@@ -186,6 +325,10 @@ public class Channel implements IChannel {
 		// check whether a channel is added recursively
 		if (!getName().equals(newChannel.getName()) && !subChannels.containsKey(newChannel.getName())) {
 			subChannels.put(newChannel.getName(), newChannel);
+			updateSubscribers();
+			if (newChannel instanceof Client) {
+				((Client) newChannel).subscribed(this);
+			}
 
 			// update presence information only for public clients
 			if (!newChannel.isPrivate()) {
@@ -199,8 +342,14 @@ public class Channel implements IChannel {
 				OOCSIServer.logConnection(getName(), newChannel.getName(), "added channel", new Date());
 			}
 
-			// send out the retained message to new client
-			final Message retainedMessageCopy = retainedMessage;
+			// send out the retained message to new client, possibly recovered from the retained store
+			Message retainedMessageCopy = retainedMessage;
+			if (retainedMessageCopy == null && !isPrivate()) {
+				final RetainedStore store = OOCSIServer.getRetainedStore();
+				if (store != null) {
+					retainedMessage = retainedMessageCopy = store.get(getName());
+				}
+			}
 			if (retainedMessageCopy != null && retainedMessageCopy.isValid()) {
 				newChannel.send(retainedMessageCopy);
 			} else {
@@ -226,7 +375,12 @@ public class Channel implements IChannel {
 	 * @param recursive
 	 */
 	public void removeChannel(Channel channel, boolean recursive) {
-		if (subChannels.remove(channel.getName()) != null) {
+		final Channel removed = subChannels.remove(channel.getName());
+		if (removed != null) {
+			updateSubscribers();
+			if (removed instanceof Client) {
+				((Client) removed).unsubscribed(this);
+			}
 
 			// update presence information once for public clients
 			if (!channel.isPrivate()) {
@@ -249,29 +403,51 @@ public class Channel implements IChannel {
 	}
 
 	/**
-	 * close unused channels recursively
+	 * rebuild the snapshot of subChannels that is used for sending
 	 * 
 	 */
-	protected void closeEmptyChannels() {
-		for (Channel subChannel : subChannels.values()) {
-			if (subChannel != this) {
-				subChannel.closeEmptyChannels();
-			}
+	protected synchronized void updateSubscribers() {
+		// function subscriptions receive messages through the function groups
+		subscribers = subChannels.isEmpty() ? NO_SUBSCRIBERS
+		        : subChannels.values().stream().filter(c -> !(c instanceof FunctionClient)).toArray(Channel[]::new);
+	}
 
-			// it is empty now, remove sub channel
-			if (!(subChannel instanceof Client) && subChannel.subChannels.size() == 0
-			        && (subChannel.retainedMessage == null || !subChannel.retainedMessage.isValid())) {
-				// update presence information once for public clients
-				if (!subChannel.isPrivate()) {
-					// signal to presence tracker that a subchannel "channel" leaves "this" channel
-					presence.leave(this, subChannel);
-					subChannels.remove(subChannel.getName());
-
-					OOCSIServer.logConnection(getName(), subChannel.getName(), "closed empty channel", new Date());
-				} else {
-					subChannels.remove(subChannel.getName());
-				}
-			}
+	/**
+	 * add <code>member</code> to the function group of this channel for <code>functions</code>, creating the group if
+	 * necessary
+	 * 
+	 * @param member
+	 * @param functions
+	 * @return
+	 */
+	synchronized FunctionGroup joinFunctions(Client member, String functions) {
+		if (functionGroups == null) {
+			functionGroups = new HashMap<String, FunctionGroup>();
+		}
+
+		final String normalized = FunctionGroup.normalize(functions);
+		FunctionGroup group = functionGroups.get(normalized);
+		if (group == null) {
+			group = FunctionGroup.share(normalized);
+			functionGroups.put(normalized, group);
+			groups = functionGroups.values().toArray(NO_GROUPS);
+		}
+		group.add(member, functions);
+		return group;
+	}
+
+	/**
+	 * remove <code>member</code> from a function group of this channel; the group is discarded when its last member
+	 * leaves
+	 * 
+	 * @param member
+	 * @param group
+	 */
+	synchronized void leaveFunctions(Client member, FunctionGroup group) {
+		if (functionGroups != null && functionGroups.get(group.getFunctions()) == group && group.remove(member) == 0) {
+			functionGroups.remove(group.getFunctions());
+			groups = functionGroups.values().toArray(NO_GROUPS);
+			group.close();
 		}
 	}
 
@@ -0,0 +1,247 @@
+package nl.tue.id.oocsi.server.model;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * parsed channel token: channel name, secret (private channels), function specification (filter and transform
+ * subscriptions), presence subscription, wildcards and channel listing ("/?"); tokens are parsed once and cached
+ *
+ */
+public final class ChannelAddress {
+
+	// bounded cache of parsed tokens
+	private static final int MAX_CACHED_ADDRESSES = 8192;
+	private static final Map<String, ChannelAddress> ADDRESSES = new ConcurrentHashMap<String, ChannelAddress>();
+
+	private static final String PRESENCE_PREFIX = "presence(";
+	private static final String LISTING_SUFFIX = "/?";
+
+	private final String token;
+	private final String name;
+	private final String secret;
+	private final String functionChannel;
+	private final String functions;
+	private final String presenceChannel;
+	private final boolean brokenFunctions;
+	private final boolean listing;
+	private final boolean wildcard;
+
+	private ChannelAddress(String token) {
+		this.token = token;
+
+		// secret part of private channels: "name:secret"
+		int colon = token.indexOf(':');
+		this.name = colon > -1 ? token.substring(0, colon) : token;
+		this.secret = colon > -1 ? token.substring(colon + 1) : null;
+		this.listing = token.contains(LISTING_SUFFIX);
+		this.wildcard = TopicTrie.isWildcard(name);
+
+		final String trimmed = name.trim();
+		this.presenceChannel = parsePresence(trimmed);
+
+		// functions: "name[function;function...]"
+		String fChannel = null, fSpec = null;
+		int open = trimmed.indexOf('[');
+		int close = trimmed.lastIndexOf(']');
+		if (open > -1 && close > open) {
+			int start = open;
+			while (start > 0 && isFunctionChannelChar(trimmed.charAt(start - 1))) {
+				start--;
+			}
+			if (start < open) {
+				fChannel = trimmed.substring(start, open);
+				fSpec = trimmed.substring(open + 1, close);
+			}
+		}
+		this.functionChannel = fChannel;
+		this.functions = fSpec;
+		this.brokenFunctions = fSpec == null && open > -1;
+	}
+
+	/**
+	 * retrieve the parsed address of a channel token
+	 *
+	 * @param token
+	 * @return
+	 */
+	public static ChannelAddress of(String token) {
+		ChannelAddress address = ADDRESSES.get(token);
+		if (address == null) {
+			address = new ChannelAddress(token);
+			if (ADDRESSES.size() < MAX_CACHED_ADDRESSES) {
+				ADDRESSES.putIfAbsent(token, address);
+			}
+		}
+		return address;
+	}
+
+	/**
+	 * full token, including the secret part
+	 *
+	 * @return
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * channel name without the secret part
+	 *
+	 * @return
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * secret part of a private channel token or null
+	 *
+	 * @return
+	 */
+	public String getSecret() {
+		return secret;
+	}
+
+	/**
+	 * check whether the token has a secret part
+	 *
+	 * @return
+	 */
+	public boolean hasSecret() {
+		return secret != null;
+	}
+
+	/**
+	 * check whether this is a private channel (with secret part or a channel listing)
+	 *
+	 * @return
+	 */
+	public boolean isPrivate() {
+		return secret != null || listing;
+	}
+
+	/**
+	 * check whether this is a channel listing ("channel/?")
+	 *
+	 * @return
+	 */
+	public boolean isListing() {
+		return listing;
+	}
+
+	/**
+	 * check whether the channel name contains wildcard levels ("building/+/temperature" or "building/#")
+	 *
+	 * @return
+	 */
+	public boolean isWildcard() {
+		return wildcard;
+	}
+
+	/**
+	 * check whether this is a presence subscription ("presence(channel)")
+	 *
+	 * @return
+	 */
+	public boolean isPresence() {
+		return presenceChannel != null;
+	}
+
+	/**
+	 * name of the channel that is tracked by a presence subscription or null
+	 *
+	 * @return
+	 */
+	public String getPresenceChannel() {
+		return presenceChannel;
+	}
+
+	/**
+	 * check whether this is a function subscription ("channel[functions]")
+	 *
+	 * @return
+	 */
+	public boolean isFunction() {
+		return functions != null;
+	}
+
+	/**
+	 * check whether the token contains a broken function specification
+	 *
+	 * @return
+	 */
+	public boolean hasBrokenFunctions() {
+		return brokenFunctions;
+	}
+
+	/**
+	 * name of the channel of a function subscription or null
+	 *
+	 * @return
+	 */
+	public String getFunctionChannel() {
+		return functionChannel;
+	}
+
+	/**
+	 * function specification of a function subscription or null
+	 *
+	 * @return
+	 */
+	public String getFunctions() {
+		return functions;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * extract the tracked channel name from "presence(channel)" or return null
+	 *
+	 * @param channelName
+	 * @return
+	 */
+	private static String parsePresence(String channelName) {
+		int start = channelName.indexOf(PRESENCE_PREFIX);
+		if (start < 0) {
+			return null;
+		}
+
+		start += PRESENCE_PREFIX.length();
+		int end = start;
+		while (end < channelName.length() && isNameChar(channelName.charAt(end))) {
+			end++;
+		}
+		return end > start && end < channelName.length() && channelName.charAt(end) == ')'
+		        ? channelName.substring(start, end)
+		        : null;
+	}
+
+	/**
+	 * characters allowed in channel names of function subscriptions, including levels and wildcards
+	 *
+	 * @param c
+	 * @return
+	 */
+	private static boolean isFunctionChannelChar(char c) {
+		return isNameChar(c) || c == TopicTrie.SEPARATOR || c == '+' || c == '#';
+	}
+
+	/**
+	 * characters allowed in channel names of presence subscriptions
+	 *
+	 * @param c
+	 * @return
+	 */
+	private static boolean isNameChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '-';
+	}
+}
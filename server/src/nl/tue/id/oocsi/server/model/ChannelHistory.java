@@ -0,0 +1,107 @@
+package nl.tue.id.oocsi.server.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.tue.id.oocsi.server.protocol.Message;
+
+/**
+ * ring buffer with the last messages of a channel, bounded by number of messages, bytes and age; used to replay
+ * messages to new subscribers
+ *
+ */
+public class ChannelHistory {
+
+	// upper bound of payload bytes per channel
+	public static final long MAX_BYTES = 1 << 20;
+
+	private final Message[] ring;
+	private final long ttl;
+
+	// index of the oldest message, number of messages and their bytes
+	private int head = 0;
+	private int count = 0;
+	private long bytes = 0;
+
+	/**
+	 * create history for the last <code>size</code> messages that are not older than <code>ttl</code> ms (0 for no
+	 * time limit)
+	 *
+	 * @param size
+	 * @param ttl
+	 */
+	public ChannelHistory(int size, long ttl) {
+		this.ring = new Message[size];
+		this.ttl = ttl;
+	}
+
+	/**
+	 * add message, evicting the oldest messages if the history is full
+	 *
+	 * @param message
+	 */
+	public synchronized void add(Message message) {
+		if (count == ring.length) {
+			evictOldest();
+		}
+
+		ring[(head + count) % ring.length] = message;
+		count++;
+		bytes += message.getSize();
+
+		while (bytes > MAX_BYTES && count > 1) {
+			evictOldest();
+		}
+	}
+
+	/**
+	 * retrieve messages (oldest first) with a timestamp at or after <code>since</code> (ms)
+	 *
+	 * @param since
+	 * @return
+	 */
+	public synchronized List<Message> since(long since) {
+		final long oldest = Math.max(since, ttl > 0 ? System.currentTimeMillis() - ttl : 0);
+		List<Message> messages = new ArrayList<Message>(count);
+		for (int i = 0; i < count; i++) {
+			Message message = ring[(head + i) % ring.length];
+			if (message.getTimestamp().getTime() >= oldest) {
+				messages.add(message);
+			}
+		}
+		return messages;
+	}
+
+	/**
+	 * retrieve the last <code>n</code> messages (oldest first)
+	 *
+	 * @param n
+	 * @return
+	 */
+	public List<Message> last(int n) {
+		List<Message> messages = since(0);
+		return messages.size() > n ? messages.subList(messages.size() - n, messages.size()) : messages;
+	}
+
+	/**
+	 * time (ms) when the newest message expires, 0 if there is no message and Long.MAX_VALUE if messages do not expire
+	 *
+	 * @return
+	 */
+	public synchronized long expiry() {
+		if (count == 0) {
+			return 0;
+		}
+		if (ttl == 0) {
+			return Long.MAX_VALUE;
+		}
+		return ring[(head + count - 1) % ring.length].getTimestamp().getTime() + ttl;
+	}
+
+	private void evictOldest() {
+		bytes -= ring[head].getSize();
+		ring[head] = null;
+		head = (head + 1) % ring.length;
+		count--;
+	}
+}
@@ -1,5 +1,10 @@
 package nl.tue.id.oocsi.server.model;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 import nl.tue.id.oocsi.server.protocol.Message;
 
 /**
@@ -16,6 +21,9 @@ abstract public class Client extends Channel {
 
 	private long lastAction = System.currentTimeMillis();
 
+	// channels (including presence trackers) that this client is subscribed to
+	private final Set<Channel> subscriptions = ConcurrentHashMap.newKeySet();
+
 	/**
 	 * constructor
 	 * 
@@ -33,6 +41,25 @@ abstract public class Client extends Channel {
 	 */
 	abstract public boolean send(Message message);
 
+	/**
+	 * send message only if it can be queued without dropping other messages, for replays that can wait until the
+	 * client has caught up
+	 *
+	 * @param message
+	 * @return false if the message was not sent
+	 */
+	public boolean trySend(Message message) {
+		return send(message);
+	}
+
+	/**
+	 * send a response line to the client, for commands that respond asynchronously
+	 *
+	 * @param response
+	 */
+	public void respond(String response) {
+	}
+
 	/**
 	 * disconnect this client from server
 	 */
@@ -56,6 +83,33 @@ abstract public class Client extends Channel {
 	 */
 	abstract public void pong();
 
+	/**
+	 * register that this client was added to <code>channel</code>
+	 * 
+	 * @param channel
+	 */
+	protected void subscribed(Channel channel) {
+		subscriptions.add(channel);
+	}
+
+	/**
+	 * register that this client was removed from <code>channel</code>
+	 * 
+	 * @param channel
+	 */
+	protected void unsubscribed(Channel channel) {
+		subscriptions.remove(channel);
+	}
+
+	/**
+	 * retrieve the channels (including presence trackers) that this client is subscribed to
+	 * 
+	 * @return
+	 */
+	public Collection<Channel> getSubscriptions() {
+		return Collections.unmodifiableSet(subscriptions);
+	}
+
 	/**
 	 * retrieves time stamp of last action from the connected client
 	 * 
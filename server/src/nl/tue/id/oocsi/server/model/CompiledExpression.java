@@ -0,0 +1,563 @@
+package nl.tue.id.oocsi.server.model;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * filter or transform expression compiled into a tree of nodes that evaluate on primitive doubles; compiled
+ * expressions are immutable and cached server-wide by expression string. The supported subset follows EvalEx (numbers,
+ * variables, arithmetic, comparison and logical operators with the same precedence, common math functions) plus the
+ * window functions, boolean values are represented as 1 and 0. Expressions outside of this subset are not compiled and
+ * need to be evaluated with EvalEx instead. Variable values and window state are kept per subscription in a
+ * {@link State}.
+ *
+ */
+public class CompiledExpression {
+
+	// upper bound for cached expressions
+	private static final int MAX_CACHED = 10000;
+
+	// compiled expressions by expression string (empty if not compilable)
+	private static final Map<String, Optional<CompiledExpression>> cache = new ConcurrentHashMap<String, Optional<CompiledExpression>>();
+
+	private final String expression;
+	private final String[] variables;
+	private final int windows;
+	private final Node root;
+
+	private CompiledExpression(String expression, String[] variables, int windows, Node root) {
+		this.expression = expression;
+		this.variables = variables;
+		this.windows = windows;
+		this.root = root;
+	}
+
+	/**
+	 * retrieve the compiled form of <code>expression</code> from the cache or compile it
+	 *
+	 * @param expression
+	 * @return compiled expression or null if the expression cannot be compiled
+	 */
+	public static CompiledExpression compile(String expression) {
+		Optional<CompiledExpression> compiled = cache.get(expression);
+		if (compiled == null) {
+			compiled = Optional.ofNullable(new Parser(expression).parse());
+			if (cache.size() < MAX_CACHED) {
+				cache.putIfAbsent(expression, compiled);
+			}
+		}
+		return compiled.orElse(null);
+	}
+
+	/**
+	 * names of the variables used in this expression; values are passed to <code>evaluate</code> in this order
+	 *
+	 * @return
+	 */
+	public String[] getVariables() {
+		return variables;
+	}
+
+	/**
+	 * create state (variable values and windows) for evaluating this expression
+	 *
+	 * @return
+	 */
+	public State newState() {
+		return new State(variables.length, windows);
+	}
+
+	/**
+	 * evaluate expression with the variable values in <code>state</code>, adding samples to its windows
+	 *
+	 * @param state
+	 * @return
+	 * @throws ArithmeticException if the result is not a finite number (e.g., division by zero)
+	 */
+	public double evaluate(State state) {
+		final double result = root.eval(state);
+		if (Double.isNaN(result) || Double.isInfinite(result)) {
+			throw new ArithmeticException("invalid result of " + expression);
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+	/**
+	 * variable values and window state for evaluating a compiled expression, not thread-safe
+	 *
+	 */
+	public static class State {
+
+		// variable values in the order of getVariables()
+		public final double[] values;
+
+		// windows per window function call, created on first evaluation
+		private final WindowAggregate.Window[] windows;
+
+		private State(int variables, int windows) {
+			this.values = new double[variables];
+			this.windows = new WindowAggregate.Window[windows];
+		}
+	}
+
+	/**
+	 * node of the expression tree
+	 *
+	 */
+	@FunctionalInterface
+	private static interface Node {
+		double eval(State state);
+	}
+
+	/**
+	 * recursive descent parser with EvalEx operator precedence: || < && < equality < comparison < additive <
+	 * multiplicative < power (right-associative) < prefix operators
+	 *
+	 */
+	private static class Parser {
+
+		private final String input;
+		private final List<String> variables = new ArrayList<String>();
+		private int windows = 0;
+		private int pos = 0;
+
+		Parser(String input) {
+			this.input = input;
+		}
+
+		/**
+		 * parse the complete input
+		 *
+		 * @return compiled expression or null if the input is not supported
+		 */
+		CompiledExpression parse() {
+			try {
+				Node root = or();
+				skipWhitespace();
+				if (pos < input.length()) {
+					return null;
+				}
+				return new CompiledExpression(input, variables.toArray(new String[variables.size()]), windows,
+				        root);
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+		}
+
+		private Node or() {
+			Node left = and();
+			while (accept("||")) {
+				final Node l = left, r = and();
+				left = s -> l.eval(s) != 0 || r.eval(s) != 0 ? 1 : 0;
+			}
+			return left;
+		}
+
+		private Node and() {
+			Node left = equality();
+			while (accept("&&")) {
+				final Node l = left, r = equality();
+				left = s -> l.eval(s) != 0 && r.eval(s) != 0 ? 1 : 0;
+			}
+			return left;
+		}
+
+		private Node equality() {
+			Node left = comparison();
+			while (true) {
+				final Node l = left;
+				if (accept("==") || accept("=")) {
+					final Node r = comparison();
+					left = s -> l.eval(s) == r.eval(s) ? 1 : 0;
+				} else if (accept("!=") || accept("<>")) {
+					final Node r = comparison();
+					left = s -> l.eval(s) != r.eval(s) ? 1 : 0;
+				} else {
+					return left;
+				}
+			}
+		}
+
+		private Node comparison() {
+			Node left = additive();
+			while (true) {
+				final Node l = left;
+				if (accept(">=")) {
+					final Node r = additive();
+					left = s -> l.eval(s) >= r.eval(s) ? 1 : 0;
+				} else if (accept("<=")) {
+					final Node r = additive();
+					left = s -> l.eval(s) <= r.eval(s) ? 1 : 0;
+				} else if (peek('>')) {
+					pos++;
+					final Node r = additive();
+					left = s -> l.eval(s) > r.eval(s) ? 1 : 0;
+				} else if (peek('<') && !input.startsWith("<>", pos)) {
+					pos++;
+					final Node r = additive();
+					left = s -> l.eval(s) < r.eval(s) ? 1 : 0;
+				} else {
+					return left;
+				}
+			}
+		}
+
+		private Node additive() {
+			Node left = multiplicative();
+			while (true) {
+				final Node l = left;
+				if (accept("+")) {
+					final Node r = multiplicative();
+					left = s -> l.eval(s) + r.eval(s);
+				} else if (accept("-")) {
+					final Node r = multiplicative();
+					left = s -> l.eval(s) - r.eval(s);
+				} else {
+					return left;
+				}
+			}
+		}
+
+		private Node multiplicative() {
+			Node left = power();
+			while (true) {
+				final Node l = left;
+				if (accept("*")) {
+					final Node r = power();
+					left = s -> l.eval(s) * r.eval(s);
+				} else if (accept("/")) {
+					final Node r = power();
+					left = s -> l.eval(s) / nonZero(r.eval(s));
+				} else if (accept("%")) {
+					final Node r = power();
+					left = s -> l.eval(s) % nonZero(r.eval(s));
+				} else {
+					return left;
+				}
+			}
+		}
+
+		private Node power() {
+			final Node base = prefix();
+			if (accept("^")) {
+				final Node exponent = power();
+				return s -> Math.pow(base.eval(s), exponent.eval(s));
+			}
+			return base;
+		}
+
+		private Node prefix() {
+			if (accept("-")) {
+				final Node n = prefix();
+				return s -> -n.eval(s);
+			} else if (accept("+")) {
+				return prefix();
+			} else if (peek('!') && !input.startsWith("!=", pos)) {
+				pos++;
+				final Node n = prefix();
+				return s -> n.eval(s) == 0 ? 1 : 0;
+			}
+			return primary();
+		}
+
+		private Node primary() {
+			skipWhitespace();
+			if (accept("(")) {
+				Node n = or();
+				expect(")");
+				return n;
+			}
+			if (pos < input.length() && (Character.isDigit(input.charAt(pos)) || input.charAt(pos) == '.')) {
+				final double number = number();
+				return s -> number;
+			}
+
+			final String name = identifier();
+			if (accept("(")) {
+				final WindowAggregate aggregate = WindowAggregate.forFunction(name);
+				return aggregate != null ? window(aggregate) : function(name, arguments());
+			}
+
+			// constants (case-insensitive as in EvalEx)
+			switch (name.toUpperCase()) {
+			case "TRUE":
+				return s -> 1;
+			case "FALSE":
+				return s -> 0;
+			case "PI":
+				return s -> Math.PI;
+			case "E":
+				return s -> Math.E;
+			case "NULL":
+				throw new IllegalArgumentException("null is not supported");
+			}
+
+			// variables are resolved to their index
+			int index = variables.indexOf(name);
+			if (index == -1) {
+				index = variables.size();
+				variables.add(name);
+			}
+			final int i = index;
+			return s -> s.values[i];
+		}
+
+		private List<Node> arguments() {
+			List<Node> args = new ArrayList<Node>();
+			if (accept(")")) {
+				return args;
+			}
+			do {
+				args.add(or());
+			} while (accept(","));
+			expect(")");
+			return args;
+		}
+
+		/**
+		 * create node for a window function call: <code>function(value, length)</code> with a sample count or a
+		 * duration string such as "5s", or <code>quantile(value, q, length)</code>; the window is created on first
+		 * evaluation
+		 *
+		 * @param aggregate
+		 * @return
+		 */
+		private Node window(WindowAggregate aggregate) {
+			final Node value = or();
+			expect(",");
+
+			final Node quantile;
+			if (aggregate.hasQuantile()) {
+				quantile = or();
+				expect(",");
+			} else {
+				quantile = null;
+			}
+
+			final long duration;
+			final Node length;
+			if (peek('"')) {
+				duration = SlidingWindow.parseDuration(string());
+				length = null;
+				if (duration <= 0) {
+					throw new IllegalArgumentException("invalid window duration");
+				}
+			} else {
+				duration = 0;
+				length = or();
+			}
+			expect(")");
+
+			final int index = windows++;
+			return s -> {
+				final double sample = value.eval(s);
+				WindowAggregate.Window window = s.windows[index];
+				if (window == null) {
+					window = s.windows[index] = aggregate.create(length != null ? (int) length.eval(s) : 0, duration,
+					        quantile != null ? quantile.eval(s) : 0);
+				}
+				return window.add(sample, System.currentTimeMillis());
+			};
+		}
+
+		/**
+		 * create node for a call of the function <code>name</code>
+		 *
+		 * @param name
+		 * @param args
+		 * @return
+		 */
+		private Node function(String name, List<Node> args) {
+			final Node a = args.size() > 0 ? args.get(0) : null;
+			final Node b = args.size() > 1 ? args.get(1) : null;
+			final Node c = args.size() > 2 ? args.get(2) : null;
+			final Node[] all = args.toArray(new Node[args.size()]);
+
+			switch (name.toUpperCase() + "/" + (args.size() > 3 ? "n" : args.size())) {
+			case "ABS/1":
+				return s -> Math.abs(a.eval(s));
+			case "CEILING/1":
+				return s -> Math.ceil(a.eval(s));
+			case "FLOOR/1":
+				return s -> Math.floor(a.eval(s));
+			case "ROUND/2":
+				return s -> round(a.eval(s), (int) b.eval(s));
+			case "SQRT/1":
+				return s -> Math.sqrt(nonNegative(a.eval(s)));
+			case "LOG/1":
+				return s -> Math.log(positive(a.eval(s)));
+			case "LOG10/1":
+				return s -> Math.log10(positive(a.eval(s)));
+			case "NOT/1":
+				return s -> a.eval(s) == 0 ? 1 : 0;
+			case "IF/3":
+				return s -> a.eval(s) != 0 ? b.eval(s) : c.eval(s);
+			case "SIN/1":
+				return s -> Math.sin(Math.toRadians(a.eval(s)));
+			case "COS/1":
+				return s -> Math.cos(Math.toRadians(a.eval(s)));
+			case "TAN/1":
+				return s -> Math.tan(Math.toRadians(a.eval(s)));
+			case "SINR/1":
+				return s -> Math.sin(a.eval(s));
+			case "COSR/1":
+				return s -> Math.cos(a.eval(s));
+			case "TANR/1":
+				return s -> Math.tan(a.eval(s));
+			case "DEG/1":
+				return s -> Math.toDegrees(a.eval(s));
+			case "RAD/1":
+				return s -> Math.toRadians(a.eval(s));
+			case "MIN/1":
+			case "MIN/2":
+			case "MIN/3":
+			case "MIN/n":
+				return s -> {
+					double min = all[0].eval(s);
+					for (int i = 1; i < all.length; i++) {
+						min = Math.min(min, all[i].eval(s));
+					}
+					return min;
+				};
+			case "MAX/1":
+			case "MAX/2":
+			case "MAX/3":
+			case "MAX/n":
+				return s -> {
+					double max = all[0].eval(s);
+					for (int i = 1; i < all.length; i++) {
+						max = Math.max(max, all[i].eval(s));
+					}
+					return max;
+				};
+			case "AVERAGE/1":
+			case "AVERAGE/2":
+			case "AVERAGE/3":
+			case "AVERAGE/n":
+				return s -> {
+					double sum = 0;
+					for (Node n : all) {
+						sum += n.eval(s);
+					}
+					return sum / all.length;
+				};
+			}
+
+			// other functions are left to EvalEx
+			throw new IllegalArgumentException("unsupported function " + name);
+		}
+
+		private double number() {
+			final int start = pos;
+			if (input.startsWith("0x", pos) || input.startsWith("0X", pos)) {
+				pos += 2;
+				while (pos < input.length() && Character.digit(input.charAt(pos), 16) != -1) {
+					pos++;
+				}
+				return Long.parseLong(input.substring(start + 2, pos), 16);
+			}
+			while (pos < input.length()) {
+				final char ch = input.charAt(pos);
+				if (Character.isDigit(ch) || ch == '.') {
+					pos++;
+				} else if ((ch == 'e' || ch == 'E') && pos + 1 < input.length()) {
+					pos++;
+					if (input.charAt(pos) == '+' || input.charAt(pos) == '-') {
+						pos++;
+					}
+				} else {
+					break;
+				}
+			}
+			try {
+				return Double.parseDouble(input.substring(start, pos));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+		private String string() {
+			expect("\"");
+			final int end = input.indexOf('"', pos);
+			if (end == -1) {
+				throw new IllegalArgumentException("unterminated string");
+			}
+			final String string = input.substring(pos, end);
+			pos = end + 1;
+			return string;
+		}
+
+		private String identifier() {
+			final int start = pos;
+			while (pos < input.length()
+			        && (Character.isLetterOrDigit(input.charAt(pos)) || input.charAt(pos) == '_')) {
+				pos++;
+			}
+			if (start == pos || Character.isDigit(input.charAt(start))) {
+				throw new IllegalArgumentException("unexpected input at " + start);
+			}
+			return input.substring(start, pos);
+		}
+
+		private boolean peek(char ch) {
+			skipWhitespace();
+			return pos < input.length() && input.charAt(pos) == ch;
+		}
+
+		private boolean accept(String token) {
+			skipWhitespace();
+			if (input.startsWith(token, pos)) {
+				pos += token.length();
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(String token) {
+			if (!accept(token)) {
+				throw new IllegalArgumentException("expected " + token + " at " + pos);
+			}
+		}
+
+		private void skipWhitespace() {
+			while (pos < input.length() && Character.isWhitespace(input.charAt(pos))) {
+				pos++;
+			}
+		}
+	}
+
+	private static double nonZero(double value) {
+		if (value == 0) {
+			throw new ArithmeticException("division by zero");
+		}
+		return value;
+	}
+
+	private static double nonNegative(double value) {
+		if (value < 0) {
+			throw new ArithmeticException("negative value");
+		}
+		return value;
+	}
+
+	private static double positive(double value) {
+		if (value <= 0) {
+			throw new ArithmeticException("value not positive");
+		}
+		return value;
+	}
+
+	private static double round(double value, int scale) {
+		return BigDecimal.valueOf(value).setScale(scale, RoundingMode.HALF_EVEN).doubleValue();
+	}
+}
@@ -0,0 +1,541 @@
+package nl.tue.id.oocsi.server.model;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.ezylang.evalex.EvaluationException;
+import com.ezylang.evalex.Expression;
+import com.ezylang.evalex.config.ExpressionConfiguration;
+import com.ezylang.evalex.data.EvaluationValue;
+import com.ezylang.evalex.functions.AbstractFunction;
+import com.ezylang.evalex.functions.FunctionParameter;
+import com.ezylang.evalex.parser.Token;
+
+import nl.tue.id.oocsi.server.protocol.Message;
+import nl.tue.id.oocsi.server.protocol.Payload;
+
+/**
+ * filter and transform functions of a channel subscription, shared by all subscriptions with the same channel and
+ * (normalized) function string: the group is the subscriber of the channel, every message is evaluated once and the
+ * transformed message is sent to all members. With
+ * <code>group(sender)</code> or <code>group(key)</code>, window state is kept per sender or per value of the data item
+ * <code>key</code>.
+ *
+ */
+public class FunctionGroup {
+
+	// number of shared groups
+	private static final AtomicInteger sharedGroups = new AtomicInteger();
+	private static final Member[] NO_MEMBERS = new Member[0];
+
+	// partitioning: "group(sender)" or "group(key)", bounded number of partitions that are evicted when idle
+	public static final String PARTITION_BY_SENDER = "sender";
+	public static final int MAX_PARTITIONS = 4096;
+	public static final long PARTITION_IDLE = 10 * 60 * 1000;
+
+	private final String functions;
+	private final boolean isShared;
+
+	// members sorted by their function string, changed only by the channel of the group
+	private volatile Member[] members = NO_MEMBERS;
+
+	// parsed functions
+	private final List<String> filters = new LinkedList<>();
+	private final List<Map.Entry<String, String>> transforms = new LinkedList<>();
+	private String partitionKey = null;
+
+	// evaluation state, either shared or per partition
+	private final Functions shared;
+	private final PartitionMap<Functions> partitions;
+
+	private FunctionGroup(String functions, boolean isShared) {
+		this.functions = functions;
+		this.isShared = isShared;
+		if (isShared) {
+			sharedGroups.incrementAndGet();
+		}
+
+		initExpressions(functions);
+		shared = partitionKey == null ? new Functions() : null;
+		partitions = partitionKey != null ? new PartitionMap<Functions>(MAX_PARTITIONS, PARTITION_IDLE) : null;
+	}
+
+	/**
+	 * create a shared group for <code>functions</code>, to be registered with a channel
+	 * 
+	 * @param functions normalized function string
+	 * @return
+	 */
+	static FunctionGroup share(String functions) {
+		return new FunctionGroup(functions, true);
+	}
+
+	/**
+	 * create a group for <code>functions</code> that is not shared, e.g., to replay messages to a single subscription
+	 * 
+	 * @param functions
+	 * @return
+	 */
+	public static FunctionGroup create(String functions) {
+		return new FunctionGroup(normalize(functions), false);
+	}
+
+	/**
+	 * add a member that subscribed with <code>functions</code> (as given by the client), called by the channel
+	 * 
+	 * @param client
+	 * @param functions
+	 */
+	void add(Client client, String functions) {
+		final Member[] current = members;
+		final Member[] updated = Arrays.copyOf(current, current.length + 1);
+		updated[current.length] = new Member(client, functions);
+
+		// members with the same function string are adjacent and share the transformed message
+		Arrays.sort(updated, (a, b) -> a.functions.compareTo(b.functions));
+		members = updated;
+	}
+
+	/**
+	 * remove a member, called by the channel
+	 * 
+	 * @param client
+	 * @return number of remaining members
+	 */
+	int remove(Client client) {
+		final Member[] current = members;
+		final List<Member> updated = new ArrayList<Member>(current.length);
+		for (Member member : current) {
+			if (member.client != client) {
+				updated.add(member);
+			}
+		}
+		members = updated.isEmpty() ? NO_MEMBERS : updated.toArray(NO_MEMBERS);
+		return updated.size();
+	}
+
+	/**
+	 * discard this group after its last member left
+	 * 
+	 */
+	void close() {
+		if (isShared) {
+			sharedGroups.decrementAndGet();
+		}
+	}
+
+	/**
+	 * number of shared groups
+	 * 
+	 * @return
+	 */
+	public static int count() {
+		return sharedGroups.get();
+	}
+
+	/**
+	 * normalize a function string: whitespace outside of string literals and empty functions are removed
+	 * 
+	 * @param functions
+	 * @return
+	 */
+	public static String normalize(String functions) {
+		StringBuilder sb = new StringBuilder(functions.length());
+		boolean quoted = false;
+		for (int i = 0; i < functions.length(); i++) {
+			final char ch = functions.charAt(i);
+			if (ch == '"') {
+				quoted = !quoted;
+			} else if (!quoted && Character.isWhitespace(ch)) {
+				continue;
+			} else if (!quoted && ch == ';' && (sb.length() == 0 || sb.charAt(sb.length() - 1) == ';')) {
+				continue;
+			}
+			sb.append(ch);
+		}
+		if (sb.length() > 0 && sb.charAt(sb.length() - 1) == ';') {
+			sb.setLength(sb.length() - 1);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * normalized function string
+	 * 
+	 * @return
+	 */
+	public String getFunctions() {
+		return functions;
+	}
+
+	private void initExpressions(String functionString) {
+		final Pattern filterPattern = Pattern.compile("filter\\((.*)\\)");
+		final Pattern transformPattern = Pattern.compile("transform\\(([^,]+),(.*)\\)");
+		final Pattern groupPattern = Pattern.compile("group\\((.*)\\)");
+
+		// functions are separated by ';'
+		String[] functions = functionString.split(";");
+		for (String fct : functions) {
+			Matcher filterMatcher = filterPattern.matcher(fct);
+			if (filterMatcher.find()) {
+				// init filter expression
+				filters.add(filterMatcher.group(1));
+				continue;
+			}
+
+			Matcher transformMatcher = transformPattern.matcher(fct);
+			if (transformMatcher.find()) {
+				// init transform expression
+				transforms.add(Map.entry(transformMatcher.group(1), transformMatcher.group(2)));
+				continue;
+			}
+
+			Matcher groupMatcher = groupPattern.matcher(fct);
+			if (groupMatcher.find()) {
+				// partition window state by sender or data item
+				partitionKey = groupMatcher.group(1).trim();
+				continue;
+			}
+		}
+	}
+
+	/**
+	 * evaluate <code>message</code> once and send the transformed message to all members except the sender; members
+	 * with the same function string receive the same message instance, so its encoded frame is shared
+	 * 
+	 * @param message
+	 * @param recipients names of members that received the message are added to this list, if not null
+	 * @return number of members that received the message
+	 */
+	int send(Message message, List<String> recipients) {
+		final Member[] current = members;
+		if (current.length == 0) {
+			return 0;
+		}
+
+		final Payload transformed = apply(message);
+		if (transformed == null) {
+			return 0;
+		}
+
+		final String sender = message.getSender();
+		int delivered = 0;
+		Message transformedMessage = null;
+		String messageFunctions = null;
+		for (Member member : current) {
+			// no echo in channels
+			if (sender.equals(member.client.getName())) {
+				continue;
+			}
+
+			if (transformedMessage == null || !member.functions.equals(messageFunctions)) {
+				transformedMessage = member.transform(message, transformed);
+				messageFunctions = member.functions;
+			}
+			if (member.client.send(transformedMessage)) {
+				delivered++;
+				if (recipients != null) {
+					recipients.add(member.client.getName());
+				}
+			}
+		}
+		return delivered;
+	}
+
+	/**
+	 * evaluate <code>messages</code> for a single subscription with <code>functions</code> (as given by the client),
+	 * e.g., with a group that is not shared to replay messages
+	 * 
+	 * @param messages
+	 * @param functions
+	 * @return transformed messages that are not filtered out
+	 */
+	public List<Message> replay(List<Message> messages, String functions) {
+		final Member member = new Member(null, functions);
+		final List<Message> replay = new ArrayList<Message>(messages.size());
+		for (Message message : messages) {
+			final Payload transformed = apply(message);
+			if (transformed != null) {
+				replay.add(member.transform(message, transformed));
+			}
+		}
+		return replay;
+	}
+
+	/**
+	 * apply filters and transformations to <code>message</code>
+	 * 
+	 * @param message
+	 * @return transformed values (to be added as an overlay to the message) or null if the message is filtered out
+	 */
+	public synchronized Payload apply(Message message) {
+		return evaluate(message);
+	}
+
+	/**
+	 * evaluate filters and transformations for <code>message</code> with the state of its partition
+	 * 
+	 * @param message
+	 * @return
+	 */
+	private Payload evaluate(Message message) {
+		if (partitions == null) {
+			return shared.evaluate(message);
+		}
+
+		final Object partition = PARTITION_BY_SENDER.equals(partitionKey) ? message.getSender()
+		        : message.getData().get(partitionKey);
+		final long hash = PartitionMap.hash(partition != null ? partition.toString() : "");
+		final long now = System.currentTimeMillis();
+		Functions functions = partitions.get(hash, now);
+		if (functions == null) {
+			functions = new Functions();
+			partitions.put(hash, functions, now);
+		}
+		return functions.evaluate(message);
+	}
+
+	/**
+	 * convert a message value into a number
+	 * 
+	 * @param value
+	 * @return
+	 * @throws NumberFormatException
+	 */
+	private static double toDouble(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		return Double.parseDouble(value.toString());
+	}
+
+	/**
+	 * member of the group with the function string of its subscription
+	 *
+	 */
+	private static final class Member {
+
+		final Client client;
+		final String functions;
+
+		// recipient of transformed messages, derived from the channel of the last message
+		private volatile String[] functionRecipient = { "", "" };
+
+		Member(Client client, String functions) {
+			this.client = client;
+			this.functions = functions;
+		}
+
+		/**
+		 * create the message for this member with a view specific recipient, "channel[functions]" (transformed values
+		 * are added as an overlay)
+		 * 
+		 * @param message
+		 * @param transformed
+		 * @return
+		 */
+		Message transform(Message message, Payload transformed) {
+			final String channel = message.getRecipient();
+			String[] cached = functionRecipient;
+			if (!cached[0].equals(channel)) {
+				functionRecipient = cached = new String[] { channel, channel + "[" + functions + "]" };
+			}
+			return message.cloneForRecipient(cached[1]).addData(transformed);
+		}
+	}
+
+	/**
+	 * expressions and window state of the group or of one partition
+	 *
+	 */
+	class Functions {
+
+		// reference: https://github.com/uklimaschewski/EvalEx
+		private final List<FunctionExpression> filterExpression = new LinkedList<>();
+		private final List<Map.Entry<String, FunctionExpression>> transformExpression = new LinkedList<>();
+
+		// configuration with window functions, only created for expressions that are evaluated with EvalEx
+		private ExpressionConfiguration configuration;
+
+		Functions() {
+			for (String filter : filters) {
+				filterExpression.add(new FunctionExpression(filter));
+			}
+			for (Map.Entry<String, String> transform : transforms) {
+				transformExpression.add(Map.entry(transform.getKey(), new FunctionExpression(transform.getValue())));
+			}
+		}
+
+		private ExpressionConfiguration configuration() {
+			if (configuration != null) {
+				return configuration;
+			}
+
+			// window functions for the EvalEx fallback (compiled expressions have their own windows per call)
+			ExpressionConfiguration config = ExpressionConfiguration.defaultConfiguration();
+			for (WindowAggregate aggregate : WindowAggregate.values()) {
+				config.getFunctionDictionary().addFunction(aggregate.function(),
+				        aggregate.hasQuantile() ? new QuantileWindowFunction(aggregate) : new WindowFunction(aggregate));
+			}
+			return configuration = config;
+		}
+
+		/**
+		 * evaluate filters and transformations for <code>message</code>
+		 * 
+		 * @param message
+		 * @return
+		 */
+		Payload evaluate(Message message) {
+
+			// filtering checks
+			for (FunctionExpression expression : filterExpression) {
+				// apply expression
+				try {
+					if (expression.evaluate(message, true) == 0) {
+						return null;
+					}
+				} catch (Exception ex) {
+					// default behavior: filter out on error
+					return null;
+				}
+			}
+
+			// transformation
+			Payload.Builder transformed = new Payload.Builder(transformExpression.size());
+			for (Map.Entry<String, FunctionExpression> entry : transformExpression) {
+				try {
+					transformed.put(entry.getKey(), (float) entry.getValue().evaluate(message, false));
+				} catch (Exception ex) {
+					ex.printStackTrace();
+				}
+			}
+			return transformed.build();
+		}
+
+		/**
+		 * filter or transform expression; compiled once (and shared server-wide) if possible, otherwise parsed once and
+		 * evaluated with EvalEx
+		 *
+		 */
+		class FunctionExpression {
+
+			private final CompiledExpression compiled;
+			private final CompiledExpression.State state;
+
+			private final Expression parsed;
+			private Set<String> variables;
+
+			FunctionExpression(String expression) {
+				compiled = CompiledExpression.compile(expression);
+				state = compiled != null ? compiled.newState() : null;
+				parsed = compiled == null ? new Expression(expression, configuration()) : null;
+			}
+
+			/**
+			 * evaluate expression with the data of <code>message</code>
+			 * 
+			 * @param message
+			 * @param abortOnMissing throw an exception if a variable is missing in the message, otherwise use 0
+			 * @return result, booleans are returned as 1 and 0
+			 * @throws Exception
+			 */
+			double evaluate(Message message, boolean abortOnMissing) throws Exception {
+				if (compiled != null) {
+					final String[] keys = compiled.getVariables();
+					for (int i = 0; i < keys.length; i++) {
+						Object value = message.getData().get(keys[i]);
+						if (value != null) {
+							state.values[i] = toDouble(value);
+						} else if (!abortOnMissing) {
+							state.values[i] = 0;
+						} else {
+							throw new IllegalArgumentException("missing variable " + keys[i]);
+						}
+					}
+					return compiled.evaluate(state);
+				}
+
+				// EvalEx fallback, reusing the parsed syntax tree
+				if (variables == null) {
+					variables = parsed.getUsedVariables();
+				}
+				final Expression e = new Expression(parsed);
+				for (String key : variables) {
+					Object value = message.getData().get(key);
+					if (value != null) {
+						e.and(key, BigDecimal.valueOf(toDouble(value)));
+					} else if (!abortOnMissing) {
+						e.and(key, BigDecimal.valueOf(0));
+					}
+				}
+				return e.evaluate().getNumberValue().doubleValue();
+			}
+		}
+	}
+
+	/**
+	 * window function for EvalEx: <code>function(value, windowLength)</code> with a sample count or a duration string
+	 * such as "5s"
+	 *
+	 */
+	@FunctionParameter(name = "value")
+	@FunctionParameter(name = "windowLength")
+	static class WindowFunction extends AbstractFunction {
+
+		private final WindowAggregate aggregate;
+		private WindowAggregate.Window window;
+
+		WindowFunction(WindowAggregate aggregate) {
+			this.aggregate = aggregate;
+		}
+
+		@Override
+		public synchronized EvaluationValue evaluate(Expression expression, Token functionToken,
+		        EvaluationValue... parameterValues) throws EvaluationException {
+
+			EvaluationValue value = parameterValues[0];
+			EvaluationValue windowLength = parameterValues[parameterValues.length - 1];
+			// not initialized?
+			if (window == null) {
+				// initialize!
+				double quantile = parameterValues.length > 2 ? parameterValues[1].getNumberValue().doubleValue() : 0;
+				if (windowLength.isStringValue()) {
+					long duration = SlidingWindow.parseDuration(windowLength.getStringValue());
+					if (duration <= 0) {
+						throw new EvaluationException(functionToken, "Invalid window duration");
+					}
+					window = aggregate.create(0, duration, quantile);
+				} else {
+					window = aggregate.create(windowLength.getNumberValue().intValue(), 0, quantile);
+				}
+			}
+
+			double result = window.add(value.getNumberValue().doubleValue(), System.currentTimeMillis());
+			return EvaluationValue.numberValue(BigDecimal.valueOf(result));
+		}
+	}
+
+	/**
+	 * quantile window function for EvalEx: <code>quantile(value, q, windowLength)</code>
+	 *
+	 */
+	@FunctionParameter(name = "value")
+	@FunctionParameter(name = "quantile")
+	@FunctionParameter(name = "windowLength")
+	static class QuantileWindowFunction extends WindowFunction {
+
+		QuantileWindowFunction(WindowAggregate aggregate) {
+			super(aggregate);
+		}
+	}
+
+}
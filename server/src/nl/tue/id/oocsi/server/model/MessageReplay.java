@@ -0,0 +1,119 @@
+package nl.tue.id.oocsi.server.model;
+
+import java.util.Iterator;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import nl.tue.id.oocsi.server.protocol.Message;
+
+/**
+ * replay of stored messages (channel history, journal) to a single client, paced by the client's outbound queue:
+ * messages are only sent while they fit into the queue without dropping other messages ({@link Client#trySend}),
+ * otherwise the replay continues on the replay thread once the client has caught up. Replays that are started on the
+ * replay thread read their messages there, too, so large queries do not block the I/O workers.
+ *
+ */
+public class MessageReplay implements Runnable {
+
+	// wait for the client to drain its queue before trying again (ms)
+	private static final long RETRY_INTERVAL = 10;
+
+	// give up if the client does not take any message for this long (ms)
+	private static final long MAX_WAIT = 60000;
+
+	private static volatile ScheduledThreadPoolExecutor executor;
+
+	private final Client recipient;
+	private final Iterator<Message> messages;
+	private final IntConsumer done;
+
+	private Message next;
+	private int sent = 0;
+	private long lastProgress = System.currentTimeMillis();
+
+	private MessageReplay(Client recipient, Iterator<Message> messages, IntConsumer done) {
+		this.recipient = recipient;
+		this.messages = messages;
+		this.done = done;
+	}
+
+	/**
+	 * replay messages to <code>recipient</code>, starting on the calling thread; <code>done</code> is called with the
+	 * number of messages that were sent once the replay is complete or aborted
+	 *
+	 * @param recipient
+	 * @param messages
+	 * @param done
+	 */
+	public static void start(Client recipient, Iterator<Message> messages, IntConsumer done) {
+		new MessageReplay(recipient, messages, done).run();
+	}
+
+	/**
+	 * replay messages to <code>recipient</code> on the replay thread; <code>done</code> is called with the number of
+	 * messages that were sent once the replay is complete or aborted
+	 *
+	 * @param recipient
+	 * @param messages
+	 * @param done
+	 */
+	public static void submit(Client recipient, Iterator<Message> messages, IntConsumer done) {
+		executor().execute(new MessageReplay(recipient, messages, done));
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (recipient.isConnected()) {
+				if (next == null) {
+					if (!messages.hasNext()) {
+						break;
+					}
+					next = messages.next();
+				}
+
+				// outbound queue is full, try again later
+				if (!recipient.trySend(next)) {
+					final long now = System.currentTimeMillis();
+					if (now - lastProgress > MAX_WAIT) {
+						break;
+					}
+					executor().schedule(this, RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+					return;
+				}
+
+				sent++;
+				next = null;
+				lastProgress = System.currentTimeMillis();
+			}
+		} catch (RuntimeException e) {
+			// abort replay
+		}
+
+		done.accept(sent);
+	}
+
+	/**
+	 * create the replay thread on first use
+	 *
+	 * @return
+	 */
+	private static ScheduledThreadPoolExecutor executor() {
+		ScheduledThreadPoolExecutor e = executor;
+		if (e == null) {
+			synchronized (MessageReplay.class) {
+				e = executor;
+				if (e == null) {
+					e = new ScheduledThreadPoolExecutor(1, r -> {
+						Thread t = new Thread(r, "OOCSI message replay");
+						t.setDaemon(true);
+						return t;
+					});
+					executor = e;
+				}
+			}
+		}
+		return e;
+	}
+}
@@ -0,0 +1,117 @@
+package nl.tue.id.oocsi.server.model;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import nl.tue.id.oocsi.server.protocol.Message;
+
+/**
+ * scheduler for delayed and scheduled messages: any number of messages per recipient are kept in a priority queue
+ * ordered by delivery time (messages with the same delivery time keep their order) and dispatched with millisecond
+ * precision on a separate thread
+ *
+ */
+public class MessageScheduler {
+
+	// upper bound for pending messages of all recipients
+	public static final int MAX_PENDING = 100000;
+
+	private final Consumer<Message> dispatcher;
+	private final Map<String, Integer> pendingPerRecipient = new ConcurrentHashMap<String, Integer>();
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private volatile ScheduledThreadPoolExecutor executor;
+
+	/**
+	 * create scheduler that hands due messages to <code>dispatcher</code>
+	 *
+	 * @param dispatcher
+	 */
+	public MessageScheduler(Consumer<Message> dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	/**
+	 * schedule message for delivery at its timestamp
+	 *
+	 * @param message
+	 * @return false if there are too many pending messages
+	 */
+	public boolean schedule(Message message) {
+		if (pending.incrementAndGet() > MAX_PENDING) {
+			pending.decrementAndGet();
+			return false;
+		}
+
+		final String recipient = message.getRecipient();
+		pendingPerRecipient.merge(recipient, 1, Integer::sum);
+
+		final long delay = message.getTimestamp().getTime() - System.currentTimeMillis();
+		executor().schedule(() -> {
+			try {
+				dispatcher.accept(message);
+			} finally {
+				pending.decrementAndGet();
+				pendingPerRecipient.computeIfPresent(recipient, (k, count) -> count > 1 ? count - 1 : null);
+			}
+		}, Math.max(0, delay), TimeUnit.MILLISECONDS);
+
+		return true;
+	}
+
+	/**
+	 * number of pending messages of all recipients
+	 *
+	 * @return
+	 */
+	public int pending() {
+		return pending.get();
+	}
+
+	/**
+	 * number of pending messages for the given recipient
+	 *
+	 * @param recipient
+	 * @return
+	 */
+	public int pending(String recipient) {
+		return pendingPerRecipient.getOrDefault(recipient, 0);
+	}
+
+	/**
+	 * number of pending messages per recipient (only recipients with pending messages)
+	 *
+	 * @return
+	 */
+	public Map<String, Object> pendingPerRecipient() {
+		return new TreeMap<String, Object>(pendingPerRecipient);
+	}
+
+	/**
+	 * create the scheduler thread on first use
+	 *
+	 * @return
+	 */
+	private ScheduledThreadPoolExecutor executor() {
+		ScheduledThreadPoolExecutor e = executor;
+		if (e == null) {
+			synchronized (this) {
+				e = executor;
+				if (e == null) {
+					e = new ScheduledThreadPoolExecutor(1, r -> {
+						Thread t = new Thread(r, "OOCSI message scheduler");
+						t.setDaemon(true);
+						return t;
+					});
+					executor = e;
+				}
+			}
+		}
+		return e;
+	}
+}
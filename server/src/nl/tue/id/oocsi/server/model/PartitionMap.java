@@ -0,0 +1,210 @@
+package nl.tue.id.oocsi.server.model;
+
+import java.util.Arrays;
+
+/**
+ * bounded map from primitive long keys (e.g., 64-bit hashes of partition keys) to partition state: open addressing
+ * with linear probing and an intrusive LRU list, so that lookups, inserts and evictions are O(1) without boxing. When
+ * the map is full, the least recently used partition is evicted; partitions that have not been accessed for the idle
+ * time are evicted on access. Not thread-safe.
+ *
+ */
+public class PartitionMap<V> {
+
+	private static final int NONE = -1;
+
+	private final int maxSize;
+	private final long idleMillis;
+
+	// hash table of entry indices
+	private final int[] table;
+	private final int mask;
+
+	// entries: key, value, last access and LRU links (most recent at head), unused entries are linked via next
+	private final long[] keys;
+	private final Object[] values;
+	private final long[] lastAccess;
+	private final int[] prev;
+	private final int[] next;
+	private int head = NONE, tail = NONE, free = 0;
+	private int size = 0;
+
+	/**
+	 * create map for at most <code>maxSize</code> partitions that are evicted after <code>idleMillis</code> without
+	 * access
+	 *
+	 * @param maxSize
+	 * @param idleMillis
+	 */
+	public PartitionMap(int maxSize, long idleMillis) {
+		this.maxSize = maxSize;
+		this.idleMillis = idleMillis;
+
+		table = new int[Integer.highestOneBit(maxSize * 2 - 1) << 1];
+		Arrays.fill(table, NONE);
+		mask = table.length - 1;
+
+		keys = new long[maxSize];
+		values = new Object[maxSize];
+		lastAccess = new long[maxSize];
+		prev = new int[maxSize];
+		next = new int[maxSize];
+		for (int i = 0; i < maxSize; i++) {
+			next[i] = i + 1 < maxSize ? i + 1 : NONE;
+		}
+	}
+
+	/**
+	 * 64-bit hash of a partition key
+	 *
+	 * @param key
+	 * @return
+	 */
+	public static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return mix(h);
+	}
+
+	/**
+	 * retrieve the value for <code>key</code> and mark it as accessed at <code>now</code>
+	 *
+	 * @param key
+	 * @param now
+	 * @return value or null if there is no such partition (any more)
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key, long now) {
+		evictIdle(now);
+
+		final int entry = find(key);
+		if (entry == NONE) {
+			return null;
+		}
+		lastAccess[entry] = now;
+		unlink(entry);
+		linkHead(entry);
+		return (V) values[entry];
+	}
+
+	/**
+	 * add value for <code>key</code> (that is not in the map yet), evicting the least recently used partition if the
+	 * map is full
+	 *
+	 * @param key
+	 * @param value
+	 * @param now
+	 */
+	public void put(long key, V value, long now) {
+		if (size == maxSize) {
+			remove(tail);
+		}
+
+		final int entry = free;
+		free = next[entry];
+		keys[entry] = key;
+		values[entry] = value;
+		lastAccess[entry] = now;
+		linkHead(entry);
+		size++;
+
+		int slot = (int) mix(key) & mask;
+		while (table[slot] != NONE) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = entry;
+	}
+
+	/**
+	 * number of partitions
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * evict partitions that have not been accessed since <code>now - idleMillis</code>
+	 *
+	 * @param now
+	 */
+	private void evictIdle(long now) {
+		while (tail != NONE && lastAccess[tail] < now - idleMillis) {
+			remove(tail);
+		}
+	}
+
+	private int find(long key) {
+		for (int slot = (int) mix(key) & mask; table[slot] != NONE; slot = (slot + 1) & mask) {
+			if (keys[table[slot]] == key) {
+				return table[slot];
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * remove entry from the table (backward shift deletion) and LRU list
+	 *
+	 * @param entry
+	 */
+	private void remove(int entry) {
+		int slot = (int) mix(keys[entry]) & mask;
+		while (table[slot] != entry) {
+			slot = (slot + 1) & mask;
+		}
+
+		// shift following entries of the probe sequence into the gap
+		int gap = slot;
+		for (int i = (gap + 1) & mask; table[i] != NONE; i = (i + 1) & mask) {
+			final int home = (int) mix(keys[table[i]]) & mask;
+			if (((i - home) & mask) >= ((i - gap) & mask)) {
+				table[gap] = table[i];
+				gap = i;
+			}
+		}
+		table[gap] = NONE;
+
+		unlink(entry);
+		values[entry] = null;
+		next[entry] = free;
+		free = entry;
+		size--;
+	}
+
+	private void linkHead(int entry) {
+		prev[entry] = NONE;
+		next[entry] = head;
+		if (head != NONE) {
+			prev[head] = entry;
+		}
+		head = entry;
+		if (tail == NONE) {
+			tail = entry;
+		}
+	}
+
+	private void unlink(int entry) {
+		if (prev[entry] != NONE) {
+			next[prev[entry]] = next[entry];
+		} else {
+			head = next[entry];
+		}
+		if (next[entry] != NONE) {
+			prev[next[entry]] = prev[entry];
+		} else {
+			tail = prev[entry];
+		}
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+}
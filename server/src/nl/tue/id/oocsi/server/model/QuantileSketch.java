@@ -0,0 +1,242 @@
+package nl.tue.id.oocsi.server.model;
+
+import java.util.Arrays;
+
+/**
+ * KLL quantile sketch: a stack of compactors, where level h holds samples with weight 2^h; a full level is sorted and
+ * every other sample (random offset) is promoted to the next level. Memory is bounded by about 3k samples regardless
+ * of the number of samples added, the rank error is about 1.7 / k. Not thread-safe.
+ *
+ */
+public class QuantileSketch {
+
+	// capacity of the top level; lower levels shrink by factor 2/3 down to MIN_CAPACITY
+	public static final int DEFAULT_K = 100;
+	private static final int MIN_CAPACITY = 8;
+
+	private final int k;
+	private double[][] levels = new double[1][MIN_CAPACITY];
+	private int[] sizes = new int[1];
+	private long count = 0;
+	private long random = 0x9E3779B97F4A7C15L;
+
+	public QuantileSketch() {
+		this(DEFAULT_K);
+	}
+
+	public QuantileSketch(int k) {
+		this.k = k;
+	}
+
+	/**
+	 * add sample
+	 *
+	 * @param value
+	 */
+	public void add(double value) {
+		append(0, value);
+		count++;
+		compress();
+	}
+
+	/**
+	 * add all samples of <code>other</code>
+	 *
+	 * @param other
+	 */
+	public void merge(QuantileSketch other) {
+		for (int h = 0; h < other.levels.length; h++) {
+			for (int i = 0; i < other.sizes[h]; i++) {
+				append(h, other.levels[h][i]);
+			}
+		}
+		count += other.count;
+		compress();
+	}
+
+	/**
+	 * number of samples added
+	 *
+	 * @return
+	 */
+	public long count() {
+		return count;
+	}
+
+	/**
+	 * retrieve the retained samples, sorted by value, and their cumulative weights
+	 *
+	 * @return
+	 */
+	public View view() {
+		int retained = 0;
+		for (int size : sizes) {
+			retained += size;
+		}
+
+		// sort samples together with their level
+		final double[] values = new double[retained];
+		final int[] levelOf = new int[retained];
+		int n = 0;
+		for (int h = 0; h < levels.length; h++) {
+			for (int i = 0; i < sizes[h]; i++) {
+				values[n] = levels[h][i];
+				levelOf[n++] = h;
+			}
+		}
+		final Integer[] order = new Integer[retained];
+		for (int i = 0; i < retained; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+
+		final View view = new View(retained);
+		long cumulative = 0;
+		for (int i = 0; i < retained; i++) {
+			cumulative += 1L << levelOf[order[i]];
+			view.values[i] = values[order[i]];
+			view.weights[i] = cumulative;
+		}
+		return view;
+	}
+
+	private void append(int h, double value) {
+		while (h >= levels.length) {
+			levels = Arrays.copyOf(levels, levels.length + 1);
+			levels[levels.length - 1] = new double[MIN_CAPACITY];
+			sizes = Arrays.copyOf(sizes, levels.length);
+		}
+		if (sizes[h] == levels[h].length) {
+			levels[h] = Arrays.copyOf(levels[h], sizes[h] * 2);
+		}
+		levels[h][sizes[h]++] = value;
+	}
+
+	private int capacity(int h) {
+		return Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(2.0 / 3.0, levels.length - 1 - h)));
+	}
+
+	/**
+	 * compact the lowest full level until all levels are within their capacity
+	 *
+	 */
+	private void compress() {
+		for (int h = 0; h < levels.length; h++) {
+			if (sizes[h] < capacity(h)) {
+				continue;
+			}
+
+			// sort level, keep one sample if the size is odd, promote every other sample with a random offset
+			final double[] level = levels[h];
+			int size = sizes[h];
+			Arrays.sort(level, 0, size);
+			final boolean odd = (size & 1) == 1;
+			final double kept = odd ? level[--size] : 0;
+
+			random ^= random << 13;
+			random ^= random >>> 7;
+			random ^= random << 17;
+			for (int i = (int) (random & 1); i < size; i += 2) {
+				append(h + 1, levels[h][i]);
+			}
+
+			sizes[h] = 0;
+			if (odd) {
+				levels[h][sizes[h]++] = kept;
+			}
+		}
+	}
+
+	/**
+	 * sorted samples with cumulative weights, for rank and quantile queries
+	 *
+	 */
+	public static class View {
+
+		public static final View EMPTY = new View(0);
+
+		final double[] values;
+		final long[] weights;
+
+		View(int size) {
+			values = new double[size];
+			weights = new long[size];
+		}
+
+		/**
+		 * total weight of all samples
+		 *
+		 * @return
+		 */
+		public long total() {
+			return weights.length > 0 ? weights[weights.length - 1] : 0;
+		}
+
+		/**
+		 * weight of the samples <= <code>value</code>
+		 *
+		 * @param value
+		 * @return
+		 */
+		public long rank(double value) {
+			int low = 0, high = values.length;
+			while (low < high) {
+				final int mid = (low + high) >>> 1;
+				if (values[mid] <= value) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low > 0 ? weights[low - 1] : 0;
+		}
+
+		/**
+		 * smallest sample of this view whose rank in the union with <code>other</code> is at least
+		 * <code>target</code>, or NaN if there is none
+		 *
+		 * @param other
+		 * @param target
+		 * @return
+		 */
+		double select(View other, double target) {
+			int low = 0, high = values.length;
+			while (low < high) {
+				final int mid = (low + high) >>> 1;
+				if (weights[mid] + other.rank(values[mid]) >= target) {
+					high = mid;
+				} else {
+					low = mid + 1;
+				}
+			}
+			return low < values.length ? values[low] : Double.NaN;
+		}
+
+		/**
+		 * quantile <code>q</code> (0..1) of this view
+		 *
+		 * @param q
+		 * @return
+		 */
+		public double quantile(double q) {
+			return quantile(this, EMPTY, q);
+		}
+
+		/**
+		 * quantile <code>q</code> (0..1) of the union of two views
+		 *
+		 * @param a
+		 * @param b
+		 * @param q
+		 * @return
+		 */
+		public static double quantile(View a, View b, double q) {
+			final double target = Math.max(1, q * (a.total() + b.total()));
+			final double fromA = a.select(b, target), fromB = b.select(a, target);
+			if (Double.isNaN(fromA)) {
+				return fromB;
+			}
+			return Double.isNaN(fromB) ? fromA : Math.min(fromA, fromB);
+		}
+	}
+}
@@ -1,17 +1,19 @@
 package nl.tue.id.oocsi.server.model;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import nl.tue.id.oocsi.server.OOCSIServer;
 import nl.tue.id.oocsi.server.protocol.Message;
 import nl.tue.id.oocsi.server.protocol.Protocol;
 import nl.tue.id.oocsi.server.services.PresenceTracker;
+import nl.tue.id.oocsi.server.store.EventJournal;
 
 /**
  * data structure for server
@@ -25,7 +27,24 @@ public class Server extends Channel {
 	protected final Map<String, Client> clients = new ConcurrentHashMap<String, Client>();
 	protected final Protocol protocol;
 	protected PresenceTracker presence;
-	protected final Map<String, Message> delayedMessages;
+	protected final MessageScheduler delayedMessages = new MessageScheduler(this::dispatch);
+	protected final TopicTrie wildcards = new TopicTrie();
+	protected volatile EventJournal journal;
+
+	// liveness of clients and clean-up of channels with retained messages
+	protected final TimingWheel timeouts = new TimingWheel(TICK_INTERVAL, 512);
+
+	// ping clients after 5 secs of inactivity, disconnect them after 120 secs
+	public static final long TICK_INTERVAL = 250;
+	public static final long PING_INTERVAL = 5000;
+	public static final long CLIENT_TIMEOUT = 120000;
+
+	// maximum number of messages per journal query
+	public static final int MAX_JOURNAL_MESSAGES = 10000;
+
+	// subscription options for replaying the channel history
+	private static final String REPLAY_SINCE = "since=";
+	private static final String REPLAY_LAST = "last=";
 
 	/**
 	 * create new server data structure
@@ -38,9 +57,6 @@ public class Server extends Channel {
 
 		// start protocol controller
 		protocol = new Protocol(this);
-
-		// create map for delayed messages
-		delayedMessages = new ConcurrentHashMap<>();
 	}
 
 	@Override
@@ -50,15 +66,83 @@ public class Server extends Channel {
 	}
 
 	/**
-	 * dispatch a delayed message; will replace earlier delayed and not yet delivered messages for this client
+	 * dispatch a message to the channel given by its recipient and to all wildcard channels that match the recipient
+	 * (not for messages to clients or private channels)
 	 * 
-	 * @param sender
 	 * @param message
+	 * @return true if there was at least one channel for the message
 	 */
-	public void sendDelayedMessage(String sender, Message message) {
-		synchronized (delayedMessages) {
-			delayedMessages.put(sender, message);
+	public boolean dispatch(Message message) {
+		final ChannelAddress address = ChannelAddress.of(message.getRecipient());
+
+		// journal public messages (messages that do not fit into the write buffer are counted as dropped)
+		final EventJournal j = journal;
+		if (j != null && !address.isPrivate()) {
+			j.append(message);
 		}
+
+		boolean found = false;
+		Channel c = getChannel(address);
+		if (c != null) {
+			c.send(message);
+			found = true;
+
+			// direct message to client
+			if (c instanceof Client) {
+				return true;
+			}
+		}
+
+		// wildcard channels
+		if (!wildcards.isEmpty() && !address.isPrivate() && !address.isWildcard()) {
+			found |= wildcards.match(address.getName(), wc -> wc.send(message)) > 0;
+		}
+
+		return found;
+	}
+
+	/**
+	 * send the journaled messages of a (public) channel between <code>from</code> and <code>to</code> (ms) to
+	 * <code>recipient</code>; the journal is read on the replay thread and messages are sent as fast as the recipient
+	 * takes them, then the number of sent messages is sent as response
+	 * 
+	 * @param recipient
+	 * @param channel
+	 * @param from
+	 * @param to
+	 * @return false if there is no journal
+	 */
+	public boolean replayJournal(Client recipient, String channel, long from, long to) {
+		final EventJournal j = journal;
+		if (j == null || Channel.isPrivate(channel)) {
+			return false;
+		}
+		MessageReplay.submit(recipient, j.query(channel, from, to, MAX_JOURNAL_MESSAGES),
+		        sent -> recipient.respond(Integer.toString(sent)));
+		return true;
+	}
+
+	/**
+	 * dispatch a message at its timestamp; earlier delayed messages for the same recipient remain pending
+	 * 
+	 * @param recipient
+	 * @param message
+	 */
+	public void sendDelayedMessage(String recipient, Message message) {
+		if (!delayedMessages.schedule(message)) {
+			OOCSIServer.log("Delayed message for " + recipient + " dropped, more than " + MessageScheduler.MAX_PENDING
+			        + " messages pending");
+		}
+	}
+
+	/**
+	 * retrieve the number of delayed messages that are pending for the given recipient
+	 * 
+	 * @param recipient
+	 * @return
+	 */
+	public int getDelayedMessageCount(String recipient) {
+		return delayedMessages.pending(recipient);
 	}
 
 	/**
@@ -104,8 +188,11 @@ public class Server extends Channel {
 	public boolean addClient(Client client) {
 		String clientName = client.getName();
 
-		// clean too old clients
-		closeStaleClients();
+		// clean a too old client with the same name
+		Client existing = clients.get(clientName);
+		if (existing != null && isStale(existing, System.currentTimeMillis())) {
+			closeStaleClient(existing);
+		}
 
 		// add client to client list and sub channels
 		if (!clients.containsKey(clientName) && !subChannels.containsKey(clientName) && getClient(clientName) == null
@@ -114,6 +201,9 @@ public class Server extends Channel {
 			clients.put(clientName, client);
 			presence.join(client, client);
 
+			// start liveness checks
+			timeouts.schedule(client.lastAction() + PING_INTERVAL, now -> checkLiveness(client, now));
+
 			return true;
 		}
 
@@ -138,15 +228,20 @@ public class Server extends Channel {
 				presence.remove(client);
 			}
 
-			// remove client from client list and sub channels (recursively)
-			removeChannel(client, true);
+			// remove client from client list and from the channels it is subscribed to
+			removeChannel(client);
 			clients.remove(clientName);
+			for (Channel channel : client.getSubscriptions()) {
+				if (channel != this) {
+					channel.removeChannel(client);
+
+					// close channel if this was the last subscriber
+					closeIfEmpty(channel);
+				}
+			}
 
 			// disconnect client
 			client.disconnect();
-
-			// close empty channels (clean-up)
-			closeEmptyChannels();
 		}
 	}
 
@@ -161,22 +256,65 @@ public class Server extends Channel {
 	}
 
 	/**
-	 * check all current clients for last activity
+	 * check whether a client is disconnected or has not shown any activity for too long
 	 * 
+	 * @param client
+	 * @param now
+	 * @return
 	 */
-	protected void closeStaleClients() {
-		long now = System.currentTimeMillis();
-		for (Client client : clients.values()) {
-			if (client.lastAction() + 120000 < now || !client.isConnected()) {
-				OOCSIServer
-				        .log("Client " + client.getName() + " has not responded for 120 secs and will be disconnected");
+	private boolean isStale(Client client, long now) {
+		return client.lastAction() + CLIENT_TIMEOUT < now || !client.isConnected();
+	}
 
-				// remove from presence tracking if tracking
-				presence.timeout(client);
+	/**
+	 * disconnect and remove an inactive client
+	 * 
+	 * @param client
+	 */
+	private void closeStaleClient(Client client) {
+		OOCSIServer.log("Client " + client.getName() + " has not responded for 120 secs and will be disconnected");
 
-				removeClient(client);
-			}
+		// remove from presence tracking if tracking
+		presence.timeout(client);
+
+		removeClient(client);
+	}
+
+	/**
+	 * liveness check of a client when its deadline expires: ping the client after a period of inactivity and close it
+	 * after a timeout; the next deadline is computed from the last activity, so that activity in between does not
+	 * need to re-schedule
+	 * 
+	 * @param client
+	 * @param now
+	 * @return next deadline or 0 if the client is gone
+	 */
+	private long checkLiveness(Client client, long now) {
+		if (clients.get(client.getName()) != client) {
+			return 0;
+		}
+
+		if (isStale(client, now)) {
+			closeStaleClient(client);
+			return 0;
+		}
+
+		// keep-alive ping-pong, only if last action is at least 5 seconds ago
+		final long lastAction = client.lastAction();
+		if (lastAction + PING_INTERVAL <= now) {
+			client.ping();
+			return now + PING_INTERVAL;
 		}
+
+		return lastAction + PING_INTERVAL;
+	}
+
+	/**
+	 * advance the liveness and clean-up timers to now; to be called every {@link #TICK_INTERVAL} ms
+	 * 
+	 */
+	public void tick() {
+		timeouts.advance(System.currentTimeMillis());
 	}
 
 	/**
@@ -207,8 +345,27 @@ public class Server extends Channel {
 	 */
 	public void subscribe(Client subscriber, String channel) {
 
+		// replay option: "channel@since=<timestamp>" or "channel@last=<n>"
+		long replaySince = -1;
+		int replayLast = -1;
+		int at = channel.lastIndexOf('@');
+		if (at > 0) {
+			try {
+				if (channel.startsWith(REPLAY_SINCE, at + 1)) {
+					replaySince = Long.parseLong(channel.substring(at + 1 + REPLAY_SINCE.length()).trim());
+					channel = channel.substring(0, at);
+				} else if (channel.startsWith(REPLAY_LAST, at + 1)) {
+					replayLast = Integer.parseInt(channel.substring(at + 1 + REPLAY_LAST.length()).trim());
+					channel = channel.substring(0, at);
+				}
+			} catch (NumberFormatException e) {
+				// no replay
+			}
+		}
+
 		// remove password for private channel
-		String channelName = channel.replaceFirst(":.*", "").trim();
+		final ChannelAddress address = ChannelAddress.of(channel);
+		String channelName = address.getName().trim();
 
 		// check channel length first
 		if (channelName.length() == 0) {
@@ -217,19 +374,10 @@ public class Server extends Channel {
 
 		// ------------------------------------------------------------------------------------------------------------
 		// check for presence subscription
-		Pattern presencePattern = Pattern.compile("presence\\(([\\w_-]+)\\)");
-		Matcher presenceMatcher = presencePattern.matcher(channelName);
-		if (presenceMatcher.find()) {
-
-			// extract presence channel name, or abort
-			String presenceChannelName = presenceMatcher.group(1);
-			if (presenceChannelName == null || presenceChannelName.trim().length() == 0) {
-				return;
-			}
-
+		if (address.isPresence()) {
 			// add presenceChannel to presence tracking if not existing
 			// note: we use the name: String because the actual channel might not exist yet
-			presence.subscribe(presenceChannelName, subscriber);
+			presence.subscribe(address.getPresenceChannel(), subscriber);
 
 			return;
 		}
@@ -237,19 +385,12 @@ public class Server extends Channel {
 		// ------------------------------------------------------------------------------------------------------------
 		// functions for filtering and transformation
 		String functions = null;
-		Pattern functionPattern = Pattern.compile("([\\w_-]+)\\[(.*)\\]");
-		Matcher functionMatcher = functionPattern.matcher(channelName);
-		if (functionMatcher.find()) {
-			channelName = functionMatcher.group(1);
-			functions = functionMatcher.group(2);
-		} else {
-			// check the functions part
-			Pattern brokenPattern = Pattern.compile("\\[[^\\]]*");
-			Matcher brokenMatcher = brokenPattern.matcher(channelName);
-			if (brokenMatcher.find()) {
-				// if function extension is broken, quit
-				return;
-			}
+		if (address.isFunction()) {
+			channelName = address.getFunctionChannel();
+			functions = address.getFunctions();
+		} else if (address.hasBrokenFunctions()) {
+			// if function extension is broken, quit
+			return;
 		}
 
 		// find channel
@@ -265,18 +406,71 @@ public class Server extends Channel {
 				c = new Channel(subscriber.getName().equals(channelName) ? channelName : channel, presence);
 			}
 			addChannel(c);
+
+			// register public wildcard channels for matching
+			if (c.address.isWildcard() && !c.isPrivate()) {
+				wildcards.add(c);
+			}
 		}
 
 		// add subscriber to channel
-		if (functions != null || c.validate(channel)) {
-			if (functions != null) {
-				c.addChannel(new FunctionClient(subscriber, channelName, functions, presence));
+		if (functions != null) {
+			// a client can hold several function views of a channel in a single function client
+			final Channel existing = c.subChannels.get(subscriber.getName());
+			final FunctionClient fc;
+			if (existing instanceof FunctionClient) {
+				fc = (FunctionClient) existing;
+			} else if (existing == null) {
+				fc = new FunctionClient(subscriber, c, presence);
+				c.addChannel(fc);
 			} else {
+				return;
+			}
 
-				c.addChannel(subscriber);
+			// retained message and history are delivered to the new view only
+			final List<Message> initial = new ArrayList<Message>();
+			final Message retained = c.retainedMessage;
+			if (retained != null && retained.isValid()) {
+				initial.add(retained);
+			}
+			initial.addAll(getReplay(c, replaySince, replayLast));
+			final List<Message> replay = fc.addFunctions(functions, initial);
+			if (replay != null) {
+				OOCSIServer.logConnection(subscriber.getName(), channelName, "subscribed", new Date());
+				MessageReplay.start(subscriber, replay.iterator(), sent -> {
+				});
 			}
+		} else if (c.validate(channel)) {
+			c.addChannel(subscriber);
 			OOCSIServer.logConnection(subscriber.getName(), channelName, "subscribed", new Date());
+
+			// replay channel history, paced by the outbound queue of the subscriber so that it is not truncated
+			MessageReplay.start(subscriber, getReplay(c, replaySince, replayLast).iterator(), sent -> {
+			});
+		}
+	}
+
+	/**
+	 * retrieve the messages of the history of <code>channel</code> to replay to a new subscriber
+	 * 
+	 * @param channel
+	 * @param replaySince replay messages since this time (ms) or -1
+	 * @param replayLast  replay this number of last messages or -1
+	 * @return
+	 */
+	private List<Message> getReplay(Channel channel, long replaySince, int replayLast) {
+		final ChannelHistory history = channel.getHistory();
+		if (history == null || (replaySince < 0 && replayLast <= 0)) {
+			return Collections.emptyList();
 		}
+
+		List<Message> messages = new ArrayList<Message>(
+		        replaySince >= 0 ? history.since(replaySince) : history.last(replayLast));
+
+		// the retained message has been sent already
+		final Message retained = channel.retainedMessage;
+		messages.removeIf(message -> message == retained);
+		return messages;
 	}
 
 	/**
@@ -289,39 +483,90 @@ public class Server extends Channel {
 
 		// ------------------------------------------------------------------------------------------------------------
 		// check for presence unsubscribe
-		Pattern presencePattern = Pattern.compile("presence\\(([\\w_-]+)\\)");
-		Matcher presenceMatcher = presencePattern.matcher(channelName);
-		if (presenceMatcher.find()) {
-
-			// extract presence channel name, or abort
-			String presenceChannelName = presenceMatcher.group(1);
-			if (presenceChannelName == null || presenceChannelName.trim().length() == 0) {
-				return;
-			}
-
+		final ChannelAddress address = ChannelAddress.of(channelName);
+		if (address.isPresence()) {
 			// remove the presence subscription for this channel
-			presence.unsubscribe(channelName, subscriber);
+			presence.unsubscribe(address.getPresenceChannel(), subscriber);
 
 			return;
 		}
 
 		// ------------------------------------------------------------------------------------------------------------
 		// functions for filtering and transformation
-		Pattern functionPattern = Pattern.compile("([\\w_-]+)\\[(.*)\\]");
-		Matcher functionMatcher = functionPattern.matcher(channelName);
-		if (functionMatcher.find()) {
-			channelName = functionMatcher.group(1);
+		String functions = null;
+		if (address.isFunction()) {
+			channelName = address.getFunctionChannel();
+			functions = address.getFunctions();
 		}
 
 		// normal channel unsubscribe
 		Channel c = getChannel(channelName);
 		if (c != null) {
-			c.removeChannel(subscriber);
-			closeEmptyChannels();
+			// only remove a function view if the client holds other views of this channel
+			final Channel subscription = functions != null ? c.subChannels.get(subscriber.getName()) : null;
+			if (!(subscription instanceof FunctionClient)
+			        || ((FunctionClient) subscription).removeFunctions(functions) == 0) {
+				c.removeChannel(subscriber);
+				closeIfEmpty(c);
+			}
 			OOCSIServer.logConnection(subscriber.getName(), channelName, "unsubscribed", new Date());
 		}
 	}
 
+	/**
+	 * close a channel of this server if it has no subscribers left; if the channel still holds a valid retained
+	 * message, it is checked again when the message expires
+	 * 
+	 * @param channel
+	 */
+	protected void closeIfEmpty(Channel channel) {
+		if (channel instanceof Client || !channel.subChannels.isEmpty()
+		        || subChannels.get(channel.getName()) != channel) {
+			return;
+		}
+
+		final Message retained = channel.retainedMessage;
+		if (retained != null && retained.isValid()) {
+			if (retained.validUntil != null) {
+				timeouts.schedule(retained.validUntil.getTime(), now -> {
+					closeIfEmpty(channel);
+					return 0;
+				});
+			}
+			return;
+		}
+
+		// keep channels with a history until the newest message expires, or for good without a time limit
+		final ChannelHistory history = channel.getHistory();
+		final long historyExpiry = history != null ? history.expiry() : 0;
+		if (historyExpiry == Long.MAX_VALUE) {
+			return;
+		}
+		if (historyExpiry > System.currentTimeMillis()) {
+			timeouts.schedule(historyExpiry, now -> {
+				closeIfEmpty(channel);
+				return 0;
+			});
+			return;
+		}
+
+		if (subChannels.remove(channel.getName(), channel)) {
+			updateSubscribers();
+
+			// update presence information once for public clients
+			if (!channel.isPrivate()) {
+				// signal to presence tracker that a subchannel "channel" leaves "this" channel
+				presence.leave(this, channel);
+				OOCSIServer.logConnection(getName(), channel.getName(), "closed empty channel", new Date());
+			}
+
+			// remove closed wildcard channel
+			if (channel.address.isWildcard()) {
+				wildcards.removeIf(wc -> wc == channel);
+			}
+		}
+	}
+
 	/**
 	 * delegate the processing of input (from a service) to the protocol and return string response
 	 * 
@@ -333,4 +578,17 @@ public class Server extends Channel {
 		return protocol.processInput(sender, input);
 	}
 
+	/**
+	 * delegate the processing of input given as bytes (from a service) to the protocol and return string response
+	 * 
+	 * @param sender
+	 * @param input
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public String processInput(Client sender, byte[] input, int offset, int length) {
+		return protocol.processInput(sender, input, offset, length);
+	}
+
 }
@@ -0,0 +1,281 @@
+package nl.tue.id.oocsi.server.model;
+
+import java.util.Arrays;
+
+/**
+ * sliding window over the last n samples or the samples of the last t ms, summarized by sketches: the window is split
+ * into BLOCKS sub-windows with a sketch each; when the current sub-window is full (n / BLOCKS samples) or old
+ * (t / BLOCKS ms), it is closed and the oldest sub-window falls out of the window. The closed sub-windows are merged
+ * once per rotation, so a query only combines that summary with the current sub-window. Memory and time per sample do
+ * not depend on the window size; the window boundary is approximate with a granularity of one sub-window. Not
+ * thread-safe.
+ *
+ */
+public abstract class SketchWindow {
+
+	// number of sub-windows
+	public static final int BLOCKS = 16;
+
+	// maximum number of samples (count window) or duration in ms (time window) of a sub-window
+	private final long blockLength;
+	private final long blockDuration;
+	private final long duration;
+
+	// closed sub-windows that are kept in the window
+	private final int closedBlocks;
+
+	// ring of sub-windows, the current one at index current
+	private int current = 0;
+	private int blocks = 1;
+	private long currentCount = 0;
+	private long currentStart = -1;
+	private final long[] blockStart;
+
+	protected SketchWindow(int length, long duration) {
+		this.duration = duration;
+		if (duration > 0) {
+			blockLength = Long.MAX_VALUE;
+			blockDuration = (duration + BLOCKS - 1) / BLOCKS;
+			closedBlocks = BLOCKS;
+		} else {
+			length = Math.max(1, length);
+			blockLength = (length + BLOCKS - 1) / BLOCKS;
+			blockDuration = 0;
+			closedBlocks = (int) ((length + blockLength - 1) / blockLength) - 1;
+		}
+		blockStart = new long[closedBlocks + 1];
+	}
+
+	/**
+	 * add sample at time <code>now</code> (ms), rotating sub-windows if necessary
+	 *
+	 * @param value
+	 * @param now
+	 */
+	public void add(double value, long now) {
+		if (currentStart == -1) {
+			currentStart = now;
+		}
+
+		boolean rotated = false;
+		if (currentCount >= blockLength || (blockDuration > 0 && now - currentStart >= blockDuration)) {
+			current = (current + 1) % blockStart.length;
+			blocks = Math.min(blocks + 1, blockStart.length);
+			clearBlock(current);
+			currentCount = 0;
+			currentStart = now;
+			rotated = true;
+		}
+		blockStart[current] = currentStart;
+
+		// drop sub-windows that lie completely before the time window (samples of time <= now - duration)
+		if (blockDuration > 0) {
+			while (blocks > 1 && blockStart[oldest()] + blockDuration - 1 <= now - duration) {
+				clearBlock(oldest());
+				blocks--;
+				rotated = true;
+			}
+		}
+
+		if (rotated) {
+			rebuild(current, oldest(), blockStart.length);
+		}
+
+		addToBlock(current, value);
+		currentCount++;
+	}
+
+	/**
+	 * index of the oldest sub-window in the window
+	 *
+	 * @return
+	 */
+	private int oldest() {
+		return (current - blocks + 1 + blockStart.length) % blockStart.length;
+	}
+
+	/**
+	 * clear sketch of sub-window <code>block</code>
+	 *
+	 * @param block
+	 */
+	protected abstract void clearBlock(int block);
+
+	/**
+	 * add sample to the sketch of sub-window <code>block</code>
+	 *
+	 * @param block
+	 * @param value
+	 */
+	protected abstract void addToBlock(int block, double value);
+
+	/**
+	 * rebuild the summary of the closed sub-windows, from <code>oldest</code> up to (excluding) <code>current</code>,
+	 * indices modulo <code>ring</code>
+	 *
+	 * @param current
+	 * @param oldest
+	 * @param ring
+	 */
+	protected abstract void rebuild(int current, int oldest, int ring);
+
+	/**
+	 * quantiles of the window, based on KLL sketches
+	 *
+	 */
+	public static class Quantiles extends SketchWindow {
+
+		private final QuantileSketch[] sketches;
+		private QuantileSketch.View closed = QuantileSketch.View.EMPTY;
+
+		// view of the current sub-window, refreshed after REFRESH samples for large sub-windows
+		private static final int REFRESH = 16;
+		private QuantileSketch.View currentView = QuantileSketch.View.EMPTY;
+		private int stale = 0;
+		private int currentBlock = 0;
+
+		public Quantiles(int length, long duration) {
+			super(length, duration);
+			sketches = new QuantileSketch[BLOCKS + 1];
+		}
+
+		/**
+		 * approximate quantile <code>q</code> (0..1) of the samples in the window
+		 *
+		 * @param q
+		 * @return
+		 */
+		public double quantile(double q) {
+			final QuantileSketch sketch = sketches[currentBlock];
+			if (sketch != null && stale > 0 && (sketch.count() <= REFRESH || stale >= REFRESH)) {
+				currentView = sketch.view();
+				stale = 0;
+			}
+			return QuantileSketch.View.quantile(closed, currentView, Math.max(0, Math.min(1, q)));
+		}
+
+		@Override
+		protected void clearBlock(int block) {
+			sketches[block] = null;
+		}
+
+		@Override
+		protected void addToBlock(int block, double value) {
+			if (sketches[block] == null) {
+				sketches[block] = new QuantileSketch();
+			}
+			sketches[block].add(value);
+			currentBlock = block;
+			stale++;
+		}
+
+		@Override
+		protected void rebuild(int current, int oldest, int ring) {
+			QuantileSketch merged = new QuantileSketch();
+			for (int block = oldest; block != current; block = (block + 1) % ring) {
+				if (sketches[block] != null) {
+					merged.merge(sketches[block]);
+				}
+			}
+			closed = merged.view();
+			currentView = QuantileSketch.View.EMPTY;
+		}
+	}
+
+	/**
+	 * distinct values in the window, based on HyperLogLog sketches with 2^P registers per sub-window; the maximum of
+	 * the closed and the current registers and the harmonic sum of the estimate are maintained incrementally
+	 *
+	 */
+	public static class Distinct extends SketchWindow {
+
+		private static final int P = 10;
+		private static final int M = 1 << P;
+		private static final double ALPHA = 0.7213 / (1 + 1.079 / M);
+
+		private final byte[][] registers;
+		private final byte[] closed = new byte[M];
+		private final byte[] combined = new byte[M];
+		private double sum = M;
+		private int zeros = M;
+
+		public Distinct(int length, long duration) {
+			super(length, duration);
+			registers = new byte[BLOCKS + 1][];
+		}
+
+		/**
+		 * approximate number of distinct values in the window
+		 *
+		 * @return
+		 */
+		public double estimate() {
+			final double estimate = ALPHA * M * M / sum;
+			if (estimate <= 2.5 * M && zeros > 0) {
+				// linear counting for small cardinalities
+				return Math.round(M * Math.log((double) M / zeros));
+			}
+			return Math.round(estimate);
+		}
+
+		@Override
+		protected void clearBlock(int block) {
+			registers[block] = null;
+		}
+
+		@Override
+		protected void addToBlock(int block, double value) {
+			if (registers[block] == null) {
+				registers[block] = new byte[M];
+			}
+
+			// 64-bit hash of the value (-0.0 and 0.0 are the same value)
+			long h = Double.doubleToLongBits(value + 0.0);
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb9fe1a85ec53L;
+			h ^= h >>> 33;
+
+			final int index = (int) (h >>> (64 - P));
+			final byte rank = (byte) (Long.numberOfLeadingZeros((h << P) | (1L << (P - 1))) + 1);
+			if (rank > registers[block][index]) {
+				registers[block][index] = rank;
+				if (rank > combined[index]) {
+					update(index, rank);
+				}
+			}
+		}
+
+		@Override
+		protected void rebuild(int current, int oldest, int ring) {
+			Arrays.fill(closed, (byte) 0);
+			for (int block = oldest; block != current; block = (block + 1) % ring) {
+				if (registers[block] != null) {
+					for (int i = 0; i < M; i++) {
+						closed[i] = (byte) Math.max(closed[i], registers[block][i]);
+					}
+				}
+			}
+
+			sum = 0;
+			zeros = 0;
+			final byte[] currentRegisters = registers[current];
+			for (int i = 0; i < M; i++) {
+				combined[i] = currentRegisters != null ? (byte) Math.max(closed[i], currentRegisters[i]) : closed[i];
+				sum += Math.scalb(1.0, -combined[i]);
+				if (combined[i] == 0) {
+					zeros++;
+				}
+			}
+		}
+
+		private void update(int index, byte rank) {
+			sum += Math.scalb(1.0, -rank) - Math.scalb(1.0, -combined[index]);
+			if (combined[index] == 0) {
+				zeros--;
+			}
+			combined[index] = rank;
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package nl.tue.id.oocsi.server.model;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * sliding window over the last n samples or the samples of the last t ms, with incrementally maintained aggregates:
+ * running sum, Welford mean and variance, and monotonic deques for minimum and maximum. Adding a sample costs O(1)
+ * (amortized) regardless of the window size. Not thread-safe.
+ *
+ */
+public class SlidingWindow {
+
+	// upper bound of samples in a window
+	public static final int MAX_SAMPLES = 1 << 16;
+
+	// recompute sum and variance from scratch after this many evictions to avoid drift
+	private static final int RECOMPUTE_INTERVAL = 1 << 16;
+
+	private static final Pattern DURATION = Pattern.compile("\\s*(\\d+(?:\\.\\d+)?)\\s*(ms|s|m|h)\\s*");
+
+	// maximum number of samples (count window) or duration in ms (time window)
+	private final int length;
+	private final long duration;
+
+	// samples, indexed by sequence number & mask
+	private double[] values;
+	private long[] times;
+	private int mask;
+
+	// sequence numbers of the oldest and the next sample
+	private long first = 0;
+	private long next = 0;
+
+	// aggregates
+	private double sum = 0;
+	private double mean = 0;
+	private double m2 = 0;
+	private int evictions = 0;
+
+	// monotonic deques of sequence numbers for minimum (ascending values) and maximum (descending values)
+	private long[] minDeque;
+	private long[] maxDeque;
+	private long minHead, minTail, maxHead, maxTail;
+
+	private SlidingWindow(int length, long duration, int capacity) {
+		this.length = length;
+		this.duration = duration;
+		allocate(capacity);
+	}
+
+	/**
+	 * create window over the last <code>length</code> samples
+	 *
+	 * @param length
+	 * @return
+	 */
+	public static SlidingWindow ofLength(int length) {
+		length = Math.max(1, Math.min(length, MAX_SAMPLES));
+		return new SlidingWindow(length, 0, Integer.highestOneBit(length * 2 - 1));
+	}
+
+	/**
+	 * create window over the samples of the last <code>duration</code> ms
+	 *
+	 * @param duration
+	 * @return
+	 */
+	public static SlidingWindow ofDuration(long duration) {
+		return new SlidingWindow(MAX_SAMPLES, Math.max(1, duration), 16);
+	}
+
+	/**
+	 * parse a window duration such as "250ms", "5s", "1.5m" or "1h"
+	 *
+	 * @param duration
+	 * @return duration in ms or -1 if <code>duration</code> is not a valid duration
+	 */
+	public static long parseDuration(String duration) {
+		Matcher m = DURATION.matcher(duration);
+		if (!m.matches()) {
+			return -1;
+		}
+
+		final double value = Double.parseDouble(m.group(1));
+		switch (m.group(2)) {
+		case "h":
+			return (long) (value * 3600000);
+		case "m":
+			return (long) (value * 60000);
+		case "s":
+			return (long) (value * 1000);
+		default:
+			return (long) value;
+		}
+	}
+
+	/**
+	 * add sample at time <code>now</code> (ms), evicting samples that fall out of the window
+	 *
+	 * @param value
+	 * @param now
+	 */
+	public void add(double value, long now) {
+		if (duration > 0) {
+			while (first < next && times[(int) (first & mask)] <= now - duration) {
+				evict();
+			}
+		}
+		if (size() == length) {
+			evict();
+		} else if (size() == values.length) {
+			allocate(values.length * 2);
+		}
+
+		// append sample
+		final long seq = next++;
+		values[(int) (seq & mask)] = value;
+		if (times != null) {
+			times[(int) (seq & mask)] = now;
+		}
+
+		sum += value;
+		final int n = size();
+		final double delta = value - mean;
+		mean += delta / n;
+		m2 += delta * (value - mean);
+
+		// drop samples from the back of the deques that can no longer become minimum or maximum
+		while (minTail > minHead && values[(int) (minDeque[(int) ((minTail - 1) & mask)] & mask)] >= value) {
+			minTail--;
+		}
+		minDeque[(int) (minTail++ & mask)] = seq;
+		while (maxTail > maxHead && values[(int) (maxDeque[(int) ((maxTail - 1) & mask)] & mask)] <= value) {
+			maxTail--;
+		}
+		maxDeque[(int) (maxTail++ & mask)] = seq;
+	}
+
+	/**
+	 * number of samples in the window
+	 *
+	 * @return
+	 */
+	public int size() {
+		return (int) (next - first);
+	}
+
+	public double sum() {
+		return sum;
+	}
+
+	/**
+	 * mean over the window length: a count window that is not filled yet counts the missing samples as 0, a time
+	 * window has no fixed length and averages the samples it holds
+	 *
+	 * @return
+	 */
+	public double mean() {
+		return size() > 0 ? sum / windowLength() : 0;
+	}
+
+	/**
+	 * standard deviation of the samples in the window around mean(), over the window length
+	 *
+	 * @return
+	 */
+	public double stdev() {
+		if (size() == 0) {
+			return 0;
+		}
+
+		// squared deviations from mean() follow from those around the mean of the samples held
+		final double shift = mean - mean();
+		return Math.sqrt(Math.max(0, m2 + size() * shift * shift) / windowLength());
+	}
+
+	public double min() {
+		return minTail > minHead ? values[(int) (minDeque[(int) (minHead & mask)] & mask)] : 0;
+	}
+
+	public double max() {
+		return maxTail > maxHead ? values[(int) (maxDeque[(int) (maxHead & mask)] & mask)] : 0;
+	}
+
+	private int windowLength() {
+		return duration > 0 ? size() : length;
+	}
+
+	/**
+	 * remove the oldest sample
+	 *
+	 */
+	private void evict() {
+		final long seq = first++;
+		final double value = values[(int) (seq & mask)];
+
+		sum -= value;
+		final int n = size();
+		if (n == 0) {
+			mean = 0;
+			m2 = 0;
+		} else {
+			final double delta = value - mean;
+			mean -= delta / n;
+			m2 -= delta * (value - mean);
+		}
+
+		if (minTail > minHead && minDeque[(int) (minHead & mask)] == seq) {
+			minHead++;
+		}
+		if (maxTail > maxHead && maxDeque[(int) (maxHead & mask)] == seq) {
+			maxHead++;
+		}
+
+		if (++evictions == RECOMPUTE_INTERVAL) {
+			evictions = 0;
+			recompute();
+		}
+	}
+
+	/**
+	 * recompute sum, mean and variance from the samples in the window
+	 *
+	 */
+	private void recompute() {
+		sum = 0;
+		mean = 0;
+		m2 = 0;
+		int n = 0;
+		for (long seq = first; seq < next; seq++) {
+			final double value = values[(int) (seq & mask)];
+			sum += value;
+			n++;
+			final double delta = value - mean;
+			mean += delta / n;
+			m2 += delta * (value - mean);
+		}
+	}
+
+	/**
+	 * (re-)allocate buffers with the given capacity (power of two), keeping the samples and deques
+	 *
+	 * @param capacity
+	 */
+	private void allocate(int capacity) {
+		final double[] oldValues = values;
+		final long[] oldTimes = times, oldMin = minDeque, oldMax = maxDeque;
+		final int oldMask = mask;
+
+		values = new double[capacity];
+		times = duration > 0 ? new long[capacity] : null;
+		minDeque = new long[capacity];
+		maxDeque = new long[capacity];
+		mask = capacity - 1;
+
+		if (oldValues != null) {
+			for (long seq = first; seq < next; seq++) {
+				values[(int) (seq & mask)] = oldValues[(int) (seq & oldMask)];
+				if (times != null) {
+					times[(int) (seq & mask)] = oldTimes[(int) (seq & oldMask)];
+				}
+			}
+			for (long i = minHead; i < minTail; i++) {
+				minDeque[(int) (i & mask)] = oldMin[(int) (i & oldMask)];
+			}
+			for (long i = maxHead; i < maxTail; i++) {
+				maxDeque[(int) (i & mask)] = oldMax[(int) (i & oldMask)];
+			}
+		}
+	}
+}
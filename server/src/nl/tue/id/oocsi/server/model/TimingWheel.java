@@ -0,0 +1,135 @@
+package nl.tue.id.oocsi.server.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * hashed timing wheel for deadlines (client liveness, channel clean-up): scheduling is O(1) and every tick only
+ * visits the timeouts in one slot; deadlines beyond one revolution of the wheel wait for the respective number of
+ * rounds. Tasks are re-armed lazily: an expired task returns its next deadline (e.g., computed from the last activity
+ * of a client), so that frequent activity does not touch the wheel at all.
+ *
+ */
+public class TimingWheel {
+
+	private final long tickMillis;
+	private final Timeout[] slots;
+
+	// time and slot of the last tick
+	private long time;
+	private int cursor = 0;
+
+	/**
+	 * create timing wheel with tick duration and number of slots
+	 *
+	 * @param tickMillis
+	 * @param slots
+	 */
+	public TimingWheel(long tickMillis, int slots) {
+		this.tickMillis = tickMillis;
+		this.slots = new Timeout[slots];
+		this.time = System.currentTimeMillis();
+	}
+
+	/**
+	 * schedule task for the given deadline (in ms)
+	 *
+	 * @param deadline
+	 * @param task
+	 */
+	public synchronized void schedule(long deadline, Task task) {
+		insert(new Timeout(task), deadline);
+	}
+
+	/**
+	 * advance the wheel to <code>now</code> and run all expired tasks on the calling thread
+	 *
+	 * @param now
+	 */
+	public void advance(long now) {
+		final List<Timeout> expired = new ArrayList<Timeout>();
+		synchronized (this) {
+			while (time + tickMillis <= now) {
+				time += tickMillis;
+				cursor = (cursor + 1) % slots.length;
+
+				// unlink expired timeouts from the current slot
+				Timeout previous = null;
+				for (Timeout timeout = slots[cursor]; timeout != null;) {
+					final Timeout next = timeout.next;
+					if (timeout.rounds > 0) {
+						timeout.rounds--;
+						previous = timeout;
+					} else {
+						if (previous == null) {
+							slots[cursor] = next;
+						} else {
+							previous.next = next;
+						}
+						timeout.next = null;
+						expired.add(timeout);
+					}
+					timeout = next;
+				}
+			}
+		}
+
+		// run tasks outside of the lock and re-arm if requested
+		for (Timeout timeout : expired) {
+			long deadline = 0;
+			try {
+				deadline = timeout.task.expire(now);
+			} catch (Exception e) {
+				// drop failing task
+			}
+			if (deadline > 0) {
+				synchronized (this) {
+					insert(timeout, deadline);
+				}
+			}
+		}
+	}
+
+	/**
+	 * insert timeout into the slot of its deadline, at least one tick ahead
+	 *
+	 * @param timeout
+	 * @param deadline
+	 */
+	private void insert(Timeout timeout, long deadline) {
+		final long ticks = Math.max(1, (deadline - time + tickMillis - 1) / tickMillis);
+		final int slot = (int) ((cursor + ticks) % slots.length);
+		timeout.rounds = (ticks - 1) / slots.length;
+		timeout.next = slots[slot];
+		slots[slot] = timeout;
+	}
+
+	/**
+	 * task that is run when its deadline expires
+	 *
+	 */
+	public static interface Task {
+
+		/**
+		 * run task
+		 *
+		 * @param now
+		 * @return next deadline of this task or 0 to remove it
+		 */
+		public long expire(long now);
+	}
+
+	/**
+	 * scheduled task in a slot of the wheel
+	 *
+	 */
+	private static final class Timeout {
+		final Task task;
+		long rounds;
+		Timeout next;
+
+		Timeout(Task task) {
+			this.task = task;
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package nl.tue.id.oocsi.server.model;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * trie of wildcard channels for hierarchical channel names (levels separated by '/'); in a wildcard channel name, '+'
+ * matches exactly one level and '#' (only as last level) matches all remaining levels, e.g., "building/+/temperature"
+ * or "building/#"
+ *
+ */
+class TopicTrie {
+
+	static final char SEPARATOR = '/';
+	static final String SINGLE_LEVEL = "+";
+	static final String MULTI_LEVEL = "#";
+
+	private final Node root = new Node();
+	private volatile int size = 0;
+
+	/**
+	 * check whether a channel name contains wildcard levels
+	 *
+	 * @param name
+	 * @return
+	 */
+	static boolean isWildcard(String name) {
+		int start = 0;
+		while (start <= name.length()) {
+			int end = name.indexOf(SEPARATOR, start);
+			if (end < 0) {
+				end = name.length();
+			}
+			if (end - start == 1 && (name.charAt(start) == '+' || name.charAt(start) == '#')) {
+				return true;
+			}
+			start = end + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * check whether the (non-wildcard) channel <code>name</code> matches <code>pattern</code>, which can be a wildcard
+	 * channel name
+	 *
+	 * @param pattern
+	 * @param name
+	 * @return
+	 */
+	static boolean matches(String pattern, String name) {
+		int p = 0, n = 0;
+		while (p <= pattern.length()) {
+			int pEnd = pattern.indexOf(SEPARATOR, p);
+			if (pEnd < 0) {
+				pEnd = pattern.length();
+			}
+			final String level = pattern.substring(p, pEnd);
+
+			// '#' matches all remaining levels, including the parent level itself ("a/#" matches "a")
+			if (level.equals(MULTI_LEVEL)) {
+				return true;
+			}
+
+			// all levels of the name consumed
+			if (n > name.length()) {
+				return false;
+			}
+			int nEnd = name.indexOf(SEPARATOR, n);
+			if (nEnd < 0) {
+				nEnd = name.length();
+			}
+			if (!level.equals(SINGLE_LEVEL) && !level.equals(name.substring(n, nEnd))) {
+				return false;
+			}
+
+			p = pEnd + 1;
+			n = nEnd + 1;
+		}
+		return n > name.length();
+	}
+
+	/**
+	 * add a wildcard channel under its name
+	 *
+	 * @param channel
+	 */
+	synchronized void add(Channel channel) {
+		final String name = channel.getName();
+		Node node = root;
+		int start = 0;
+		while (start <= name.length()) {
+			int end = name.indexOf(SEPARATOR, start);
+			if (end < 0) {
+				end = name.length();
+			}
+			node = node.children.computeIfAbsent(name.substring(start, end), k -> new Node());
+			start = end + 1;
+		}
+
+		if (node.channel == null) {
+			size++;
+		}
+		node.channel = channel;
+	}
+
+	/**
+	 * remove all channels that match the given predicate
+	 *
+	 * @param filter
+	 */
+	synchronized void removeIf(Predicate<Channel> filter) {
+		if (size > 0) {
+			removeIf(root, filter);
+		}
+	}
+
+	/**
+	 * check whether there are any wildcard channels
+	 *
+	 * @return
+	 */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * call <code>action</code> for every wildcard channel that matches the given (non-wildcard) channel name
+	 *
+	 * @param name
+	 * @param action
+	 * @return number of matching channels
+	 */
+	int match(String name, Consumer<Channel> action) {
+		return size == 0 ? 0 : match(root, name, 0, action);
+	}
+
+	private int match(Node node, String name, int start, Consumer<Channel> action) {
+		int matches = 0;
+
+		// '#' matches all remaining levels, including the parent level itself ("a/#" matches "a")
+		Node multi = node.children.get(MULTI_LEVEL);
+		if (multi != null && multi.channel != null) {
+			action.accept(multi.channel);
+			matches++;
+		}
+
+		// all levels consumed
+		if (start > name.length()) {
+			Channel channel = node.channel;
+			if (channel != null && node != root) {
+				action.accept(channel);
+				matches++;
+			}
+			return matches;
+		}
+
+		int end = name.indexOf(SEPARATOR, start);
+		if (end < 0) {
+			end = name.length();
+		}
+
+		Node exact = node.children.get(name.substring(start, end));
+		if (exact != null) {
+			matches += match(exact, name, end + 1, action);
+		}
+		Node single = node.children.get(SINGLE_LEVEL);
+		if (single != null) {
+			matches += match(single, name, end + 1, action);
+		}
+
+		return matches;
+	}
+
+	/**
+	 * remove matching channels below <code>node</code> and prune empty nodes
+	 *
+	 * @param node
+	 * @param filter
+	 * @return true if the node is empty now
+	 */
+	private boolean removeIf(Node node, Predicate<Channel> filter) {
+		node.children.values().removeIf(child -> removeIf(child, filter));
+
+		if (node.channel != null && filter.test(node.channel)) {
+			node.channel = null;
+			size--;
+		}
+
+		return node.channel == null && node.children.isEmpty();
+	}
+
+	/**
+	 * level of the trie
+	 *
+	 */
+	private static final class Node {
+		final Map<String, Node> children = new ConcurrentHashMap<String, Node>();
+		volatile Channel channel;
+	}
+}
@@ -0,0 +1,126 @@
+package nl.tue.id.oocsi.server.model;
+
+/**
+ * aggregates that are available as window functions: <code>function(value, length)</code> with a sample count or a
+ * duration string such as "5s", and <code>quantile(value, q, length)</code> for an arbitrary quantile q (0..1). Sum,
+ * mean, standard deviation, minimum and maximum are exact ({@link SlidingWindow}), quantiles and distinct counts are
+ * approximated with bounded-memory sketches ({@link SketchWindow}).
+ *
+ */
+public enum WindowAggregate {
+	SUM("sum"), MEAN("mean"), STDEV("stdev"), MIN("emin"), MAX("emax"), MEDIAN("median"), P95("p95"), P99("p99"),
+	QUANTILE("quantile"), DISTINCT("distinct");
+
+	/**
+	 * window state of a single window function call, not thread-safe
+	 *
+	 */
+	public static interface Window {
+
+		/**
+		 * add sample at time <code>now</code> (ms)
+		 *
+		 * @param value
+		 * @param now
+		 * @return aggregate of the window including the new sample
+		 */
+		double add(double value, long now);
+	}
+
+	private final String function;
+
+	private WindowAggregate(String function) {
+		this.function = function;
+	}
+
+	/**
+	 * name of the window function
+	 *
+	 * @return
+	 */
+	public String function() {
+		return function;
+	}
+
+	/**
+	 * check whether the window function takes a quantile parameter before the window length
+	 *
+	 * @return
+	 */
+	public boolean hasQuantile() {
+		return this == QUANTILE;
+	}
+
+	/**
+	 * create window over the last <code>length</code> samples or, if <code>duration</code> is positive, the samples of
+	 * the last <code>duration</code> ms
+	 *
+	 * @param length
+	 * @param duration
+	 * @param quantile quantile (0..1), only used for QUANTILE
+	 * @return
+	 */
+	public Window create(int length, long duration, double quantile) {
+		switch (this) {
+		case MEDIAN:
+			return quantiles(length, duration, 0.5);
+		case P95:
+			return quantiles(length, duration, 0.95);
+		case P99:
+			return quantiles(length, duration, 0.99);
+		case QUANTILE:
+			return quantiles(length, duration, quantile);
+		case DISTINCT:
+			final SketchWindow.Distinct distinct = new SketchWindow.Distinct(length, duration);
+			return (value, now) -> {
+				distinct.add(value, now);
+				return distinct.estimate();
+			};
+		default:
+			final SlidingWindow window = duration > 0 ? SlidingWindow.ofDuration(duration)
+			        : SlidingWindow.ofLength(length);
+			return (value, now) -> {
+				window.add(value, now);
+				return of(window);
+			};
+		}
+	}
+
+	private static Window quantiles(int length, long duration, double quantile) {
+		final SketchWindow.Quantiles window = new SketchWindow.Quantiles(length, duration);
+		return (value, now) -> {
+			window.add(value, now);
+			return window.quantile(quantile);
+		};
+	}
+
+	private double of(SlidingWindow window) {
+		switch (this) {
+		case SUM:
+			return window.sum();
+		case MEAN:
+			return window.mean();
+		case STDEV:
+			return window.stdev();
+		case MIN:
+			return window.min();
+		default:
+			return window.max();
+		}
+	}
+
+	/**
+	 * retrieve the aggregate for a window function name (case-insensitive)
+	 *
+	 * @param function
+	 * @return aggregate or null if there is no such window function
+	 */
+	public static WindowAggregate forFunction(String function) {
+		for (WindowAggregate aggregate : values()) {
+			if (aggregate.function.equalsIgnoreCase(function)) {
+				return aggregate;
+			}
+		}
+		return null;
+	}
+}
@@ -1,9 +1,11 @@
 package nl.tue.id.oocsi.server.protocol;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
 
 /**
  * general message for the OOCSI protocol
@@ -29,6 +31,14 @@ public class Message implements Serializable {
 	 * message attribute key to flag a message that should be delivered with a delay (in at least n seconds)
 	 */
 	public static final String SCHEDULE_MESSAGE = "_SCHEDULE";
+	/**
+	 * message attribute key to identify calls and their responses
+	 */
+	public static final String MESSAGE_HANDLE = "_MESSAGE_HANDLE";
+	/**
+	 * number of wire formats for which encoded frames are cached
+	 */
+	public static final int MAX_ENCODINGS = 8;
 
 	/**
 	 * id of sender (individual client)
@@ -44,13 +54,30 @@ public class Message implements Serializable {
 	 */
 	private Date timestamp;
 	/**
-	 * data payload of message
+	 * data payload of message (null as long as a raw payload has not been parsed); immutable and shared between clones
+	 */
+	private volatile Payload data;
+	/**
+	 * original JSON payload (an object) as received from the sender, used for relaying the message without encoding
+	 * it again; null if not available or if the data was changed
+	 */
+	private volatile byte[] raw;
+	/**
+	 * reserved attributes (keys starting with '_') of a raw payload, available without parsing the payload
+	 */
+	private Map<String, Object> reserved;
+	/**
+	 * size of the payload in bytes as received (0 if unknown)
 	 */
-	public Map<String, Object> data;
+	private int size;
 	/**
 	 * until when the message is valid (used for retained messages)
 	 */
 	public Date validUntil;
+	/**
+	 * encoded frames of this message per wire format, shared by all recipients that use the same format
+	 */
+	private transient volatile AtomicReferenceArray<ByteBuffer> encodings;
 
 	/**
 	 * create message from sender and recipient
@@ -73,7 +100,26 @@ public class Message implements Serializable {
 		this.sender = sender;
 		this.recipient = recipient;
 		this.timestamp = timestamp;
-		this.data = new ConcurrentHashMap<String, Object>();
+		this.data = Payload.EMPTY;
+	}
+
+	/**
+	 * create message with a raw JSON payload that is only parsed when the data is needed
+	 * 
+	 * @param sender
+	 * @param recipient
+	 * @param timestamp
+	 * @param raw       JSON object payload, must not be changed afterwards
+	 * @param reserved  reserved attributes of the payload
+	 * @return
+	 */
+	public static Message fromRaw(String sender, String recipient, Date timestamp, byte[] raw,
+	        Map<String, Object> reserved) {
+		Message message = new Message(sender, recipient, timestamp);
+		message.data = null;
+		message.raw = raw;
+		message.reserved = reserved;
+		return message;
 	}
 
 	/**
@@ -86,9 +132,7 @@ public class Message implements Serializable {
 	 */
 	public Message(String sender, String recipient, Date timestamp, Map<String, Object> data) {
 		this(sender, recipient, timestamp);
-		if (data != null) {
-			this.data.putAll(data);
-		}
+		this.data = Payload.of(data);
 	}
 
 	public String getSender() {
@@ -103,6 +147,66 @@ public class Message implements Serializable {
 		return timestamp;
 	}
 
+	/**
+	 * retrieve the (read-only) data payload of this message; a raw payload is parsed on first access
+	 * 
+	 * @return
+	 */
+	public Map<String, Object> getData() {
+		Payload result = data;
+		if (result == null) {
+			synchronized (this) {
+				result = data;
+				if (result == null) {
+					final byte[] payload = raw;
+					data = result = Protocol.parseJSONMessage(payload, 0, payload.length);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * retrieve a single value from the payload; reserved attributes (keys starting with '_') of a raw payload are
+	 * available without parsing the payload
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public Object get(String key) {
+		if (data == null && reserved != null && key.startsWith("_")) {
+			return reserved.get(key);
+		}
+		return getData().get(key);
+	}
+
+	/**
+	 * retrieve the size of the payload in bytes as received, or 0 if unknown
+	 * 
+	 * @return
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * set the size of the payload in bytes as received
+	 * 
+	 * @param size
+	 */
+	public void setSize(int size) {
+		this.size = size;
+	}
+
+	/**
+	 * retrieve the original JSON payload if the message can be relayed as is, otherwise null
+	 * 
+	 * @return
+	 */
+	public byte[] getRaw() {
+		return raw;
+	}
+
 	/**
 	 * convenience method to add data (as a key/value pair) to an existing message
 	 * 
@@ -110,11 +214,54 @@ public class Message implements Serializable {
 	 * @param value
 	 * @return
 	 */
-	public Message addData(String key, Object value) {
-		this.data.put(key, value);
+	public synchronized Message addData(String key, Object value) {
+		getData();
+		this.data = data.with(key, value);
+		this.raw = null;
+		this.encodings = null;
+		return this;
+	}
+
+	/**
+	 * convenience method to add data (as key/value pairs) to an existing message; the data is added as a single layer
+	 * on top of the existing payload, which is not copied
+	 * 
+	 * @param values
+	 * @return
+	 */
+	public synchronized Message addData(Map<String, Object> values) {
+		getData();
+		this.data = data.with(values);
+		this.raw = null;
+		this.encodings = null;
 		return this;
 	}
 
+	/**
+	 * retrieve the encoded frame of this message for the given wire format; the frame is encoded only once per format
+	 * and returned as a read-only duplicate, so it can be shared between recipients
+	 * 
+	 * @param format  index of the wire format (0 to {@link #MAX_ENCODINGS} - 1)
+	 * @param encoder
+	 * @return
+	 */
+	public ByteBuffer getEncoding(int format, Function<Message, byte[]> encoder) {
+		AtomicReferenceArray<ByteBuffer> cache = encodings;
+		if (cache == null) {
+			encodings = cache = new AtomicReferenceArray<ByteBuffer>(MAX_ENCODINGS);
+		}
+
+		ByteBuffer frame = cache.get(format);
+		if (frame == null) {
+			frame = ByteBuffer.wrap(encoder.apply(this)).asReadOnlyBuffer();
+			if (!cache.compareAndSet(format, null, frame)) {
+				frame = cache.get(format);
+			}
+		}
+
+		return frame.duplicate();
+	}
+
 	/**
 	 * clones with message with a new, given recipient
 	 * 
@@ -122,7 +269,19 @@ public class Message implements Serializable {
 	 * @return
 	 */
 	public Message cloneForRecipient(String recipient) {
-		return new Message(this.sender, recipient, this.timestamp, this.data);
+		final byte[] payload = raw;
+		if (payload != null && data == null) {
+			Message clone = fromRaw(this.sender, recipient, this.timestamp, payload, this.reserved);
+			clone.size = this.size;
+			return clone;
+		}
+
+		// the payload is immutable and can be shared
+		Message clone = new Message(this.sender, recipient, this.timestamp);
+		clone.data = (Payload) getData();
+		clone.raw = payload;
+		clone.size = this.size;
+		return clone;
 	}
 
 	/**
@@ -140,8 +299,8 @@ public class Message implements Serializable {
 	 * @see java.lang.Object#toString()
 	 */
 	public String toString() {
-		return "{sender: " + sender + ", recipient: " + recipient + ", timestamp: " + timestamp + ", data: " + data
-		        + "}";
+		return "{sender: " + sender + ", recipient: " + recipient + ", timestamp: " + timestamp + ", data: "
+		        + getData() + "}";
 	}
 
 }
@@ -0,0 +1,353 @@
+package nl.tue.id.oocsi.server.protocol;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * immutable, compact message payload: a small open-addressing array map with interned keys. Payloads are shared
+ * between messages (e.g., clones for different recipients); adding data creates an overlay layer on top of the shared
+ * payload instead of copying it.
+ *
+ */
+public final class Payload extends AbstractMap<String, Object> implements Serializable {
+
+	private static final long serialVersionUID = 2471596470356021855L;
+
+	/**
+	 * empty payload
+	 */
+	public static final Payload EMPTY = new Payload(new String[0], new Object[0], 0, null);
+
+	// overlays deeper than this are flattened into a single layer
+	private static final int MAX_DEPTH = 8;
+
+	// interned keys, bounded to avoid filling up with one-off keys
+	private static final int MAX_INTERNED_KEYS = 4096;
+	private static final Map<String, String> INTERNED_KEYS = new ConcurrentHashMap<String, String>();
+
+	// open addressing table of this layer (length is 0 or a power of two)
+	private final String[] keys;
+	private final Object[] values;
+	private final int layerSize;
+
+	// shadowed layer below this one
+	private final Payload parent;
+	private final int depth;
+	private final int size;
+
+	private transient Set<Map.Entry<String, Object>> entrySet;
+
+	private Payload(String[] keys, Object[] values, int layerSize, Payload parent) {
+		this.keys = keys;
+		this.values = values;
+		this.layerSize = layerSize;
+		this.parent = parent;
+		this.depth = parent == null ? 0 : parent.depth + 1;
+
+		// count entries of the parent that are not shadowed by this layer
+		int count = layerSize;
+		if (parent != null) {
+			count += parent.size;
+			for (String key : keys) {
+				if (key != null && parent.containsKey(key)) {
+					count--;
+				}
+			}
+		}
+		this.size = count;
+	}
+
+	/**
+	 * create a payload from a map; payloads are returned as they are
+	 *
+	 * @param map
+	 * @return
+	 */
+	public static Payload of(Map<String, ?> map) {
+		if (map == null || map.isEmpty()) {
+			return EMPTY;
+		}
+		if (map instanceof Payload) {
+			return (Payload) map;
+		}
+
+		Builder builder = new Builder(map.size());
+		for (Map.Entry<String, ?> entry : map.entrySet()) {
+			builder.put(entry.getKey(), entry.getValue());
+		}
+		return builder.build();
+	}
+
+	/**
+	 * create a new payload with the given key/value pair on top of this payload; this payload is not changed
+	 *
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public Payload with(String key, Object value) {
+		if (key == null || value == null) {
+			return this;
+		}
+
+		return with(new Builder(1).put(key, value).build());
+	}
+
+	/**
+	 * create a new payload with the given key/value pairs as a single layer on top of this payload; this payload is not
+	 * changed
+	 * 
+	 * @param values
+	 * @return
+	 */
+	public Payload with(Map<String, ?> values) {
+		Payload layer = of(values);
+		if (layer.isEmpty()) {
+			return this;
+		}
+		if (this.isEmpty()) {
+			return layer;
+		}
+
+		// flatten deep overlays (or layered values) to keep look-ups short
+		if (depth >= MAX_DEPTH || layer.parent != null) {
+			Builder builder = new Builder(size + layer.size);
+			for (Map.Entry<String, Object> entry : entrySet()) {
+				builder.put(entry.getKey(), entry.getValue());
+			}
+			for (Map.Entry<String, Object> entry : layer.entrySet()) {
+				builder.put(entry.getKey(), entry.getValue());
+			}
+			return builder.build();
+		}
+
+		// share the table of the new layer
+		return new Payload(layer.keys, layer.values, layer.layerSize, this);
+	}
+
+	@Override
+	public Object get(Object key) {
+		if (key == null) {
+			return null;
+		}
+		for (Payload layer = this; layer != null; layer = layer.parent) {
+			int index = layer.indexOf(key);
+			if (index >= 0) {
+				return layer.values[index];
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		Set<Map.Entry<String, Object>> result = entrySet;
+		if (result == null) {
+			entrySet = result = new AbstractSet<Map.Entry<String, Object>>() {
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator() {
+					return new EntryIterator();
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+		return result;
+	}
+
+	/**
+	 * find slot of key in this layer
+	 *
+	 * @param key
+	 * @return
+	 */
+	private int indexOf(Object key) {
+		if (layerSize == 0) {
+			return -1;
+		}
+		final int mask = keys.length - 1;
+		for (int index = spread(key.hashCode()) & mask;; index = (index + 1) & mask) {
+			String k = keys[index];
+			if (k == null) {
+				return -1;
+			}
+			if (k == key || k.equals(key)) {
+				return index;
+			}
+		}
+	}
+
+	/**
+	 * check whether a key is shadowed by any layer above <code>layer</code>
+	 *
+	 * @param key
+	 * @param layer
+	 * @return
+	 */
+	private boolean isShadowed(String key, Payload layer) {
+		for (Payload above = this; above != layer; above = above.parent) {
+			if (above.indexOf(key) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * intern a payload key, so equal keys share one instance and compare by reference
+	 *
+	 * @param key
+	 * @return
+	 */
+	private static String intern(String key) {
+		String interned = INTERNED_KEYS.get(key);
+		if (interned != null) {
+			return interned;
+		}
+		if (INTERNED_KEYS.size() < MAX_INTERNED_KEYS) {
+			interned = INTERNED_KEYS.putIfAbsent(key, key);
+			return interned != null ? interned : key;
+		}
+		return key;
+	}
+
+	/**
+	 * iterates over all visible entries, from the top layer down
+	 *
+	 */
+	private final class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+
+		private Payload layer = Payload.this;
+		private int index = -1;
+
+		EntryIterator() {
+			advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return layer != null;
+		}
+
+		@Override
+		public Map.Entry<String, Object> next() {
+			if (layer == null) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<String, Object> entry = new SimpleImmutableEntry<String, Object>(layer.keys[index],
+			        layer.values[index]);
+			advance();
+			return entry;
+		}
+
+		private void advance() {
+			while (layer != null) {
+				for (index++; index < layer.keys.length; index++) {
+					String key = layer.keys[index];
+					if (key != null && !isShadowed(key, layer)) {
+						return;
+					}
+				}
+				layer = layer.parent;
+				index = -1;
+			}
+		}
+	}
+
+	/**
+	 * builder that collects key/value pairs for a new payload; later values replace earlier ones for the same key
+	 *
+	 */
+	public static final class Builder {
+
+		private String[] keys;
+		private Object[] values;
+		private int count = 0;
+
+		public Builder() {
+			this(8);
+		}
+
+		public Builder(int expectedSize) {
+			keys = new String[Math.max(expectedSize, 1)];
+			values = new Object[keys.length];
+		}
+
+		/**
+		 * add a key/value pair, null keys or values are ignored; if a key is added more than once, the last value is
+		 * kept (duplicates are resolved in {@link #build()})
+		 *
+		 * @param key
+		 * @param value
+		 * @return
+		 */
+		public Builder put(String key, Object value) {
+			if (key == null || value == null) {
+				return this;
+			}
+
+			if (count == keys.length) {
+				String[] newKeys = new String[count * 2];
+				Object[] newValues = new Object[count * 2];
+				System.arraycopy(keys, 0, newKeys, 0, count);
+				System.arraycopy(values, 0, newValues, 0, count);
+				keys = newKeys;
+				values = newValues;
+			}
+			keys[count] = intern(key);
+			values[count] = value;
+			count++;
+			return this;
+		}
+
+		public Payload build() {
+			if (count == 0) {
+				return EMPTY;
+			}
+
+			// table with load factor of at most 0.5
+			int capacity = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+			String[] tableKeys = new String[capacity];
+			Object[] tableValues = new Object[capacity];
+			final int mask = capacity - 1;
+			int size = 0;
+			for (int i = 0; i < count; i++) {
+				int index = spread(keys[i].hashCode()) & mask;
+				while (tableKeys[index] != null && !keys[i].equals(tableKeys[index])) {
+					index = (index + 1) & mask;
+				}
+
+				// later values replace earlier values of the same key
+				if (tableKeys[index] == null) {
+					tableKeys[index] = keys[i];
+					size++;
+				}
+				tableValues[index] = values[i];
+			}
+			return new Payload(tableKeys, tableValues, size, null);
+		}
+	}
+}
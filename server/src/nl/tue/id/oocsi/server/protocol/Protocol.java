@@ -1,22 +1,23 @@
 package nl.tue.id.oocsi.server.protocol;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Date;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonParser.NumberType;
+import com.fasterxml.jackson.core.JsonToken;
 
 import nl.tue.id.oocsi.server.OOCSIServer;
+import nl.tue.id.oocsi.server.metrics.Metrics;
 import nl.tue.id.oocsi.server.model.Channel;
 import nl.tue.id.oocsi.server.model.Client;
 import nl.tue.id.oocsi.server.model.Server;
@@ -30,7 +31,17 @@ import nl.tue.id.oocsi.server.model.Server;
  */
 public class Protocol {
 
+	// shared, thread-safe factory for streaming JSON parsers
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private static final byte[] SEND_PREFIX = "send ".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] SENDRAW_PREFIX = "sendraw ".getBytes(StandardCharsets.US_ASCII);
+
+	// shared, thread-safe format of _SCHEDULE times (local time, optionally with milliseconds)
+	private static final DateTimeFormatter SCHEDULE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss[.SSS]");
+
 	private final Server server;
+	private boolean relayMode = false;
 
 	/**
 	 * create new protocol
@@ -41,6 +52,87 @@ public class Protocol {
 		this.server = server;
 	}
 
+	/**
+	 * process a line of input given as bytes; messages with a JSON payload are parsed straight from the input bytes,
+	 * all other input is handled as a String
+	 * 
+	 * @param sender
+	 * @param input
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public String processInput(Client sender, byte[] input, int offset, int length) {
+		final long start = System.nanoTime();
+
+		// check for send or sendraw with JSON payload: "send[raw] <recipient> {...}"
+		int recipientStart = startsWith(input, offset, length, SENDRAW_PREFIX) ? offset + SENDRAW_PREFIX.length
+		        : startsWith(input, offset, length, SEND_PREFIX) ? offset + SEND_PREFIX.length : -1;
+		if (recipientStart > -1) {
+			final int end = offset + length;
+			int recipientEnd = recipientStart;
+			while (recipientEnd < end && input[recipientEnd] != ' ') {
+				recipientEnd++;
+			}
+
+			int payloadStart = recipientEnd + 1;
+			if (recipientEnd > recipientStart && payloadStart < end && input[payloadStart] == '{') {
+				String recipient = new String(input, recipientStart, recipientEnd - recipientStart,
+				        StandardCharsets.UTF_8);
+
+				// relay mode: keep the payload as is and only scan it for reserved attributes
+				if (relayMode) {
+					Map<String, Object> reserved = new HashMap<String, Object>();
+					byte[] raw = scanJSONMessage(input, payloadStart, end - payloadStart, reserved);
+					if (raw != null) {
+						prepareDispatchMessage(sender, recipient, reserved, raw, raw.length);
+						Metrics.DISPATCH_LATENCY.record((System.nanoTime() - start) / 1000);
+						return "";
+					}
+				}
+
+				prepareDispatchMessage(sender, recipient, parseJSONMessage(input, payloadStart, end - payloadStart),
+				        null, end - payloadStart);
+				Metrics.DISPATCH_LATENCY.record((System.nanoTime() - start) / 1000);
+				return "";
+			}
+		}
+
+		// all other input
+		return processInput(sender, new String(input, offset, length, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * switch relay mode on or off: in relay mode, JSON payloads are not parsed on arrival, but kept as they are and
+	 * parsed only if needed
+	 * 
+	 * @param relayMode
+	 */
+	public void setRelayMode(boolean relayMode) {
+		this.relayMode = relayMode;
+	}
+
+	/**
+	 * check whether the input (from offset with given length) starts with the given prefix
+	 * 
+	 * @param input
+	 * @param offset
+	 * @param length
+	 * @param prefix
+	 * @return
+	 */
+	private static boolean startsWith(byte[] input, int offset, int length, byte[] prefix) {
+		if (length < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (input[offset + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * process a line of input send via the socket
 	 * 
@@ -54,6 +146,8 @@ public class Protocol {
 			return "";
 		}
 
+		final long start = System.nanoTime();
+
 		// close connection request
 		if (inputLine.equals("quit")) {
 			return null;
@@ -74,6 +168,20 @@ public class Protocol {
 		else if (inputLine.equals("clients")) {
 			return server.getClientList();
 		}
+		// replay journaled messages of a channel: "journal <channel> <from> [<to>]" (timestamps in ms)
+		else if (inputLine.startsWith("journal ")) {
+			String[] args = inputLine.split(" ");
+			if (args.length >= 3) {
+				try {
+					long from = Long.parseLong(args[2]);
+					long to = args.length >= 4 ? Long.parseLong(args[3]) : System.currentTimeMillis();
+					// the number of messages is sent after the messages
+					return server.replayJournal(sender, args[1], from, to) ? "" : "-1";
+				} catch (NumberFormatException e) {
+					// ignore broken query
+				}
+			}
+		}
 		// client subscribes to channel
 		else if (inputLine.startsWith("subscribe") && inputLine.contains(" ")) {
 			String channel = inputLine.split(" ", 2)[1];
@@ -92,12 +200,12 @@ public class Protocol {
 				String message = tokens[2];
 
 				if (message.startsWith("{")) {
-					prepareDispatchMessage(sender, recipient, parseJSONMessage(message));
+					prepareDispatchMessage(sender, recipient, parseJSONMessage(message), null, message.length());
 				} else {
-					final Map<String, Object> map = new ConcurrentHashMap<String, Object>();
-					map.put("data", message);
-					prepareDispatchMessage(sender, recipient, map);
+					prepareDispatchMessage(sender, recipient, new Payload.Builder(1).put("data", message).build(), null,
+					        message.length());
 				}
+				Metrics.DISPATCH_LATENCY.record((System.nanoTime() - start) / 1000);
 			}
 		}
 		// create new message from Java serialized input
@@ -117,12 +225,13 @@ public class Protocol {
 						        + "\nRecipient:\n" + recipient + "\n");
 
 						// no function message
-						map = new ConcurrentHashMap<>();
+						map = Payload.EMPTY;
 					}
 
 					// only send if there is useful data
 					if (map != null) {
-						prepareDispatchMessage(sender, recipient, map);
+						prepareDispatchMessage(sender, recipient, map, null, message.length());
+						Metrics.DISPATCH_LATENCY.record((System.nanoTime() - start) / 1000);
 					}
 				}
 			}
@@ -149,39 +258,43 @@ public class Protocol {
 	 * 
 	 * @param sender
 	 * @param recipient
-	 * @param map       message data as map
+	 * @param map       message data as map (only the reserved attributes for raw messages)
+	 * @param raw       raw JSON payload or null
+	 * @param size      size of the payload in bytes
 	 */
-	private void prepareDispatchMessage(Client sender, String recipient, Map<String, Object> map) {
+	private void prepareDispatchMessage(Client sender, String recipient, Map<String, Object> map, byte[] raw,
+	        int size) {
 		final Date now = new Date();
 
 		// check for delayed message by requesting the _DELAY attribute that provides the requested delay in seconds
+		// (fractions of seconds are supported down to milliseconds)
 		if (map.containsKey(Message.DELAY_MESSAGE)) {
-			long delayTimeSec = 0;
+			long delayTimeMs = 0;
 			// check for valid delay time
 			Object delayValue = map.get(Message.DELAY_MESSAGE);
 			// extract delay time from Number
 			try {
 				if (delayValue instanceof Number) {
 					Number delayNr = (Number) delayValue;
-					delayTimeSec = delayNr.longValue();
+					delayTimeMs = Math.round(delayNr.doubleValue() * 1000);
 				}
 				// extract delay time from String
 				else if (delayValue instanceof String) {
 					String delayStr = (String) delayValue;
-					delayTimeSec = Long.parseLong(delayStr);
+					delayTimeMs = Math.round(Double.parseDouble(delayStr) * 1000);
 				}
 			} catch (Exception e) {
 				// do nothing
 			}
 
-			// send with specified delay in seconds
-			if (delayTimeSec > 0) {
-				server.sendDelayedMessage(recipient, new Message(sender.getName(), recipient,
-				        new Date(System.currentTimeMillis() + delayTimeSec * 1000), map));
+			// send with specified delay
+			if (delayTimeMs > 0) {
+				server.sendDelayedMessage(recipient, createMessage(sender.getName(), recipient,
+				        new Date(now.getTime() + delayTimeMs), map, raw, size));
 			}
 			// normal dispatch for broken _DELAY
 			else {
-				dispatchMessage(sender, recipient, now, map);
+				dispatchMessage(sender, recipient, now, map, raw, size);
 			}
 		}
 		// check for scheduled message by requesting the _SCHEDULE attribute that provides the requested schedule time
@@ -191,24 +304,25 @@ public class Protocol {
 			Object scheduleValue = map.get(Message.SCHEDULE_MESSAGE);
 			if (scheduleValue instanceof String) {
 				String scheduleDateStr = (String) scheduleValue;
-				SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 				try {
-					scheduledTime = sdf.parse(scheduleDateStr);
-				} catch (ParseException e) {
+					scheduledTime = Date.from(LocalDateTime.parse(scheduleDateStr.trim(), SCHEDULE_FORMAT)
+					        .atZone(ZoneId.systemDefault()).toInstant());
+				} catch (DateTimeParseException e) {
 					// do nothing
 				}
 			}
 
 			// check schedule time and send
 			if (scheduledTime.after(now)) {
-				server.sendDelayedMessage(recipient, new Message(sender.getName(), recipient, scheduledTime, map));
+				server.sendDelayedMessage(recipient,
+				        createMessage(sender.getName(), recipient, scheduledTime, map, raw, size));
 			} else {
-				dispatchMessage(sender, recipient, now, map);
+				dispatchMessage(sender, recipient, now, map, raw, size);
 			}
 		}
 		// no delay or schedule --> normal dispatch
 		else {
-			dispatchMessage(sender, recipient, now, map);
+			dispatchMessage(sender, recipient, now, map, raw, size);
 		}
 	}
 
@@ -219,63 +333,151 @@ public class Protocol {
 	 * @param recipient
 	 * @param now
 	 * @param map
+	 * @param raw
+	 * @param size
 	 */
-	private void dispatchMessage(Client sender, String recipient, Date now, Map<String, Object> map) {
-		// don't send if channel is null or does not accept message
-		Channel c = server.getChannel(recipient);
-		if (c == null || !c.accept(recipient)) {
+	private void dispatchMessage(Client sender, String recipient, Date now, Map<String, Object> map, byte[] raw,
+	        int size) {
+		// don't send if there is no channel that accepts the message
+		final Message message = createMessage(sender.getName(), recipient, now, map, raw, size);
+		if (!server.dispatch(message)) {
 			// log if not private message
 			if (!Channel.isPrivate(recipient)) {
-				OOCSIServer.logEvent(sender.getName(), recipient, "-", map, now);
+				OOCSIServer.logEvent(recipient, "-", message);
 			}
-			return;
 		}
+	}
 
-		c.send(new Message(sender.getName(), recipient, now, map));
+	/**
+	 * create a message from a parsed payload or from a raw payload and its reserved attributes
+	 * 
+	 * @param sender
+	 * @param recipient
+	 * @param timestamp
+	 * @param map
+	 * @param raw
+	 * @param size
+	 * @return
+	 */
+	private static Message createMessage(String sender, String recipient, Date timestamp, Map<String, Object> map,
+	        byte[] raw, int size) {
+		Message message = raw != null ? Message.fromRaw(sender, recipient, timestamp, raw, map)
+		        : new Message(sender, recipient, timestamp, map);
+		message.setSize(size);
+		return message;
 	}
 
 	/**
-	 * parse a JSON message --> convert JsonNode (ObjectNode) to Map<String, Object> that can later be serialized as
-	 * Json again
+	 * scan a JSON message (from bytes, UTF-8) without parsing it: collects the reserved attributes (top-level keys
+	 * starting with '_' and a scalar value) and returns a copy of the JSON object; returns null if the message is not an
+	 * object or contains one of the attributes that are added when relaying (recipient, timestamp, sender)
 	 * 
 	 * @param message
+	 * @param offset
+	 * @param length
+	 * @param reserved
 	 * @return
 	 */
-	public static Map<String, Object> parseJSONMessage(String message) {
-		Map<String, Object> map = new HashMap<String, Object>();
-		try {
-			ObjectMapper om = new ObjectMapper();
-			JsonNode jn = om.readTree(message);
-			if (jn.isObject()) {
-				ObjectNode on = (ObjectNode) jn;
-				for (Iterator<Entry<String, JsonNode>> iterator = on.fields(); iterator.hasNext();) {
-					Entry<String, JsonNode> entry = iterator.next();
-					JsonNode val = entry.getValue();
-					if (val.isBoolean()) {
-						map.put(entry.getKey(), val.booleanValue());
-					} else if (val.isInt()) {
-						map.put(entry.getKey(), val.intValue());
-					} else if (val.isFloat()) {
-						map.put(entry.getKey(), val.floatValue());
-					} else if (val.isDouble()) {
-						map.put(entry.getKey(), val.doubleValue());
-					} else if (val.isLong()) {
-						map.put(entry.getKey(), val.longValue());
-					} else if (val.isTextual()) {
-						map.put(entry.getKey(), val.textValue());
-					} else if (val.isObject()) {
-						ObjectNode object = (ObjectNode) val;
-						map.put(entry.getKey(), object);
-					} else if (val.isArray()) {
-						ArrayNode array = (ArrayNode) val;
-						map.put(entry.getKey(), array);
+	public static byte[] scanJSONMessage(byte[] message, int offset, int length, Map<String, Object> reserved) {
+		try (JsonParser parser = JSON_FACTORY.createParser(message, offset, length)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return null;
+			}
+
+			String key;
+			while ((key = parser.nextFieldName()) != null) {
+				JsonToken token = parser.nextToken();
+				if (key.startsWith("_")) {
+					// reserved attributes
+					if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+						reserved.put(key, parser.getNumberValue());
+					} else if (token.isScalarValue() && token != JsonToken.VALUE_NULL) {
+						reserved.put(key, token.isBoolean() ? parser.getBooleanValue() : parser.getText());
+					}
+				} else if (key.equals("recipient") || key.equals("timestamp") || key.equals("sender")) {
+					// cannot be relayed as is
+					return null;
+				}
+				parser.skipChildren();
+			}
+
+			// copy exactly the JSON object
+			int end = offset + (int) parser.getCurrentLocation().getByteOffset();
+			return Arrays.copyOfRange(message, offset, end);
+		} catch (IOException e) {
+			// broken JSON
+			return null;
+		}
+	}
+
+	/**
+	 * parse a JSON message into a Map<String, Object> that can later be serialized as Json again
+	 * 
+	 * @param message
+	 * @return
+	 */
+	public static Payload parseJSONMessage(String message) {
+		byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+		return parseJSONMessage(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * parse a JSON message from bytes (UTF-8) into a payload map that can later be serialized as Json again;
+	 * the top-level object is read with a streaming parser, nested objects and arrays are kept as raw JSON
+	 * ({@link RawJsonValue}) and only parsed if needed
+	 * 
+	 * @param message
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public static Payload parseJSONMessage(byte[] message, int offset, int length) {
+		Payload.Builder map = new Payload.Builder();
+		try (JsonParser parser = JSON_FACTORY.createParser(message, offset, length)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return Payload.EMPTY;
+			}
+
+			String key;
+			while ((key = parser.nextFieldName()) != null) {
+				switch (parser.nextToken()) {
+				case VALUE_TRUE:
+					map.put(key, Boolean.TRUE);
+					break;
+				case VALUE_FALSE:
+					map.put(key, Boolean.FALSE);
+					break;
+				case VALUE_NUMBER_INT:
+					if (parser.getNumberType() == NumberType.INT) {
+						map.put(key, parser.getIntValue());
+					} else if (parser.getNumberType() == NumberType.LONG) {
+						map.put(key, parser.getLongValue());
 					}
+					break;
+				case VALUE_NUMBER_FLOAT:
+					map.put(key, parser.getDoubleValue());
+					break;
+				case VALUE_STRING:
+					map.put(key, parser.getText());
+					break;
+				case START_OBJECT:
+				case START_ARRAY:
+					// keep nested values as raw JSON (token offsets are relative to the given offset)
+					int start = offset + (int) parser.getTokenLocation().getByteOffset();
+					parser.skipChildren();
+					int end = offset + (int) parser.getCurrentLocation().getByteOffset();
+					map.put(key, new RawJsonValue(Arrays.copyOfRange(message, start, end)));
+					break;
+				default:
+					// skip null values
+					break;
 				}
 			}
-		} catch (JsonMappingException e) {
-		} catch (JsonProcessingException e) {
+		} catch (IOException e) {
+			// broken JSON
+			return Payload.EMPTY;
 		}
 
-		return map;
+		return map.build();
 	}
 }
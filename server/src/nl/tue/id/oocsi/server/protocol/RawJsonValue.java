@@ -0,0 +1,104 @@
+package nl.tue.id.oocsi.server.protocol;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.node.MissingNode;
+
+/**
+ * nested JSON object or array of a message payload, kept as raw JSON (UTF-8) and only materialized as a JsonNode when
+ * needed; serializes as the raw JSON
+ *
+ */
+public class RawJsonValue implements JsonSerializable, Serializable {
+
+	private static final long serialVersionUID = -3592817263719925301L;
+
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	private final byte[] json;
+	private transient volatile JsonNode node;
+
+	/**
+	 * create from raw JSON bytes (UTF-8), no copy is made
+	 *
+	 * @param json
+	 */
+	public RawJsonValue(byte[] json) {
+		this.json = json;
+	}
+
+	/**
+	 * check whether this is a JSON array
+	 *
+	 * @return
+	 */
+	public boolean isArray() {
+		return json.length > 0 && json[0] == '[';
+	}
+
+	/**
+	 * check whether this is a JSON object
+	 *
+	 * @return
+	 */
+	public boolean isObject() {
+		return json.length > 0 && json[0] == '{';
+	}
+
+	/**
+	 * materialize the JSON as a JsonNode (parsed only once)
+	 *
+	 * @return
+	 */
+	public JsonNode node() {
+		JsonNode result = node;
+		if (result == null) {
+			try {
+				result = OBJECT_MAPPER.readTree(json);
+			} catch (IOException e) {
+				result = MissingNode.getInstance();
+			}
+			node = result;
+		}
+		return result;
+	}
+
+	@Override
+	public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException {
+		gen.writeRawValue(toString());
+	}
+
+	@Override
+	public void serializeWithType(JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer)
+	        throws IOException {
+		serialize(gen, serializers);
+	}
+
+	@Override
+	public int hashCode() {
+		return toString().hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof RawJsonValue && toString().equals(obj.toString());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return new String(json, StandardCharsets.UTF_8);
+	}
+}
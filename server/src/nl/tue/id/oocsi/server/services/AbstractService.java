@@ -54,4 +54,17 @@ abstract public class AbstractService {
 	public String processInput(Client client, String inputLine) {
 		return server.processInput(client, inputLine);
 	}
+
+	/**
+	 * process a line of input given as bytes from a client and return string response
+	 * 
+	 * @param client
+	 * @param input
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public String processInput(Client client, byte[] input, int offset, int length) {
+		return server.processInput(client, input, offset, length);
+	}
 }
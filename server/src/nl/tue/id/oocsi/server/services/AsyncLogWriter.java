@@ -0,0 +1,120 @@
+package nl.tue.id.oocsi.server.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * bounded ring buffer of log entries that is drained by a single background writer thread in batches; producers never
+ * block, entries are dropped (and counted) when the buffer is full. The writer thread is started with the first entry.
+ *
+ * @param <E>
+ */
+public class AsyncLogWriter<E> {
+
+	private final BlockingQueue<E> buffer;
+	private final int maxBatchSize;
+	private final Consumer<List<E>> writer;
+	private final AtomicLong dropped = new AtomicLong();
+
+	private volatile Thread thread;
+
+	/**
+	 * create log writer with buffer capacity and maximum batch size; <code>writer</code> is called with every batch
+	 * on the writer thread
+	 *
+	 * @param capacity
+	 * @param maxBatchSize
+	 * @param writer
+	 */
+	public AsyncLogWriter(int capacity, int maxBatchSize, Consumer<List<E>> writer) {
+		this.buffer = new ArrayBlockingQueue<E>(capacity);
+		this.maxBatchSize = maxBatchSize;
+		this.writer = writer;
+	}
+
+	/**
+	 * append entry to the buffer without blocking
+	 *
+	 * @param entry
+	 * @return false if the buffer is full and the entry was dropped
+	 */
+	public boolean offer(E entry) {
+		if (thread == null) {
+			start();
+		}
+
+		if (!buffer.offer(entry)) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * number of dropped entries since the last call
+	 *
+	 * @return
+	 */
+	public long takeDropped() {
+		return dropped.get() == 0 ? 0 : dropped.getAndSet(0);
+	}
+
+	/**
+	 * write all buffered entries on the calling thread (used on shutdown)
+	 *
+	 */
+	public void flush() {
+		List<E> batch = new ArrayList<E>();
+		while (buffer.drainTo(batch, maxBatchSize) > 0) {
+			write(batch);
+		}
+	}
+
+	/**
+	 * start writer thread once
+	 *
+	 */
+	private synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+
+		Thread t = new Thread(() -> {
+			List<E> batch = new ArrayList<E>(maxBatchSize);
+			while (!Thread.currentThread().isInterrupted()) {
+				try {
+					batch.add(buffer.take());
+					buffer.drainTo(batch, maxBatchSize - 1);
+					write(batch);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}, "OOCSI log writer");
+		t.setDaemon(true);
+		t.start();
+		thread = t;
+
+		// write remaining entries on shutdown
+		Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+	}
+
+	/**
+	 * hand batch to writer (one batch at a time) and clear it
+	 *
+	 * @param batch
+	 */
+	private synchronized void write(List<E> batch) {
+		try {
+			writer.accept(batch);
+		} catch (Exception e) {
+			// keep the writer alive
+		} finally {
+			batch.clear();
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package nl.tue.id.oocsi.server.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * per-connection framing for the NIO read path: reads into a reusable direct buffer and splits the input on byte level
+ * into newline-terminated frames; lines that exceed the maximum line length are dropped up to the next newline
+ *
+ */
+class LineFramer {
+
+	// size of the per-connection direct read buffer
+	static final int READ_BUFFER_SIZE = 2048;
+
+	// line buffers larger than this are released again once they are empty
+	private static final int LINE_BUFFER_RETAIN = 64 * 1024;
+
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	private final int maxLineLength;
+	private final FrameHandler handler;
+
+	private byte[] line = new byte[READ_BUFFER_SIZE];
+	private int lineLength = 0;
+	private boolean discarding = false;
+	private long droppedLines = 0;
+
+	/**
+	 * create a line framer that hands complete frames to <code>handler</code>
+	 *
+	 * @param maxLineLength
+	 * @param handler
+	 */
+	LineFramer(int maxLineLength, FrameHandler handler) {
+		this.maxLineLength = maxLineLength;
+		this.handler = handler;
+	}
+
+	/**
+	 * read available bytes from the channel and hand every complete line to the frame handler; returns the number of
+	 * bytes read or -1 if the channel has reached end-of-stream
+	 *
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	int read(ReadableByteChannel channel) throws IOException {
+		int read = channel.read(readBuffer);
+		if (read <= 0) {
+			return read;
+		}
+
+		// move new input behind the pending partial line
+		readBuffer.flip();
+		int count = readBuffer.remaining();
+		ensureCapacity(lineLength + count);
+		readBuffer.get(line, lineLength, count);
+		readBuffer.clear();
+
+		// scan only the new input for line ends
+		int end = lineLength + count;
+		int start = 0;
+		for (int i = lineLength; i < end; i++) {
+			if (line[i] == '\n') {
+				if (discarding) {
+					discarding = false;
+				} else {
+					emit(start, i);
+				}
+				start = i + 1;
+			}
+		}
+
+		// keep the remainder of the input for the next read, unless it is too long already
+		int rest = end - start;
+		if (discarding || rest > maxLineLength) {
+			if (!discarding) {
+				discarding = true;
+				droppedLines++;
+			}
+			lineLength = 0;
+		} else {
+			if (start > 0 && rest > 0) {
+				System.arraycopy(line, start, line, 0, rest);
+			}
+			lineLength = rest;
+		}
+
+		// release large line buffers
+		if (lineLength == 0 && line.length > LINE_BUFFER_RETAIN) {
+			line = new byte[READ_BUFFER_SIZE];
+		}
+
+		return read;
+	}
+
+	/**
+	 * number of lines that were dropped because they exceeded the maximum line length
+	 *
+	 * @return
+	 */
+	long droppedLines() {
+		return droppedLines;
+	}
+
+	/**
+	 * trim frame from <code>start</code> (inclusive) to <code>end</code> (exclusive) and hand it to the handler
+	 *
+	 * @param start
+	 * @param end
+	 */
+	private void emit(int start, int end) {
+		// remove any whitespace at begin and end
+		while (start < end && (line[start] & 0xff) <= ' ') {
+			start++;
+		}
+		while (end > start && (line[end - 1] & 0xff) <= ' ') {
+			end--;
+		}
+
+		if (end - start > maxLineLength) {
+			droppedLines++;
+		} else if (end > start) {
+			handler.frame(line, start, end - start);
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > line.length) {
+			byte[] newLine = new byte[Math.max(capacity, Math.min(line.length * 2, maxLineLength + READ_BUFFER_SIZE))];
+			System.arraycopy(line, 0, newLine, 0, lineLength);
+			line = newLine;
+		}
+	}
+
+	/**
+	 * receiver of complete frames; the frame bytes are only valid during the call
+	 *
+	 */
+	interface FrameHandler {
+		void frame(byte[] buffer, int offset, int length);
+	}
+}
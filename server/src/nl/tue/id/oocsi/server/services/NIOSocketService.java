@@ -6,24 +6,31 @@ import java.io.ObjectOutputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.MapperFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -33,9 +40,12 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import nl.tue.id.oocsi.server.OOCSIServer;
+import nl.tue.id.oocsi.server.metrics.ClientMetrics;
+import nl.tue.id.oocsi.server.metrics.Metrics;
 import nl.tue.id.oocsi.server.model.Client;
 import nl.tue.id.oocsi.server.model.Server;
 import nl.tue.id.oocsi.server.protocol.Message;
+import nl.tue.id.oocsi.server.protocol.RawJsonValue;
 
 public class NIOSocketService extends AbstractService {
 
@@ -44,10 +54,41 @@ public class NIOSocketService extends AbstractService {
 
 	// current list of connected NIO clients
 	private final Map<SocketChannel, NIOSocketClient> nioClients = new ConcurrentHashMap<>();
-	private final Map<SocketChannel, StringBuffer> nioClientInputBuffer = new ConcurrentHashMap<>();
-	private boolean serverSocketActive = true;
+	private volatile boolean serverSocketActive = true;
 	private ServerSocketChannel serverSocketChannel;
 
+	// worker reactors that handle the connected clients
+	private final int workerCount;
+	private Worker[] workers;
+
+	// maximum length of a single line of input
+	private int maxLineLength = DEFAULT_MAX_LINE_LENGTH;
+	public static final int DEFAULT_MAX_LINE_LENGTH = 1024 * 1024;
+
+	// outbound queue limits per client
+	private long maxQueueBytes = DEFAULT_MAX_QUEUE_BYTES;
+	private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+	private long queueTTL = DEFAULT_QUEUE_TTL;
+	public static final long DEFAULT_MAX_QUEUE_BYTES = 1024 * 1024;
+	public static final long DEFAULT_QUEUE_TTL = 10000;
+
+	// serve metrics in the Prometheus text format for "GET /metrics" requests
+	private boolean metricsEndpoint = false;
+	private final Map<SocketChannel, ByteBuffer> httpResponses = new ConcurrentHashMap<>();
+
+	// shared object mapper for JSON serialization, sorted keys
+	private static final ObjectMapper JSON_OBJECT_MAPPER = JsonMapper.builder()
+	        .configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true)
+	        .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true).build();
+
+	// message encoders per client type
+	private static final Function<Message, byte[]> OOCSI_ENCODER = NIOSocketService::encodeOOCSI;
+	private static final Function<Message, byte[]> JSON_ENCODER = NIOSocketService::encodeJSON;
+	private static final Function<Message, byte[]> PD_ENCODER = NIOSocketService::encodePD;
+
+	// maximum number of buffers written with a single gathering write
+	private static final int GATHER_SIZE = 64;
+
 	/**
 	 * create a TCP socket service for OOCSI based on Java NIO
 	 * 
@@ -55,10 +96,23 @@ public class NIOSocketService extends AbstractService {
 	 * @param port
 	 */
 	public NIOSocketService(Server server, int port, String[] registeredUsers) {
+		this(server, port, registeredUsers, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * create a TCP socket service for OOCSI based on Java NIO with a given number of worker threads (selectors)
+	 * 
+	 * @param server
+	 * @param port
+	 * @param registeredUsers
+	 * @param workerCount
+	 */
+	public NIOSocketService(Server server, int port, String[] registeredUsers, int workerCount) {
 		super(server);
 
 		this.port = port;
 		this.registeredUsers = registeredUsers;
+		this.workerCount = Math.max(1, workerCount);
 	}
 
 	/*
@@ -95,60 +149,73 @@ public class NIOSocketService extends AbstractService {
 		return !client.isPrivate() && super.register(client);
 	}
 
+	/**
+	 * set the maximum length of a single line of input in bytes; longer lines will be dropped
+	 * 
+	 * @param maxLineLength
+	 */
+	public void setMaxLineLength(int maxLineLength) {
+		this.maxLineLength = maxLineLength;
+	}
+
+	/**
+	 * set the byte budget of the outbound queue per client, the policy for slow clients that exceed the budget and the
+	 * time-to-live of queued messages in ms (only used with {@link SlowConsumerPolicy#EXPIRE})
+	 * 
+	 * @param maxQueueBytes
+	 * @param slowConsumerPolicy
+	 * @param queueTTL
+	 */
+	public void setOutboundQueueLimits(long maxQueueBytes, SlowConsumerPolicy slowConsumerPolicy, long queueTTL) {
+		this.maxQueueBytes = maxQueueBytes;
+		this.slowConsumerPolicy = slowConsumerPolicy;
+		this.queueTTL = queueTTL;
+	}
+
+	/**
+	 * switch the metrics endpoint on or off: if on, HTTP requests for "/metrics" on the service port are answered with
+	 * the server metrics in the Prometheus text format
+	 * 
+	 * @param metricsEndpoint
+	 */
+	public void setMetricsEndpoint(boolean metricsEndpoint) {
+		this.metricsEndpoint = metricsEndpoint;
+	}
+
 	@Override
 	public void start() {
 		serverSocketChannel = null;
 		try {
 			serverSocketChannel = ServerSocketChannel.open();
-			serverSocketChannel.configureBlocking(false);
 			ServerSocket serverSocket = serverSocketChannel.socket();
 			serverSocket.setPerformancePreferences(0, 2, 1);
 			serverSocket.setReuseAddress(true);
 			serverSocket.bind(new InetSocketAddress(port));
 
-			Selector selector = Selector.open();
-			serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+			// start worker reactors, one selector each
+			workers = new Worker[workerCount];
+			for (int i = 0; i < workers.length; i++) {
+				workers[i] = new Worker(Selector.open());
+				Thread workerThread = new Thread(workers[i], "OOCSI-NIO-" + i);
+				workerThread.start();
+			}
 
-			// accept and read loop
+			// accept loop: blocks until the next client connects, then hands the connection to a worker
+			int nextWorker = 0;
 			while (serverSocketActive) {
-				// select and just wait briefly if nothing is selected, then repeat
-				if (selector.selectNow() == 0) {
-					try {
-						Thread.sleep(4);
-					} catch (InterruptedException e) {
-					}
-				}
-
-				// if action can be taken, take it
-				for (SelectionKey selectionKey : selector.selectedKeys()) {
-					try {
-						// accept operation
-						if (selectionKey.isAcceptable()) {
-							SocketChannel socketChannel = serverSocketChannel.accept();
-							if (socketChannel != null) {
-								socketChannel.configureBlocking(false);
-								socketChannel.register(selector, SelectionKey.OP_READ);
-								socketChannel.socket().setPerformancePreferences(0, 2, 1);
-								socketChannel.socket().setTcpNoDelay(true);
-							}
-						} else {
-							// read operation
-							if (selectionKey.isValid() && selectionKey.isReadable()) {
-								handleReadOp(selectionKey);
-							}
-
-							// perform write operation, then cancel interest
-							if (selectionKey.isValid() && selectionKey.isWritable()) {
-								handleWriteOp(selectionKey);
-								selectionKey.interestOpsAnd(~SelectionKey.OP_WRITE);
-							}
-						}
-					} catch (Exception e) {
-						e.printStackTrace();
-					}
-
+				SocketChannel socketChannel = serverSocketChannel.accept();
+				if (socketChannel != null) {
+					socketChannel.configureBlocking(false);
+					socketChannel.socket().setPerformancePreferences(0, 2, 1);
+					socketChannel.socket().setTcpNoDelay(true);
+
+					// spread connections over the workers
+					workers[nextWorker].register(socketChannel);
+					nextWorker = (nextWorker + 1) % workers.length;
 				}
 			}
+		} catch (AsynchronousCloseException e) {
+			// server socket was closed by stop(), it's ok
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -161,63 +228,54 @@ public class NIOSocketService extends AbstractService {
 	 */
 	private void handleReadOp(SelectionKey selectionKey) {
 		SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
-		ByteBuffer byteBuffer = ByteBuffer.allocate(1024);
-		int read = 0;
+		LineFramer framer = (LineFramer) selectionKey.attachment();
+		long droppedLines = framer.droppedLines();
 		try {
-			read = socketChannel.read(byteBuffer);
-			if (read == -1) {
+			if (framer.read(socketChannel) == -1) {
 				// if connection is closed by the client
-				if (nioClients.containsKey(socketChannel)) {
-					// remove the client first
-					NIOSocketClient client = nioClients.get(socketChannel);
-					server.removeClient(client);
-					nioClients.remove(socketChannel);
-					nioClientInputBuffer.remove(socketChannel);
-				}
-
-				// then close channel
-				socketChannel.close();
+				closeConnection(socketChannel);
 				return;
 			}
 		} catch (IOException e) {
 			// connection reset
-			if (nioClients.containsKey(socketChannel)) {
-				// remove the client first
-				NIOSocketClient client = nioClients.get(socketChannel);
-				server.removeClient(client);
-				nioClients.remove(socketChannel);
-				nioClientInputBuffer.remove(socketChannel);
-			}
-
-			try {
-				// then close channel
-				socketChannel.close();
-			} catch (IOException e1) {
-			}
+			closeConnection(socketChannel);
 
 			// always return in case of exceptions
 			return;
 		}
 
+		// log lines that were too long to be processed
+		if (framer.droppedLines() > droppedLines) {
+			NIOSocketClient client = nioClients.get(socketChannel);
+			OOCSIServer.log("Dropped input line exceeding " + maxLineLength + " bytes from "
+			        + (client != null ? client.getName() : socketChannel.socket().getInetAddress()));
+		}
+	}
+
+	/**
+	 * process a single frame (one line of input) received from a NIO socket client
+	 * 
+	 * @param selectionKey
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 */
+	private void handleFrame(SelectionKey selectionKey, byte[] buffer, int offset, int length) {
+		SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
+		if (!socketChannel.isOpen() || httpResponses.containsKey(socketChannel)) {
+			return;
+		}
+
 		NIOSocketClient client = nioClients.get(socketChannel);
 		if (client == null) {
-			// do the client init based on read
-			String inputLine = new String(byteBuffer.array(), 0, read);
-			StringBuffer sb = nioClientInputBuffer.computeIfAbsent(socketChannel, s -> new StringBuffer())
-			        .append(inputLine);
-			int nlIndex = sb.indexOf("\n");
-			// if no newline found, buffer input till next read
-			if (nlIndex == -1) {
+			// do the client init based on the first line
+			String inputLine = new String(buffer, offset, length, StandardCharsets.UTF_8);
+
+			// HTTP request for the metrics endpoint
+			if (metricsEndpoint && inputLine.startsWith("GET ")) {
+				respondHTTP(selectionKey, inputLine);
 				return;
 			}
-			// if found, remove this part from the buffer, but keeps the rest of the buffer for further use
-			else {
-				inputLine = sb.substring(0, nlIndex + 1);
-				sb.delete(0, nlIndex + 1);
-			}
-
-			// remove any whitespace at begin and end
-			inputLine = inputLine.trim();
 
 			// check input line for exceptional values that cannot be handled safely
 			// do some filtering for SSH clients connecting and other abuse
@@ -259,6 +317,8 @@ public class NIOSocketService extends AbstractService {
 
 			// register on internal protocol
 			if (register(newClient)) {
+				Metrics.register(newClient.getName(), newClient.metrics);
+
 				// say hi
 				newClient.sayHi();
 
@@ -277,74 +337,141 @@ public class NIOSocketService extends AbstractService {
 				server.removeClient(newClient);
 			}
 		} else {
-			// do the client init based on read
-			String inputLine = new String(byteBuffer.array(), 0, read);
-			StringBuffer sb = nioClientInputBuffer.computeIfAbsent(socketChannel, s -> new StringBuffer())
-			        .append(inputLine);
+			// send data to client
+			client.metrics.received(length);
+			client.processNIOInput(buffer, offset, length);
 
-			// find first newline
-			int nlIndex = sb.indexOf("\n");
-			while (nlIndex > -1) {
-				// if found, remove this part from the buffer, but keeps the rest of the buffer for further use
-				inputLine = sb.substring(0, nlIndex + 1).trim();
-				sb.delete(0, nlIndex + 1);
+			// check if client should be terminated
+			if (!client.isConnected()) {
+				try {
+					socketChannel.write(ByteBuffer.wrap("bye\n".getBytes()));
+					nioClients.remove(socketChannel);
+					socketChannel.close();
+				} catch (IOException e) {
+					// e.printStackTrace();
+				}
+			}
+		}
+	}
 
-				// send data to client
-				client.processNIOInput(inputLine);
+	/**
+	 * remove the client of a closed or reset connection and close the channel
+	 * 
+	 * @param socketChannel
+	 */
+	private void closeConnection(SocketChannel socketChannel) {
+		httpResponses.remove(socketChannel);
 
-				// check if client should be terminated
-				if (!client.isConnected()) {
-					try {
-						socketChannel.write(ByteBuffer.wrap("bye\n".getBytes()));
-						nioClients.remove(socketChannel);
-						nioClientInputBuffer.remove(socketChannel);
-						socketChannel.close();
-					} catch (IOException e) {
-						// e.printStackTrace();
-					}
-				}
+		// remove the client first
+		NIOSocketClient client = nioClients.remove(socketChannel);
+		if (client != null) {
+			server.removeClient(client);
+		}
 
-				// find next newline
-				nlIndex = sb.indexOf("\n");
-			}
+		try {
+			// then close channel
+			socketChannel.close();
+		} catch (IOException e) {
 		}
 	}
 
 	/**
-	 * write pending data to NIO client
+	 * write pending data to NIO client with gathering writes; buffers that could not be written completely stay at the
+	 * head of the queue and write interest is kept only while there is data left to write
 	 * 
 	 * @param selectionKey
+	 * @param gather       reusable array for gathering writes
 	 */
-	private void handleWriteOp(SelectionKey selectionKey) {
+	private void handleWriteOp(SelectionKey selectionKey, ByteBuffer[] gather) {
+		SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
 		try {
-			SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
+			// HTTP response, close after writing it completely
+			ByteBuffer response = httpResponses.get(socketChannel);
+			if (response != null) {
+				socketChannel.write(response);
+				if (!response.hasRemaining()) {
+					closeConnection(socketChannel);
+				}
+				return;
+			}
+
 			NIOSocketClient client = nioClients.get(socketChannel);
-			if (client != null) {
-				if (client.isConnected()) {
-					Queue<ByteBuffer> pendingData = client.pendingData;
-					while (!pendingData.isEmpty() && client.isConnected()) {
-						ByteBuffer buf = pendingData.poll();
-						if (buf != null) {
-							socketChannel.write(buf);
-						}
+			if (client == null) {
+				selectionKey.interestOpsAnd(~SelectionKey.OP_WRITE);
+				return;
+			}
+
+			if (client.isConnected()) {
+				OutboundQueue outbound = client.outbound;
+				boolean socketFull = false;
+				while (!socketFull && client.isConnected()) {
+					// collect buffers from the head of the queue
+					int count = outbound.gather(gather);
+					if (count == 0) {
+						break;
 					}
-				} else {
-					// check if client should be terminated
-					socketChannel.write(ByteBuffer.wrap("bye\n".getBytes()));
-					nioClients.remove(socketChannel);
-					nioClientInputBuffer.remove(socketChannel);
-					socketChannel.close();
+
+					// write as much as the socket takes in one go, then remove completely written buffers
+					try {
+						socketChannel.write(gather, 0, count);
+					} finally {
+						socketFull = !outbound.written(count);
+						Arrays.fill(gather, 0, count, null);
+					}
+				}
+
+				// drop write interest, then check again for data that was queued in the meantime
+				selectionKey.interestOpsAnd(~SelectionKey.OP_WRITE);
+				if (!outbound.isEmpty()) {
+					selectionKey.interestOpsOr(SelectionKey.OP_WRITE);
 				}
+			} else {
+				// check if client should be terminated
+				socketChannel.write(ByteBuffer.wrap("bye\n".getBytes()));
+				nioClients.remove(socketChannel);
+				socketChannel.close();
 			}
 		} catch (ClosedChannelException e) {
 			// it's ok, don't raise alert
 		} catch (IOException e) {
 			// it's ok, don't raise alert
+			httpResponses.remove(socketChannel);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * answer an HTTP request (first line) with the server metrics in the Prometheus text format; the response is
+	 * written by the worker and the connection is closed afterwards
+	 * 
+	 * @param selectionKey
+	 * @param requestLine
+	 */
+	private void respondHTTP(SelectionKey selectionKey, String requestLine) {
+		String[] request = requestLine.split(" ");
+		final String status;
+		final String body;
+		if (request.length > 1 && request[1].equals("/metrics")) {
+			status = "200 OK";
+			body = Metrics.toPrometheus();
+		} else {
+			status = "404 Not Found";
+			body = "not found\n";
+		}
+
+		byte[] content = body.getBytes(StandardCharsets.UTF_8);
+		byte[] header = ("HTTP/1.0 " + status + "\r\nContent-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+		        + "Content-Length: " + content.length + "\r\nConnection: close\r\n\r\n")
+		        .getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer response = ByteBuffer.allocate(header.length + content.length);
+		response.put(header).put(content).flip();
+
+		// stop reading, only write the response
+		httpResponses.put((SocketChannel) selectionKey.channel(), response);
+		selectionKey.interestOps(SelectionKey.OP_WRITE);
+	}
+
 	private String replaceHashesWithDigits(String input) {
 		StringBuilder result = new StringBuilder(input.length());
 		Random RAND = new Random();
@@ -364,6 +491,13 @@ public class NIOSocketService extends AbstractService {
 		// stop loops
 		serverSocketActive = false;
 
+		// stop worker reactors
+		if (workers != null) {
+			for (Worker worker : workers) {
+				worker.stop();
+			}
+		}
+
 		// close server socket
 		if (serverSocketChannel != null) {
 			try {
@@ -375,18 +509,97 @@ public class NIOSocketService extends AbstractService {
 		}
 	}
 
+	/**
+	 * NIO reactor that blocks in select() for its share of the connections and handles their reads and writes
+	 *
+	 */
+	class Worker implements Runnable {
+
+		private final Selector selector;
+		private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<SocketChannel>();
+		private final ByteBuffer[] gather = new ByteBuffer[GATHER_SIZE];
+
+		Worker(Selector selector) {
+			this.selector = selector;
+		}
+
+		/**
+		 * hand a newly accepted connection to this worker; registration happens on the worker thread
+		 * 
+		 * @param socketChannel
+		 */
+		void register(SocketChannel socketChannel) {
+			pendingRegistrations.offer(socketChannel);
+			selector.wakeup();
+		}
+
+		void stop() {
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (serverSocketActive && selector.isOpen()) {
+					// block until there is something to read, something to write or a new connection
+					selector.select();
+
+					// register new connections
+					SocketChannel newChannel;
+					while ((newChannel = pendingRegistrations.poll()) != null) {
+						try {
+							final SelectionKey key = newChannel.register(selector, SelectionKey.OP_READ);
+							key.attach(new LineFramer(maxLineLength,
+							        (buffer, offset, length) -> handleFrame(key, buffer, offset, length)));
+						} catch (ClosedChannelException e) {
+							// client went away already
+						}
+					}
+
+					// take action where possible
+					for (Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext();) {
+						SelectionKey selectionKey = keys.next();
+						keys.remove();
+						try {
+							// read operation
+							if (selectionKey.isValid() && selectionKey.isReadable()) {
+								handleReadOp(selectionKey);
+							}
+
+							// perform write operation
+							if (selectionKey.isValid() && selectionKey.isWritable()) {
+								handleWriteOp(selectionKey, gather);
+							}
+						} catch (CancelledKeyException e) {
+							// connection closed while handling, it's ok
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				// selector was closed by stop(), it's ok
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
 	/**
 	 * Java NIO Socket Client
 	 *
 	 */
 	class NIOSocketClient extends Client {
-		private final ObjectMapper JSON_OBJECT_MAPPER;
-
 		private final ClientType type;
 		private final SelectionKey selectionKey;
 
 		private boolean isConnected = true;
-		private Queue<ByteBuffer> pendingData = new ConcurrentLinkedQueue<ByteBuffer>();
+		private final OutboundQueue outbound = new OutboundQueue(maxQueueBytes, slowConsumerPolicy, queueTTL);
+		private final ClientMetrics metrics = new ClientMetrics(outbound::queuedFrames, outbound::queuedBytes,
+		        outbound::droppedFrames);
 
 		public NIOSocketClient(String token, ChangeListener presence, SelectionKey selectionKey) {
 			super(token.replace(";", "").replace("(JSON)", "").trim(), presence);
@@ -401,10 +614,6 @@ public class NIOSocketService extends AbstractService {
 			} else {
 				this.type = ClientType.OOCSI;
 			}
-
-			// configure and build object mapper
-			JSON_OBJECT_MAPPER = JsonMapper.builder().configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true)
-			        .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true).build();
 		}
 
 		@Override
@@ -427,6 +636,7 @@ public class NIOSocketService extends AbstractService {
 		@Override
 		public void disconnect() {
 			isConnected = false;
+			Metrics.unregister(getName(), metrics);
 		}
 
 		@Override
@@ -444,11 +654,13 @@ public class NIOSocketService extends AbstractService {
 		}
 
 		/**
-		 * receive data in a ByteBuffer, that is, split into lines, then handle the lines separately
+		 * receive a single line of input as bytes and handle it
 		 * 
-		 * @param input
+		 * @param buffer
+		 * @param offset
+		 * @param length
 		 */
-		public void processNIOInput(String message) {
+		public void processNIOInput(byte[] buffer, int offset, int length) {
 
 			// update last action
 			touch();
@@ -457,10 +669,11 @@ public class NIOSocketService extends AbstractService {
 			final String outputLine;
 			if (type == ClientType.PD) {
 				// then process input
-				outputLine = processInput(this, message.replace("'", ",").replace(";", ""));
+				outputLine = processInput(this,
+				        new String(buffer, offset, length, StandardCharsets.UTF_8).replace("'", ",").replace(";", ""));
 			} else {
 				// then process input
-				outputLine = processInput(this, message);
+				outputLine = processInput(this, buffer, offset, length);
 			}
 
 			// write output if necessary
@@ -473,7 +686,8 @@ public class NIOSocketService extends AbstractService {
 		}
 
 		/**
-		 * send message to subscribers
+		 * send message to subscribers; the encoded frame is shared with all other recipients of the message that use the
+		 * same wire format
 		 * 
 		 */
 		@Override
@@ -482,141 +696,299 @@ public class NIOSocketService extends AbstractService {
 			// update last action
 			touch();
 
-			if (type == ClientType.OOCSI) {
-				send("send " + message.getRecipient() + " " + serializeJava(message.data) + " "
-				        + message.getTimestamp().getTime() + " " + message.getSender());
-			} else if (type == ClientType.JSON) {
-				send(serializeJSON(message.data, message.getRecipient(), message.getTimestamp().getTime(),
-				        message.getSender()));
-			} else if (type == ClientType.PD) {
-				send(message.getRecipient() + " timestamp=" + message.getTimestamp().getTime() + " sender="
-				        + message.getSender() + " " + serializePD(message.data));
-			} else {
+			final ByteBuffer frame = encode(message);
+			if (frame == null) {
 				return false;
 			}
+			send(frame, message.getRecipient());
 
 			// log this if recipient is this client exactly
 			if (message.getRecipient().equals(getName())) {
-				OOCSIServer.logEvent(message.getSender(), "", message.getRecipient(), message.data,
-				        message.getTimestamp());
+				OOCSIServer.logEvent("", message.getRecipient(), message);
 			}
 
 			return true;
 		}
 
-		private boolean send(String string) {
-			// clean the pending data queue if there are too many elements to sent out
-			boolean queueFull = false;
-			while (pendingData.size() > 20) {
-				queueFull = true;
-				pendingData.poll();
+		/**
+		 * send message only if the outbound queue stays within half of its budget, so that replays leave room for live
+		 * messages and never cause drops
+		 * 
+		 */
+		@Override
+		public boolean trySend(Message message) {
+			final ByteBuffer frame = encode(message);
+			if (frame == null || !outbound.fits(frame.remaining(), maxQueueBytes / 2)) {
+				return false;
+			}
+			return send(message);
+		}
+
+		@Override
+		public void respond(String response) {
+			send(response);
+		}
+
+		/**
+		 * retrieve the (shared) frame of a message in the wire format of this client
+		 * 
+		 * @param message
+		 * @return frame or null if the client type has no wire format for messages
+		 */
+		private ByteBuffer encode(Message message) {
+			if (type == ClientType.OOCSI) {
+				return message.getEncoding(type.ordinal(), OOCSI_ENCODER);
+			} else if (type == ClientType.JSON) {
+				return message.getEncoding(type.ordinal(), JSON_ENCODER);
+			} else if (type == ClientType.PD) {
+				return message.getEncoding(type.ordinal(), PD_ENCODER);
 			}
+			return null;
+		}
 
+		private boolean send(String string) {
 			if (type == ClientType.PD) {
 				string += ';';
 			}
 
-			ByteBuffer b = ByteBuffer.wrap((string + "\n").getBytes(Charset.defaultCharset()).clone());
-			if (b != null) {
-				pendingData.offer(b);
+			return send(ByteBuffer.wrap((string + "\n").getBytes(StandardCharsets.UTF_8)), null);
+		}
+
+		/**
+		 * queue a frame for the given channel (or null) and signal write interest
+		 * 
+		 * @param frame
+		 * @param channel
+		 * @return
+		 */
+		private boolean send(ByteBuffer frame, String channel) {
+
+			// queue frame, handle slow consumer if the queue is over budget
+			final int size = frame.remaining();
+			boolean accepted = outbound.offer(frame, channel);
+			if (accepted) {
+				metrics.sent(size);
+			} else {
+				if (slowConsumerPolicy == SlowConsumerPolicy.DISCONNECT) {
+					OOCSIServer.log("Client " + getName() + " disconnected, outbound queue exceeds " + maxQueueBytes
+					        + " bytes");
+					disconnect();
+					server.removeClient(this);
+				} else if (outbound.markCongested()) {
+					OOCSIServer.log("Client " + getName() + " is too slow, dropping outbound messages ("
+					        + slowConsumerPolicy + ")");
+				}
 			}
 
-			// signal send interest
-			selectionKey.interestOpsOr(SelectionKey.OP_WRITE);
+			// signal send interest and wake up the worker if it is blocked in select() without write interest
+			try {
+				if ((selectionKey.interestOpsOr(SelectionKey.OP_WRITE) & SelectionKey.OP_WRITE) == 0) {
+					selectionKey.selector().wakeup();
+				}
+			} catch (CancelledKeyException e) {
+				// connection is closed already
+				disconnect();
+				return false;
+			}
 
 			// return if the send was successful because the queue is not full
-			return !queueFull;
+			return accepted;
 		}
 
 		/**
-		 * serialize data for OOCSI clients
+		 * number of frames waiting to be written to this client
 		 * 
-		 * @param data
 		 * @return
 		 */
-		@Deprecated
-		private String serializeJava(Map<String, Object> data) {
-			Map<String, Object> oocsiData = new HashMap<String, Object>();
-			oocsiData.put("error", "Your OOCSI client version is too old, please update.");
-			return serializeOOCSIOutput(oocsiData);
+		public int getQueuedFrames() {
+			return outbound.queuedFrames();
 		}
 
 		/**
-		 * @param data
+		 * number of bytes waiting to be written to this client
+		 * 
 		 * @return
 		 */
-		@Deprecated
-		private String serializeOOCSIOutput(Map<String, Object> data) {
-			// map to serialized java object
-			final ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+		public long getQueuedBytes() {
+			return outbound.queuedBytes();
+		}
+
+		/**
+		 * number of frames dropped for this client because its outbound queue was over budget
+		 * 
+		 * @return
+		 */
+		public long getDroppedFrames() {
+			return outbound.droppedFrames();
+		}
+	}
+
+	/**
+	 * encode message for OOCSI clients
+	 * 
+	 * @param message
+	 * @return
+	 */
+	private static byte[] encodeOOCSI(Message message) {
+		return ("send " + message.getRecipient() + " " + serializeJava(message.getData()) + " "
+		        + message.getTimestamp().getTime() + " " + message.getSender() + "\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * encode message for JSON clients
+	 * 
+	 * @param message
+	 * @return
+	 */
+	private static byte[] encodeJSON(Message message) {
+		// relay the original payload if possible
+		final byte[] raw = message.getRaw();
+		if (raw != null) {
+			return spliceJSON(raw, message.getRecipient(), message.getTimestamp().getTime(), message.getSender());
+		}
+
+		return (serializeJSON(message.getData(), message.getRecipient(), message.getTimestamp().getTime(),
+		        message.getSender()) + "\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * add the OOCSI properties to a raw JSON object payload, without parsing it
+	 * 
+	 * @param raw
+	 * @param recipient
+	 * @param timestamp
+	 * @param sender
+	 * @return
+	 */
+	private static byte[] spliceJSON(byte[] raw, String recipient, long timestamp, String sender) {
+		final JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+
+		// position of closing bracket, and whether the object has fields already
+		int close = raw.length - 1;
+		int last = close - 1;
+		while (last > 0 && raw[last] <= ' ') {
+			last--;
+		}
+		boolean empty = raw[last] == '{';
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(raw.length + recipient.length() + sender.length() + 64);
+		baos.write(raw, 0, close);
+		baos.writeBytes((empty ? "\"recipient\":\"" : ",\"recipient\":\"").getBytes(StandardCharsets.UTF_8));
+		baos.writeBytes(encoder.quoteAsUTF8(recipient));
+		baos.writeBytes(("\",\"timestamp\":" + timestamp + ",\"sender\":\"").getBytes(StandardCharsets.UTF_8));
+		baos.writeBytes(encoder.quoteAsUTF8(sender));
+		baos.writeBytes("\"}\n".getBytes(StandardCharsets.UTF_8));
+		return baos.toByteArray();
+	}
+
+	/**
+	 * encode message for PD clients
+	 * 
+	 * @param message
+	 * @return
+	 */
+	private static byte[] encodePD(Message message) {
+		return (message.getRecipient() + " timestamp=" + message.getTimestamp().getTime() + " sender="
+		        + message.getSender() + " " + serializePD(message.getData()) + ";\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * serialize data for OOCSI clients
+	 * 
+	 * @param data
+	 * @return
+	 */
+	@Deprecated
+	private static String serializeJava(Map<String, Object> data) {
+		Map<String, Object> oocsiData = new HashMap<String, Object>();
+		oocsiData.put("error", "Your OOCSI client version is too old, please update.");
+		return serializeOOCSIOutput(oocsiData);
+	}
+
+	/**
+	 * @param data
+	 * @return
+	 */
+	@Deprecated
+	private static String serializeOOCSIOutput(Map<String, Object> data) {
+		// map to serialized java object
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+		try {
+			final ObjectOutputStream oos = new ObjectOutputStream(baos);
+			oos.writeObject(data);
+			final byte[] rawData = baos.toByteArray();
+			return new String(Base64.getEncoder().encode(rawData));
+		} catch (IOException e) {
 			try {
 				final ObjectOutputStream oos = new ObjectOutputStream(baos);
-				oos.writeObject(data);
+				oos.writeObject(new HashMap<String, Object>());
 				final byte[] rawData = baos.toByteArray();
 				return new String(Base64.getEncoder().encode(rawData));
-			} catch (IOException e) {
-				try {
-					final ObjectOutputStream oos = new ObjectOutputStream(baos);
-					oos.writeObject(new HashMap<String, Object>());
-					final byte[] rawData = baos.toByteArray();
-					return new String(Base64.getEncoder().encode(rawData));
-				} catch (IOException e1) {
-					return "";
-				}
+			} catch (IOException e1) {
+				return "";
 			}
 		}
+	}
 
-		/**
-		 * serialize data for PD clients; this serialization needs to be flat, i.e., all key-value pairs are on the
-		 * highest level; array serialization prioritizes arrays of numbers; strings in array will not work well
-		 * 
-		 * @param data
-		 * @return
-		 */
-		private String serializePD(Map<String, Object> data) {
-			// map to blank separated list
-			StringBuilder sb = new StringBuilder();
-			data.entrySet().stream().sorted((a, b) -> a.getKey().compareToIgnoreCase(b.getKey())).forEach(e -> {
-				String key = e.getKey();
-				Object value = e.getValue();
-				if (value instanceof String) {
-					sb.append(key + "=" + (String) value + " ");
-				} else if (value instanceof ArrayNode) {
-					String joinedArray = StreamSupport.stream(((ArrayNode) value).spliterator(), false)
-					        .map(JsonNode::asText).collect(Collectors.joining(","));
+	/**
+	 * serialize data for PD clients; this serialization needs to be flat, i.e., all key-value pairs are on the highest
+	 * level; array serialization prioritizes arrays of numbers; strings in array will not work well
+	 * 
+	 * @param data
+	 * @return
+	 */
+	private static String serializePD(Map<String, Object> data) {
+		// map to blank separated list
+		StringBuilder sb = new StringBuilder();
+		data.entrySet().stream().sorted((a, b) -> a.getKey().compareToIgnoreCase(b.getKey())).forEach(e -> {
+			String key = e.getKey();
+			Object value = e.getValue();
+			if (value instanceof String) {
+				sb.append(key + "=" + (String) value + " ");
+			} else if (value instanceof RawJsonValue) {
+				JsonNode node = ((RawJsonValue) value).node();
+				if (node.isArray()) {
+					String joinedArray = StreamSupport.stream(node.spliterator(), false).map(JsonNode::asText)
+					        .collect(Collectors.joining(","));
 					sb.append(key + "=" + joinedArray + " ");
 				} else {
-					// otherwise, just toString()
-					sb.append(key + "=" + value.toString() + " ");
+					sb.append(key + "=" + node.toString() + " ");
 				}
-			});
-			return sb.toString();
-		}
+			} else if (value instanceof ArrayNode) {
+				String joinedArray = StreamSupport.stream(((ArrayNode) value).spliterator(), false)
+				        .map(JsonNode::asText).collect(Collectors.joining(","));
+				sb.append(key + "=" + joinedArray + " ");
+			} else {
+				// otherwise, just toString()
+				sb.append(key + "=" + value.toString() + " ");
+			}
+		});
+		return sb.toString();
+	}
 
-		/**
-		 * serialize data for JSON clients
-		 * 
-		 * @param data
-		 * @param recipient
-		 * @param timestamp
-		 * @param sender
-		 * @return
-		 */
-		private String serializeJSON(Map<String, Object> data, String recipient, long timestamp, String sender) {
-			ObjectNode je = JSON_OBJECT_MAPPER.valueToTree(data);
+	/**
+	 * serialize data for JSON clients
+	 * 
+	 * @param data
+	 * @param recipient
+	 * @param timestamp
+	 * @param sender
+	 * @return
+	 */
+	private static String serializeJSON(Map<String, Object> data, String recipient, long timestamp, String sender) {
+		ObjectNode je = JSON_OBJECT_MAPPER.valueToTree(data);
 
-			// add OOCSI properties
-			je.put("recipient", recipient);
-			je.put("timestamp", timestamp);
-			je.put("sender", sender);
+		// add OOCSI properties
+		je.put("recipient", recipient);
+		je.put("timestamp", timestamp);
+		je.put("sender", sender);
 
-			// serialize
-			try {
-				return JSON_OBJECT_MAPPER.writeValueAsString(je);
-			} catch (JsonProcessingException e) {
-				// fall back to normal toString
-				return je.toString();
-			}
+		// serialize
+		try {
+			return JSON_OBJECT_MAPPER.writeValueAsString(je);
+		} catch (JsonProcessingException e) {
+			// fall back to normal toString
+			return je.toString();
 		}
 	}
 
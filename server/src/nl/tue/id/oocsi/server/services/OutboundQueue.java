@@ -0,0 +1,276 @@
+package nl.tue.id.oocsi.server.services;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * outbound frame queue of a single NIO client, bounded by bytes; when the budget is exceeded, the slow-consumer policy
+ * decides which frames are dropped. Frames that are being written (or are partially written) are never dropped.
+ *
+ */
+class OutboundQueue {
+
+	private final ArrayDeque<Frame> frames = new ArrayDeque<Frame>();
+	private final long maxBytes;
+	private final SlowConsumerPolicy policy;
+	private final long ttl;
+
+	// number of frames at the head of the queue that are handed to the writer
+	private int inFlight = 0;
+	private boolean congested = false;
+
+	private volatile long queuedBytes = 0;
+	private volatile int queuedFrames = 0;
+	private volatile long droppedFrames = 0;
+
+	/**
+	 * create queue with byte budget, slow-consumer policy and time-to-live for frames (only used with
+	 * {@link SlowConsumerPolicy#EXPIRE})
+	 *
+	 * @param maxBytes
+	 * @param policy
+	 * @param ttl
+	 */
+	OutboundQueue(long maxBytes, SlowConsumerPolicy policy, long ttl) {
+		this.maxBytes = maxBytes;
+		this.policy = policy;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * add a frame for the given channel (can be null for non-message frames); returns false if the byte budget was
+	 * exceeded, that is, frames were dropped or, with the {@link SlowConsumerPolicy#DISCONNECT} policy, the queued
+	 * frames were discarded and the client should be disconnected
+	 *
+	 * @param buffer
+	 * @param channel
+	 * @return
+	 */
+	synchronized boolean offer(ByteBuffer buffer, String channel) {
+		final Frame frame = new Frame(buffer, channel);
+
+		// clear expired frames first
+		if (policy == SlowConsumerPolicy.EXPIRE) {
+			expire(frame.enqueued - ttl);
+		}
+
+		// normal case: frame fits in the budget (an empty queue takes any frame)
+		if (queuedBytes + frame.size <= maxBytes || frames.isEmpty()) {
+			add(frame);
+			return true;
+		}
+
+		// slow consumer
+		switch (policy) {
+		case DISCONNECT:
+			// the client is disconnected, so the new frame and all queued frames that can be dropped are discarded
+			while (dropOldest()) {
+			}
+			droppedFrames++;
+			return false;
+		case DROP_NEWEST:
+			droppedFrames++;
+			return false;
+		case CONFLATE:
+			if (channel != null) {
+				dropChannel(channel);
+			}
+			break;
+		default:
+			break;
+		}
+
+		// make space by dropping oldest frames
+		while (queuedBytes + frame.size > maxBytes && dropOldest()) {
+		}
+		add(frame);
+
+		return false;
+	}
+
+	/**
+	 * check whether a frame of <code>size</code> bytes can be added without exceeding <code>limit</code> bytes (an
+	 * empty queue takes any frame)
+	 *
+	 * @param size
+	 * @param limit
+	 * @return
+	 */
+	synchronized boolean fits(int size, long limit) {
+		return queuedBytes + size <= limit || frames.isEmpty();
+	}
+
+	/**
+	 * collect frames from the head of the queue for writing; they stay in the queue until {@link #written(int)}
+	 *
+	 * @param gather
+	 * @return number of collected frames
+	 */
+	synchronized int gather(ByteBuffer[] gather) {
+		int count = 0;
+		for (Frame frame : frames) {
+			if (count == gather.length) {
+				break;
+			}
+			gather[count++] = frame.buffer;
+		}
+		inFlight = count;
+		return count;
+	}
+
+	/**
+	 * remove the completely written frames from the head of the queue after gathering <code>count</code> frames
+	 *
+	 * @param count
+	 * @return true if all gathered frames were written completely
+	 */
+	synchronized boolean written(int count) {
+		inFlight = 0;
+		for (int i = 0; i < count; i++) {
+			Frame head = frames.peekFirst();
+			if (head == null || head.buffer.hasRemaining()) {
+				return false;
+			}
+			remove(frames.pollFirst());
+		}
+
+		// queue drained, not congested anymore
+		if (frames.isEmpty()) {
+			congested = false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * mark queue as congested; returns true only for the first time since the queue was drained completely
+	 *
+	 * @return
+	 */
+	synchronized boolean markCongested() {
+		if (congested) {
+			return false;
+		}
+		return congested = true;
+	}
+
+	boolean isEmpty() {
+		return queuedFrames == 0;
+	}
+
+	int queuedFrames() {
+		return queuedFrames;
+	}
+
+	long queuedBytes() {
+		return queuedBytes;
+	}
+
+	long droppedFrames() {
+		return droppedFrames;
+	}
+
+	private void add(Frame frame) {
+		frames.offerLast(frame);
+		queuedBytes += frame.size;
+		queuedFrames++;
+	}
+
+	private void remove(Frame frame) {
+		queuedBytes -= frame.size;
+		queuedFrames--;
+	}
+
+	/**
+	 * number of frames at the head of the queue that must not be dropped
+	 *
+	 * @return
+	 */
+	private int protectedFrames() {
+		if (inFlight > 0) {
+			return inFlight;
+		}
+		Frame head = frames.peekFirst();
+		return head != null && head.buffer.position() > 0 ? 1 : 0;
+	}
+
+	/**
+	 * drop the oldest frame that can be dropped
+	 *
+	 * @return false if no frame could be dropped
+	 */
+	private boolean dropOldest() {
+		int skip = protectedFrames();
+		for (Iterator<Frame> iterator = frames.iterator(); iterator.hasNext();) {
+			Frame frame = iterator.next();
+			if (skip-- > 0) {
+				continue;
+			}
+			iterator.remove();
+			remove(frame);
+			droppedFrames++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * drop all queued frames of the given channel
+	 *
+	 * @param channel
+	 */
+	private void dropChannel(String channel) {
+		int skip = protectedFrames();
+		for (Iterator<Frame> iterator = frames.iterator(); iterator.hasNext();) {
+			Frame frame = iterator.next();
+			if (skip-- > 0) {
+				continue;
+			}
+			if (channel.equals(frame.channel)) {
+				iterator.remove();
+				remove(frame);
+				droppedFrames++;
+			}
+		}
+	}
+
+	/**
+	 * drop all frames that were queued before <code>threshold</code>
+	 *
+	 * @param threshold
+	 */
+	private void expire(long threshold) {
+		int skip = protectedFrames();
+		for (Iterator<Frame> iterator = frames.iterator(); iterator.hasNext();) {
+			Frame frame = iterator.next();
+			if (skip-- > 0) {
+				continue;
+			}
+			if (frame.enqueued >= threshold) {
+				break;
+			}
+			iterator.remove();
+			remove(frame);
+			droppedFrames++;
+		}
+	}
+
+	/**
+	 * queued frame with its channel and time of queuing
+	 *
+	 */
+	private static final class Frame {
+		final ByteBuffer buffer;
+		final String channel;
+		final long enqueued;
+		final int size;
+
+		Frame(ByteBuffer buffer, String channel) {
+			this.buffer = buffer;
+			this.channel = channel;
+			this.enqueued = System.currentTimeMillis();
+			this.size = buffer.remaining();
+		}
+	}
+}
@@ -1,12 +1,20 @@
 package nl.tue.id.oocsi.server.services;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import nl.tue.id.oocsi.server.model.Channel;
 import nl.tue.id.oocsi.server.model.Channel.ChangeListener;
+import nl.tue.id.oocsi.server.model.ChannelAddress;
 import nl.tue.id.oocsi.server.model.Client;
 import nl.tue.id.oocsi.server.model.Server;
 import nl.tue.id.oocsi.server.protocol.Message;
@@ -19,25 +27,40 @@ public class PresenceTracker implements ChangeListener {
 	private static final String REFRESH = "refresh";
 	private static final String LEAVE = "leave";
 	private static final String TIMEOUT = "timeout";
+	private static final String VERSION = "version";
 
-	// mapping from tracked to tracking channel
-	private final ConcurrentMap<String, Channel> presenceTracking = new ConcurrentHashMap<String, Channel>();
+	// lists of guests for notifications with several changes
+	private static final String JOINED = "joined";
+	private static final String LEFT = "left";
+	private static final String TIMED_OUT = "timedout";
+
+	// presence events within this window (ms) are sent as one notification
+	private static final long COALESCE_WINDOW = 50;
+
+	// mapping from tracked channel to presence state (with tracking channel)
+	private final ConcurrentMap<String, Presence> presenceTracking = new ConcurrentHashMap<String, Presence>();
 	private final Server server;
+	private final ScheduledExecutorService notifier = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "OOCSI presence");
+		t.setDaemon(true);
+		return t;
+	});
 
 	public PresenceTracker(Server server) {
 		this.server = server;
 	}
 
 	/**
-	 * subscribe a listening client <code>subscriber</code> for presence on channel <code>presenceHostChannel</code>
+	 * subscribe a listening client <code>subscriber</code> for presence on channel <code>presenceHostChannel</code>;
+	 * the subscriber receives the current members right away
 	 * 
 	 * @param trackedChannel
 	 * @param subscriber
 	 */
 	public void subscribe(String trackedChannelStr, Channel subscriber) {
-		presenceTracking.putIfAbsent(trackedChannelStr,
-		        new Channel("presence(" + trackedChannelStr + ")", NULL_LISTENER));
-		presenceTracking.get(trackedChannelStr).addChannel(subscriber);
+		Presence presence = presenceTracking.computeIfAbsent(trackedChannelStr, Presence::new);
+		presence.tracker.addChannel(subscriber);
+		subscriber.send(snapshot(presence));
 	}
 
 	/**
@@ -48,8 +71,9 @@ public class PresenceTracker implements ChangeListener {
 	 * @param subscriber
 	 */
 	public void unsubscribe(String trackedChannelStr, Channel subscriber) {
-		if (presenceTracking.containsKey(trackedChannelStr)) {
-			presenceTracking.get(trackedChannelStr).removeChannel(subscriber);
+		Presence presence = presenceTracking.get(trackedChannelStr);
+		if (presence != null) {
+			presence.tracker.removeChannel(subscriber);
 		}
 	}
 
@@ -59,92 +83,230 @@ public class PresenceTracker implements ChangeListener {
 	 * @param subscriber
 	 */
 	public void remove(Channel subscriber) {
-		for (Channel c : presenceTracking.values()) {
-			c.removeChannel(subscriber, true);
+		if (subscriber instanceof Client) {
+			// only the trackers that the client is subscribed to
+			for (Channel tracker : ((Client) subscriber).getSubscriptions()) {
+				if (ChannelAddress.of(tracker.getName()).isPresence()) {
+					tracker.removeChannel(subscriber);
+				}
+			}
+		} else {
+			for (Presence presence : presenceTracking.values()) {
+				presence.tracker.removeChannel(subscriber, true);
+			}
 		}
 	}
 
 	///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
 	@Override
-	public synchronized void created(Channel trackedChannel) {
-		String trackedChannelStr = trackedChannel.getName();
-		Channel tracker = presenceTracking.get(trackedChannelStr);
-		if (tracker != null) {
-			tracker.send(new Message(trackedChannel.getName(), "presence(" + trackedChannel.getName() + ")")
-			        .addData(trackedChannel instanceof Client ? "client" : "channel", trackedChannel.getName())
-			        .addData(CREATED, ""));
+	public void created(Channel trackedChannel) {
+		Presence presence = presenceTracking.get(trackedChannel.getName());
+		if (presence != null) {
+			presence.event(trackedChannel, CREATED, null);
 		}
 	}
 
 	@Override
-	public synchronized void closed(Channel trackedChannel) {
-		String trackedChannelStr = trackedChannel.getName();
-		Channel tracker = presenceTracking.get(trackedChannelStr);
-		if (tracker != null) {
-			tracker.send(new Message(trackedChannel.getName(), "presence(" + trackedChannel.getName() + ")")
-			        .addData(trackedChannel instanceof Client ? "client" : "channel", trackedChannel.getName())
-			        .addData(CLOSED, ""));
+	public void closed(Channel trackedChannel) {
+		Presence presence = presenceTracking.get(trackedChannel.getName());
+		if (presence != null) {
+			presence.event(trackedChannel, CLOSED, null);
 		}
 	}
 
 	@Override
-	public synchronized void join(Channel trackedChannel, Channel guest) {
-		String trackedChannelStr = trackedChannel.getName();
-		Channel listeners = presenceTracking.get(trackedChannelStr);
-		if (listeners != null) {
-			listeners.send(new Message(trackedChannel.getName(), "presence(" + trackedChannel.getName() + ")")
-			        .addData(trackedChannel instanceof Client ? "client" : "channel", trackedChannel.getName())
-			        .addData(JOIN, guest.getName()));
+	public void join(Channel trackedChannel, Channel guest) {
+		Presence presence = presenceTracking.get(trackedChannel.getName());
+		if (presence != null) {
+			presence.event(trackedChannel, JOIN, guest.getName());
 		}
 	}
 
+	/**
+	 * send the current members of tracked channels, only for channels with changes since the last refresh
+	 */
 	@Override
-	public synchronized void refresh() {
-		presenceTracking.entrySet().stream().forEach(e -> {
-			Channel tracker = e.getValue();
-			String trackedChannelStr = e.getKey();
-			Channel trackedChannel = server.getChannel(trackedChannelStr);
-
-			// then send out a refresh presence notice on the respective channel
-			tracker.send(new Message(trackedChannelStr, "presence(" + trackedChannelStr + ")")
-			        .addData(trackedChannel != null && trackedChannel instanceof Client ? "client" : "channel",
-			                trackedChannelStr)
-			        .addData(REFRESH,
-			                trackedChannel == null ? Collections.EMPTY_LIST
-			                        : trackedChannel.getChannels().stream().map(channel -> channel.getName())
-			                                .collect(Collectors.toList())));
-		});
+	public void refresh() {
+		for (Presence presence : presenceTracking.values()) {
+			if (presence.tracker.hasSubscribers() && presence.refreshDue()) {
+				presence.tracker.send(snapshot(presence));
+			}
+		}
 	}
 
 	@Override
-	public synchronized void leave(Channel trackedChannel, Channel guest) {
-		String trackedChannelStr = trackedChannel.getName();
-		Channel tracker = presenceTracking.get(trackedChannelStr);
-		if (tracker != null) {
-			tracker.send(new Message(trackedChannelStr, "presence(" + trackedChannelStr + ")")
-			        .addData(trackedChannel instanceof Client ? "client" : "channel", trackedChannelStr)
-			        .addData(LEAVE, guest.getName()));
+	public void leave(Channel trackedChannel, Channel guest) {
+		Presence presence = presenceTracking.get(trackedChannel.getName());
+		if (presence != null) {
+			presence.event(trackedChannel, LEAVE, guest.getName());
 		}
 	}
 
 	@Override
-	public synchronized void timeout(Channel subscriber) {
-		presenceTracking.entrySet().stream().forEach(e -> {
-			Channel tracker = e.getValue();
-			// remove subscriber from all presence tracking channels; do this manually to avoid problems with the
-			// presence tracking (on top of presence tracking)
-			if (tracker.getChannels().remove(subscriber) && !subscriber.isPrivate()) {
-				// if the subscriber was found and removed AND is non-private
-				// then send out a timeout presence notice on the channel that
-				// subscriber was removed from
-				String trackedChannelStr = e.getKey();
-				Channel trackedChannel = server.getChannel(trackedChannelStr);
-				tracker.send(new Message(trackedChannelStr, "presence(" + trackedChannelStr + ")")
-				        .addData(trackedChannel instanceof Client ? "client" : "channel", trackedChannelStr)
-				        .addData(TIMEOUT, subscriber.getName()));
+	public void timeout(Channel subscriber) {
+		// send out a timeout presence notice on all channels that the (non-private) subscriber tracks
+		if (subscriber.isPrivate()) {
+			return;
+		}
+		if (subscriber instanceof Client) {
+			// only the trackers that the client is subscribed to
+			for (Channel tracker : ((Client) subscriber).getSubscriptions()) {
+				final ChannelAddress address = ChannelAddress.of(tracker.getName());
+				if (address.isPresence()) {
+					Presence presence = presenceTracking.get(address.getPresenceChannel());
+					if (presence != null && presence.tracker == tracker) {
+						presence.event(server.getChannel(presence.channel), TIMEOUT, subscriber.getName());
+					}
+				}
+			}
+		} else {
+			for (Presence presence : presenceTracking.values()) {
+				if (presence.tracker.getChannel(subscriber.getName()) != null) {
+					presence.event(server.getChannel(presence.channel), TIMEOUT, subscriber.getName());
+				}
+			}
+		}
+	}
+
+	/**
+	 * full presence message with the current members of a tracked channel
+	 * 
+	 * @param presence
+	 * @return
+	 */
+	private Message snapshot(Presence presence) {
+		Channel trackedChannel = server.getChannel(presence.channel);
+		return new Message(presence.channel, presence.tracker.getName())
+		        .addData(trackedChannel instanceof Client ? "client" : "channel", presence.channel)
+		        .addData(REFRESH,
+		                trackedChannel == null ? Collections.emptyList()
+		                        : trackedChannel.getChannels().stream().map(channel -> channel.getName())
+		                                .collect(Collectors.toList()))
+		        .addData(VERSION, presence.version());
+	}
+
+	/**
+	 * presence state of a tracked channel: version (incremented with every change) and the changes that are not sent
+	 * yet, with the latest operation per guest
+	 * 
+	 */
+	private final class Presence {
+
+		final String channel;
+		final Channel tracker;
+
+		private long version = 0;
+		private long refreshedVersion = 0;
+		private boolean client = false;
+		private String lifecycle = null;
+		private final Map<String, String> pending = new LinkedHashMap<String, String>();
+		private boolean scheduled = false;
+
+		Presence(String channel) {
+			this.channel = channel;
+			this.tracker = new Channel("presence(" + channel + ")", NULL_LISTENER);
+		}
+
+		synchronized long version() {
+			return version;
+		}
+
+		/**
+		 * check whether there were changes since the last refresh
+		 * 
+		 * @return
+		 */
+		synchronized boolean refreshDue() {
+			if (refreshedVersion == version) {
+				return false;
 			}
-		});
+			refreshedVersion = version;
+			return true;
+		}
+
+		/**
+		 * record a change and schedule the notification; a join and a leave (or timeout) of the same guest within the
+		 * coalescing window cancel each other out
+		 * 
+		 * @param trackedChannel
+		 * @param operation
+		 * @param guest          guest of join, leave or timeout, null for created or closed
+		 */
+		synchronized void event(Channel trackedChannel, String operation, String guest) {
+			version++;
+			client = trackedChannel instanceof Client;
+			if (guest == null) {
+				lifecycle = operation;
+			} else {
+				final String previous = pending.remove(guest);
+				if (previous == null || (previous == JOIN) == (operation == JOIN)) {
+					pending.put(guest, operation);
+				}
+			}
+
+			if (!scheduled) {
+				scheduled = true;
+				notifier.schedule(this::flush, COALESCE_WINDOW, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		/**
+		 * send pending changes: created or closed and single guest changes are sent in the same format as before
+		 * ("join", "leave" or "timeout" with the guest name), several guest changes as one notification with lists of
+		 * guests ("joined", "left" and "timedout")
+		 * 
+		 */
+		void flush() {
+			final List<Message> messages = new ArrayList<Message>(2);
+			synchronized (this) {
+				scheduled = false;
+				if (lifecycle != null) {
+					messages.add(notification().addData(lifecycle, "").addData(VERSION, version));
+					lifecycle = null;
+				}
+
+				if (pending.size() == 1) {
+					final Map.Entry<String, String> change = pending.entrySet().iterator().next();
+					messages.add(notification().addData(change.getValue(), change.getKey()).addData(VERSION, version));
+				} else if (pending.size() > 1) {
+					final Message message = notification();
+					addGuests(message, JOIN, JOINED);
+					addGuests(message, LEAVE, LEFT);
+					addGuests(message, TIMEOUT, TIMED_OUT);
+					messages.add(message.addData(VERSION, version));
+				}
+				pending.clear();
+			}
+
+			for (Message message : messages) {
+				tracker.send(message);
+			}
+		}
+
+		/**
+		 * create a notification for the tracked channel
+		 * 
+		 * @return
+		 */
+		private Message notification() {
+			return new Message(channel, tracker.getName()).addData(client ? "client" : "channel", channel);
+		}
+
+		/**
+		 * add the list of pending guests with <code>operation</code> as <code>key</code>, if there are any
+		 * 
+		 * @param message
+		 * @param operation
+		 * @param key
+		 */
+		private void addGuests(Message message, String operation, String key) {
+			final List<String> guests = pending.entrySet().stream().filter(e -> e.getValue() == operation)
+			        .map(Map.Entry::getKey).collect(Collectors.toList());
+			if (!guests.isEmpty()) {
+				message.addData(key, guests);
+			}
+		}
 	}
 
 	/**
@@ -0,0 +1,44 @@
+package nl.tue.id.oocsi.server.services;
+
+/**
+ * policy that decides what happens when a client's outbound queue exceeds its byte budget
+ *
+ */
+public enum SlowConsumerPolicy {
+
+	/**
+	 * drop the oldest queued frames to make space for the new one
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * drop the new frame and keep the queued ones
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * drop queued frames of the same channel as the new one, so only the latest message per channel is kept; falls
+	 * back to dropping the oldest frames
+	 */
+	CONFLATE,
+
+	/**
+	 * drop queued frames that are older than the time-to-live; falls back to dropping the oldest frames
+	 */
+	EXPIRE,
+
+	/**
+	 * disconnect the client
+	 */
+	DISCONNECT;
+
+	/**
+	 * parse a policy from a command line value such as "drop-oldest" or "conflate"
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static SlowConsumerPolicy parse(String value) {
+		return valueOf(value.trim().toUpperCase().replace('-', '_'));
+	}
+}
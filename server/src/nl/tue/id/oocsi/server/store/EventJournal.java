@@ -0,0 +1,507 @@
+package nl.tue.id.oocsi.server.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import nl.tue.id.oocsi.server.protocol.Message;
+import nl.tue.id.oocsi.server.protocol.Protocol;
+import nl.tue.id.oocsi.server.services.AsyncLogWriter;
+
+/**
+ * append-only journal of dispatched messages in segment files; messages are appended in batches by a background
+ * writer, segments are read through memory mappings. Every segment keeps a sparse index (offset and highest timestamp
+ * before that offset) and the set of channels it contains, so that range queries only scan the relevant part of the
+ * relevant segments.
+ *
+ * Record layout: length (int, of the rest of the record), timestamp (long), channel and sender (short length +
+ * UTF-8), payload (int length + JSON)
+ *
+ */
+public class EventJournal {
+
+	private static final long SEGMENT_SIZE = 64 << 20;
+	private static final int INDEX_INTERVAL = 64 << 10;
+	private static final int WRITE_BUFFER_SIZE = 256 << 10;
+	private static final String SEGMENT_SUFFIX = ".journal";
+
+	// records are appended in dispatch order; timestamps of records can be out of order by at most this much (ms)
+	private static final long ORDER_SLACK = 60000;
+
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	private final Path directory;
+	private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+	private final AsyncLogWriter<Message> writer;
+	private final AtomicLong dropped = new AtomicLong();
+
+	// only used by the writer thread
+	private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+	private Segment active;
+	private FileChannel activeChannel;
+
+	/**
+	 * open (or create) the journal in <code>directory</code> and index the existing segments
+	 *
+	 * @param directory
+	 * @throws IOException
+	 */
+	public EventJournal(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+
+		// index existing segments in order
+		List<Path> files = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+			stream.forEach(files::add);
+		}
+		files.sort(null);
+		for (Path file : files) {
+			segments.add(Segment.recover(file));
+		}
+
+		writer = new AsyncLogWriter<Message>(65536, 1024, this::write);
+	}
+
+	/**
+	 * append message to the journal (asynchronously)
+	 *
+	 * @param message
+	 * @return false if the message could not be queued
+	 */
+	public boolean append(Message message) {
+		if (!writer.offer(message)) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * number of segments
+	 *
+	 * @return
+	 */
+	public int segments() {
+		return segments.size();
+	}
+
+	/**
+	 * number of messages that were dropped because the write buffer was full, in total
+	 *
+	 * @return
+	 */
+	public long dropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * number of messages that were dropped because the write buffer was full, since the last call
+	 *
+	 * @return
+	 */
+	public long takeDropped() {
+		return writer.takeDropped();
+	}
+
+	/**
+	 * retrieve the messages of <code>channel</code> with timestamps between <code>from</code> and <code>to</code>
+	 * (inclusive, in ms) in journal order; the segments are read lazily while iterating
+	 *
+	 * @param channel
+	 * @param from
+	 * @param to
+	 * @param max     maximum number of messages
+	 * @return
+	 */
+	public Iterator<Message> query(String channel, long from, long to, int max) {
+		return new Cursor(channel, from, to, max);
+	}
+
+	/**
+	 * write a batch of messages (on the writer thread)
+	 *
+	 * @param batch
+	 */
+	private void write(List<Message> batch) {
+		try {
+			for (Message message : batch) {
+				final byte[] payload;
+				try {
+					payload = message.getRaw() != null ? message.getRaw()
+					        : OBJECT_MAPPER.writeValueAsBytes(message.getData());
+				} catch (JsonProcessingException e) {
+					continue;
+				}
+
+				final byte[] channel = message.getRecipient().getBytes(StandardCharsets.UTF_8);
+				final byte[] sender = message.getSender().getBytes(StandardCharsets.UTF_8);
+				if (channel.length > 0xFFFF || sender.length > 0xFFFF) {
+					continue;
+				}
+				final int length = 8 + 2 + channel.length + 2 + sender.length + 4 + payload.length;
+
+				// roll segment if full
+				if (active == null || active.size + writeBuffer.position() + 4 + length > SEGMENT_SIZE) {
+					roll();
+				}
+				if (writeBuffer.remaining() < 4 + length) {
+					flush();
+				}
+
+				final long timestamp = message.getTimestamp().getTime();
+				active.record(active.size + writeBuffer.position(), timestamp, message.getRecipient());
+
+				if (writeBuffer.remaining() < 4 + length) {
+					// large record, write directly
+					ByteBuffer record = ByteBuffer.allocate(4 + length);
+					encode(record, length, timestamp, channel, sender, payload);
+					record.flip();
+					writeFully(record);
+				} else {
+					encode(writeBuffer, length, timestamp, channel, sender, payload);
+				}
+			}
+			flush();
+		} catch (IOException e) {
+			// drop batch, retry with a new segment next time
+			try {
+				if (activeChannel != null) {
+					activeChannel.close();
+				}
+			} catch (IOException e1) {
+				// ignore
+			}
+			active = null;
+			writeBuffer.clear();
+		}
+	}
+
+	private static void encode(ByteBuffer buffer, int length, long timestamp, byte[] channel, byte[] sender,
+	        byte[] payload) {
+		buffer.putInt(length).putLong(timestamp);
+		buffer.putShort((short) channel.length).put(channel);
+		buffer.putShort((short) sender.length).put(sender);
+		buffer.putInt(payload.length).put(payload);
+	}
+
+	/**
+	 * write buffered records to the active segment
+	 *
+	 * @throws IOException
+	 */
+	private void flush() throws IOException {
+		writeBuffer.flip();
+		writeFully(writeBuffer);
+		writeBuffer.clear();
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			activeChannel.write(buffer);
+		}
+		active.size = activeChannel.position();
+	}
+
+	/**
+	 * start a new segment
+	 *
+	 * @throws IOException
+	 */
+	private void roll() throws IOException {
+		if (active != null) {
+			flush();
+			activeChannel.close();
+		}
+
+		// segments are named by sequence number
+		final long sequence = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).sequence + 1;
+		final Path file = directory.resolve(String.format("%020d%s", sequence, SEGMENT_SUFFIX));
+		activeChannel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		active = new Segment(file, sequence);
+		segments.add(active);
+	}
+
+	/**
+	 * segment file with sparse index
+	 *
+	 */
+	static final class Segment {
+
+		final Path file;
+		final long sequence;
+		final Set<String> channels = ConcurrentHashMap.newKeySet();
+
+		// bytes written so far
+		volatile long size = 0;
+		volatile long minTimestamp = Long.MAX_VALUE;
+		volatile long maxTimestamp = Long.MIN_VALUE;
+
+		// sparse index: record offsets and the highest timestamp of all records before that offset
+		private long[] indexOffsets = new long[16];
+		private long[] indexMaxBefore = new long[16];
+		private int indexSize = 0;
+		private long lastIndexed = -INDEX_INTERVAL;
+
+		// read-only mapping, renewed when the segment has grown
+		private MappedByteBuffer mapping;
+
+		Segment(Path file, long sequence) {
+			this.file = file;
+			this.sequence = sequence;
+		}
+
+		/**
+		 * register a record at <code>offset</code> in the index
+		 *
+		 * @param offset
+		 * @param timestamp
+		 * @param channel
+		 */
+		synchronized void record(long offset, long timestamp, String channel) {
+			if (offset - lastIndexed >= INDEX_INTERVAL) {
+				if (indexSize == indexOffsets.length) {
+					indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+					indexMaxBefore = Arrays.copyOf(indexMaxBefore, indexSize * 2);
+				}
+				indexOffsets[indexSize] = offset;
+				indexMaxBefore[indexSize] = maxTimestamp;
+				indexSize++;
+				lastIndexed = offset;
+			}
+
+			channels.add(channel);
+			if (timestamp < minTimestamp) {
+				minTimestamp = timestamp;
+			}
+			if (timestamp > maxTimestamp) {
+				maxTimestamp = timestamp;
+			}
+		}
+
+		/**
+		 * offset from where to scan for records with timestamps at or after <code>from</code>
+		 *
+		 * @param from
+		 * @return
+		 */
+		synchronized long seek(long from) {
+			// last index entry before which all records are older than from
+			int low = 0, high = indexSize - 1, found = -1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (indexMaxBefore[mid] < from) {
+					found = mid;
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+			return found >= 0 ? indexOffsets[found] : 0;
+		}
+
+		/**
+		 * offset of the next record at or after <code>offset</code> of the channel and in the time range, -1 if there
+		 * is none in this segment
+		 *
+		 */
+		static int next(ByteBuffer buffer, int offset, byte[] channelBytes, long from, long to) {
+			final int end = buffer.limit();
+			while (offset + 4 <= end) {
+				final int length = buffer.getInt(offset);
+				if (length <= 0 || offset + 4 + length > end) {
+					break;
+				}
+
+				final long timestamp = buffer.getLong(offset + 4);
+				if (timestamp >= from && timestamp <= to && matches(buffer, offset + 12, channelBytes)) {
+					return offset;
+				}
+
+				// all later records are newer than the range
+				if (timestamp > to + ORDER_SLACK) {
+					break;
+				}
+				offset += 4 + length;
+			}
+			return -1;
+		}
+
+		/**
+		 * map the written part of the segment (read-only)
+		 *
+		 * @return
+		 * @throws IOException
+		 */
+		private synchronized ByteBuffer map() throws IOException {
+			final long written = size;
+			if (mapping == null || mapping.capacity() < written) {
+				try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+					mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, written);
+				}
+			}
+			ByteBuffer view = mapping.duplicate();
+			view.limit((int) written);
+			return view;
+		}
+
+		/**
+		 * recover segment and its index from an existing file
+		 *
+		 * @param file
+		 * @return
+		 * @throws IOException
+		 */
+		static Segment recover(Path file) throws IOException {
+			final String name = file.getFileName().toString();
+			Segment segment = new Segment(file, Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+			segment.size = Files.size(file);
+
+			final ByteBuffer buffer = segment.map();
+			final int end = buffer.limit();
+			int offset = 0;
+			while (offset + 4 <= end) {
+				final int length = buffer.getInt(offset);
+				if (length <= 0 || offset + 4 + length > end) {
+					break;
+				}
+
+				ByteBuffer record = buffer.duplicate();
+				record.position(offset + 12);
+				segment.record(offset, buffer.getLong(offset + 4), RetainedStore.readString(record));
+				offset += 4 + length;
+			}
+
+			// ignore incomplete record at the end
+			segment.size = offset;
+			return segment;
+		}
+
+		private static boolean matches(ByteBuffer buffer, int position, byte[] channelBytes) {
+			if ((buffer.getShort(position) & 0xFFFF) != channelBytes.length) {
+				return false;
+			}
+			for (int i = 0; i < channelBytes.length; i++) {
+				if (buffer.get(position + 2 + i) != channelBytes[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static Message read(ByteBuffer buffer, int offset, String channel) {
+			ByteBuffer record = buffer.duplicate();
+			record.position(offset + 4);
+			final long timestamp = record.getLong();
+			RetainedStore.readString(record);
+			final String sender = RetainedStore.readString(record);
+			final byte[] payload = new byte[record.getInt()];
+			record.get(payload);
+
+			Message message = new Message(sender, channel, new Date(timestamp),
+			        Protocol.parseJSONMessage(payload, 0, payload.length));
+			message.setSize(payload.length);
+			return message;
+		}
+	}
+	/**
+	 * iterator over the records of a channel and time range, scanning one segment at a time from its indexed position
+	 *
+	 */
+	private final class Cursor implements Iterator<Message> {
+
+		private final String channel;
+		private final byte[] channelBytes;
+		private final long from;
+		private final long to;
+		private int remaining;
+
+		// segments at the time of the query
+		private final Iterator<Segment> pending = segments.iterator();
+
+		// current segment and offset of the next record to scan
+		private ByteBuffer buffer;
+		private int offset;
+		private Message next;
+
+		Cursor(String channel, long from, long to, int max) {
+			this.channel = channel;
+			this.channelBytes = channel.getBytes(StandardCharsets.UTF_8);
+			this.from = from;
+			this.to = to;
+			this.remaining = max;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && remaining > 0) {
+				if (buffer == null && !open()) {
+					remaining = 0;
+					break;
+				}
+
+				final int found = Segment.next(buffer, offset, channelBytes, from, to);
+				if (found < 0) {
+					buffer = null;
+					continue;
+				}
+				next = Segment.read(buffer, found, channel);
+				offset = found + 4 + buffer.getInt(found);
+				remaining--;
+			}
+			return next != null;
+		}
+
+		@Override
+		public Message next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			final Message message = next;
+			next = null;
+			return message;
+		}
+
+		/**
+		 * open the next segment that can contain records of the query
+		 *
+		 * @return false if there are no more segments
+		 */
+		private boolean open() {
+			while (pending.hasNext()) {
+				final Segment segment = pending.next();
+				if (segment.minTimestamp > to || segment.maxTimestamp < from || !segment.channels.contains(channel)) {
+					continue;
+				}
+
+				try {
+					buffer = segment.map();
+					offset = (int) segment.seek(from);
+					return true;
+				} catch (IOException e) {
+					// skip unreadable segment
+				}
+			}
+			return false;
+		}
+	}
+}
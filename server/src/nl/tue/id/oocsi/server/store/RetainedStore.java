@@ -0,0 +1,338 @@
+package nl.tue.id.oocsi.server.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import nl.tue.id.oocsi.server.protocol.Message;
+import nl.tue.id.oocsi.server.protocol.Protocol;
+
+/**
+ * durable store for retained messages, backed by an append-only, memory-mapped file; every retained message or removal
+ * is appended as a record, the latest record per channel wins. The file is compacted (live records only) when it is
+ * full, and grown if compaction does not free enough space.
+ *
+ * Record layout: length (int, of the rest of the record, written last), type (byte), valid until (long), timestamp
+ * (long), channel and sender (short length + UTF-8), payload (int length + JSON)
+ *
+ */
+public class RetainedStore {
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+
+	private static final int INITIAL_CAPACITY = 4 << 20;
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	private final Path file;
+	private FileChannel fileChannel;
+	private MappedByteBuffer buffer;
+
+	// offset of the latest record per channel and bytes of all live records
+	private final Map<String, Record> index = new ConcurrentHashMap<String, Record>();
+	private long liveBytes = 0;
+
+	/**
+	 * open (or create) the store in <code>file</code> and recover the retained messages
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public RetainedStore(Path file) throws IOException {
+		this.file = file;
+		map(Math.max(INITIAL_CAPACITY, Files.exists(file) ? Files.size(file) : 0));
+		recover();
+	}
+
+	/**
+	 * store the retained message of a channel
+	 *
+	 * @param channel
+	 * @param message
+	 */
+	public synchronized void put(String channel, Message message) {
+		final byte[] payload;
+		try {
+			payload = message.getRaw() != null ? message.getRaw() : OBJECT_MAPPER.writeValueAsBytes(message.getData());
+		} catch (JsonProcessingException e) {
+			return;
+		}
+
+		append(PUT, channel, message.getSender(), message.validUntil != null ? message.validUntil.getTime() : 0,
+		        message.getTimestamp().getTime(), payload);
+	}
+
+	/**
+	 * remove the retained message of a channel
+	 *
+	 * @param channel
+	 */
+	public synchronized void remove(String channel) {
+		if (index.containsKey(channel)) {
+			append(REMOVE, channel, "", 0, 0, new byte[0]);
+		}
+	}
+
+	/**
+	 * check whether there is a retained message for a channel (that might have expired)
+	 *
+	 * @param channel
+	 * @return
+	 */
+	public boolean contains(String channel) {
+		return index.containsKey(channel);
+	}
+
+	/**
+	 * retrieve the retained message of a channel or null if there is none or it has expired
+	 *
+	 * @param channel
+	 * @return
+	 */
+	public synchronized Message get(String channel) {
+		Record record = index.get(channel);
+		if (record == null) {
+			return null;
+		}
+		if (record.validUntil > 0 && record.validUntil < System.currentTimeMillis()) {
+			index.remove(channel);
+			liveBytes -= record.length;
+			return null;
+		}
+
+		return read(buffer, record.offset, channel);
+	}
+
+	/**
+	 * number of channels with retained messages (including expired ones)
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * write all changes to disk and close the store
+	 *
+	 */
+	public synchronized void close() {
+		try {
+			buffer.force();
+			fileChannel.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * append a record, compact or grow the file if necessary
+	 *
+	 */
+	private void append(byte type, String channel, String sender, long validUntil, long timestamp, byte[] payload) {
+		final byte[] channelBytes = channel.getBytes(StandardCharsets.UTF_8);
+		final byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+		if (channelBytes.length > 0xFFFF || senderBytes.length > 0xFFFF) {
+			return;
+		}
+		final int length = 1 + 8 + 8 + 2 + channelBytes.length + 2 + senderBytes.length + 4 + payload.length;
+
+		// make room for record and end marker
+		if (buffer.position() + 4 + length + 4 > buffer.capacity()) {
+			try {
+				compact(4 + length + 4);
+			} catch (IOException e) {
+				return;
+			}
+			if (buffer.position() + 4 + length + 4 > buffer.capacity()) {
+				return;
+			}
+		}
+
+		final int offset = buffer.position();
+		buffer.position(offset + 4);
+		buffer.put(type).putLong(validUntil).putLong(timestamp);
+		buffer.putShort((short) channelBytes.length).put(channelBytes);
+		buffer.putShort((short) senderBytes.length).put(senderBytes);
+		buffer.putInt(payload.length).put(payload);
+
+		// end marker first, then the length, so that a record only becomes visible when complete
+		buffer.putInt(buffer.position(), 0);
+		buffer.putInt(offset, length);
+
+		Record previous = type == PUT ? index.put(channel, new Record(offset, 4 + length, validUntil))
+		        : index.remove(channel);
+		if (previous != null) {
+			liveBytes -= previous.length;
+		}
+		if (type == PUT) {
+			liveBytes += 4 + length;
+		}
+	}
+
+	/**
+	 * recover the index from the file
+	 *
+	 */
+	private void recover() {
+		final long now = System.currentTimeMillis();
+		int offset = 0;
+		while (offset + 4 <= buffer.capacity()) {
+			final int length = buffer.getInt(offset);
+			if (length <= 0 || offset + 4 + length > buffer.capacity()) {
+				break;
+			}
+
+			ByteBuffer record = buffer.duplicate();
+			record.position(offset + 4);
+			final byte type = record.get();
+			final long validUntil = record.getLong();
+			record.getLong();
+			final String channel = readString(record);
+
+			// latest record wins, expired messages are dropped
+			Record previous = index.remove(channel);
+			if (previous != null) {
+				liveBytes -= previous.length;
+			}
+			if (type == PUT && (validUntil == 0 || validUntil >= now)) {
+				index.put(channel, new Record(offset, 4 + length, validUntil));
+				liveBytes += 4 + length;
+			}
+
+			offset += 4 + length;
+		}
+		buffer.position(offset);
+	}
+
+	/**
+	 * rewrite the live records into a new file, with at least <code>space</code> bytes free
+	 *
+	 * @param space
+	 * @throws IOException
+	 */
+	private void compact(int space) throws IOException {
+		long capacity = buffer.capacity();
+		while (liveBytes + space > capacity / 2 && capacity < MAX_CAPACITY) {
+			capacity *= 2;
+		}
+
+		// copy live records
+		final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		final Map<String, Record> compacted = new HashMap<String, Record>();
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+		        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			MappedByteBuffer target = out.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			final long now = System.currentTimeMillis();
+			for (Map.Entry<String, Record> e : index.entrySet()) {
+				Record record = e.getValue();
+				if (record.validUntil > 0 && record.validUntil < now) {
+					continue;
+				}
+
+				ByteBuffer source = buffer.duplicate();
+				source.position(record.offset).limit(record.offset + record.length);
+				compacted.put(e.getKey(), new Record(target.position(), record.length, record.validUntil));
+				target.put(source);
+			}
+			target.putInt(target.position(), 0);
+			target.force();
+		}
+
+		// swap files and map the new one
+		fileChannel.close();
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		map(capacity);
+
+		index.clear();
+		index.putAll(compacted);
+		liveBytes = 0;
+		int end = 0;
+		for (Record record : compacted.values()) {
+			liveBytes += record.length;
+			end = Math.max(end, record.offset + record.length);
+		}
+		buffer.position(end);
+	}
+
+	/**
+	 * map the file with the given capacity
+	 *
+	 * @param capacity
+	 * @throws IOException
+	 */
+	private void map(long capacity) throws IOException {
+		fileChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+		        StandardOpenOption.WRITE);
+		buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(capacity, MAX_CAPACITY));
+	}
+
+	/**
+	 * read the message of the record at <code>offset</code>
+	 *
+	 * @param buffer
+	 * @param offset
+	 * @param channel
+	 * @return
+	 */
+	static Message read(ByteBuffer buffer, int offset, String channel) {
+		ByteBuffer record = buffer.duplicate();
+		record.position(offset + 4);
+		record.get();
+		final long validUntil = record.getLong();
+		final long timestamp = record.getLong();
+		readString(record);
+		final String sender = readString(record);
+		final byte[] payload = new byte[record.getInt()];
+		record.get(payload);
+
+		Message message = new Message(sender, channel, new Date(timestamp),
+		        Protocol.parseJSONMessage(payload, 0, payload.length));
+		message.setSize(payload.length);
+		message.validUntil = validUntil > 0 ? new Date(validUntil) : null;
+		return message;
+	}
+
+	/**
+	 * read a string with short length prefix
+	 *
+	 * @param buffer
+	 * @return
+	 */
+	static String readString(ByteBuffer buffer) {
+		final byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * location of a live record
+	 *
+	 */
+	private static final class Record {
+		final int offset;
+		final int length;
+		final long validUntil;
+
+		Record(int offset, int length, long validUntil) {
+			this.offset = offset;
+			this.length = length;
+			this.validUntil = validUntil;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import nl.tue.id.oocsi.server.OOCSIServer;
+import nl.tue.id.oocsi.server.model.ChannelHistory;
+import nl.tue.id.oocsi.server.protocol.Message;
+
+public class ChannelHistoryTest {
+
+	private static final int PORT = 4447;
+
+	@Test
+	public void testExpiry() {
+		// empty history
+		ChannelHistory unlimited = new ChannelHistory(10, 0);
+		assertEquals(0, unlimited.expiry());
+
+		// messages without time limit do not expire
+		unlimited.add(new Message("sender", "hist"));
+		assertEquals(Long.MAX_VALUE, unlimited.expiry());
+
+		// the newest message expires last
+		ChannelHistory limited = new ChannelHistory(10, 1000);
+		limited.add(new Message("sender", "hist", new Date(5000)));
+		limited.add(new Message("sender", "hist", new Date(7000)));
+		assertEquals(8000, limited.expiry());
+	}
+
+	@Test
+	public void testLateSubscriberReplay() throws IOException, InterruptedException {
+		OOCSIServer server = new OOCSIServer(new String[] { "-port", "" + PORT });
+
+		// startup parameters are read from the first server of this JVM
+		OOCSIServer options = OOCSIServer.getInstance();
+		final int historySize = options.historySize;
+		final String[] historyChannels = options.historyChannels;
+		options.historySize = 100;
+		options.historyChannels = new String[] { "hist" };
+		try {
+			Connection publisher = new Connection("hist_publisher");
+			Connection subscriber = new Connection("hist_subscriber");
+
+			// publish while there is a subscriber
+			subscriber.send("subscribe hist");
+			Thread.sleep(200);
+			for (int i = 0; i < 3; i++) {
+				publisher.send("sendraw hist {\"i\":" + i + "}");
+			}
+			assertEquals(3, subscriber.receive().size());
+
+			// the channel keeps its history when the last subscriber leaves
+			subscriber.send("unsubscribe hist");
+			Thread.sleep(200);
+			for (int i = 3; i < 8; i++) {
+				publisher.send("sendraw hist {\"i\":" + i + "}");
+			}
+			Thread.sleep(200);
+
+			// a late subscriber receives all messages
+			Connection late = new Connection("hist_late");
+			late.send("subscribe hist@last=10");
+			List<String> replay = late.receive();
+			assertEquals(8, replay.size());
+			for (int i = 0; i < 8; i++) {
+				assertEquals(true, replay.get(i).contains("\"i\":" + i + ","));
+			}
+		} finally {
+			options.historySize = historySize;
+			options.historyChannels = historyChannels;
+			server.stop();
+		}
+	}
+
+	/**
+	 * JSON socket client
+	 *
+	 */
+	private static class Connection {
+
+		private final BufferedReader reader;
+		private final PrintWriter writer;
+
+		Connection(String name) throws IOException {
+			Socket socket = new Socket("localhost", PORT);
+			socket.setSoTimeout(500);
+			reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+			send(name + "(JSON)");
+			reader.readLine();
+		}
+
+		void send(String line) {
+			writer.println(line);
+		}
+
+		/**
+		 * receive messages until there are no more
+		 *
+		 * @return
+		 * @throws IOException
+		 */
+		List<String> receive() throws IOException {
+			List<String> messages = new ArrayList<String>();
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith("{")) {
+						messages.add(line);
+					}
+				}
+			} catch (SocketTimeoutException e) {
+				// no more messages
+			}
+			return messages;
+		}
+	}
+}
@@ -15,7 +15,7 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import nl.tue.id.oocsi.client.data.JSONWriter;
-import nl.tue.id.oocsi.server.protocol.Base64Coder;
+import nl.tue.id.oocsi.client.socket.Base64Coder;
 
 public class MessageParsingSpeedTest {
 
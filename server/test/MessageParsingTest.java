@@ -0,0 +1,114 @@
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import nl.tue.id.oocsi.server.protocol.Protocol;
+
+public class MessageParsingTest {
+
+	private static final int WARMUP = 100000;
+	private static final int ITERATIONS = 200000;
+
+	@Test
+	public void testStreamingParser() throws IOException {
+		ObjectMapper om = new ObjectMapper();
+
+		Map<String, Object> messageMap = new HashMap<String, Object>();
+		messageMap.put("number", 1.5);
+		messageMap.put("integer", 42);
+		messageMap.put("bool", false);
+		messageMap.put("hello", "world");
+		messageMap.put("hello1", "world");
+		messageMap.put("array", new boolean[] { true, false, true, false });
+		messageMap.put("array2", new int[] { 1, 2, 3, 4, 5 });
+		messageMap.put("array3", new String[] { "1", "2", "3" });
+		messageMap.put("object", Map.of("x", 1, "y", 2));
+
+		final String message = om.writeValueAsString(messageMap);
+		final byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+
+		// both parsers need to produce the same scalar values
+		Map<String, Object> treeMap = parseTree(message);
+		Map<String, Object> streamMap = Protocol.parseJSONMessage(messageBytes, 0, messageBytes.length);
+		assertEquals(treeMap.keySet(), streamMap.keySet());
+		for (String key : new String[] { "number", "integer", "bool", "hello" }) {
+			assertEquals(treeMap.get(key), streamMap.get(key));
+		}
+		assertEquals(treeMap.get("array").toString(), streamMap.get("array").toString());
+		assertEquals(treeMap.get("object").toString(), streamMap.get("object").toString());
+
+		// compare both code paths (timing is logged only, it depends on the machine)
+		int sink = 0;
+		for (int i = 0; i < WARMUP; i++) {
+			sink += parseTree(message).size();
+			sink += Protocol.parseJSONMessage(messageBytes, 0, messageBytes.length).size();
+		}
+
+		long time1 = 0, time2 = 0;
+		{
+			long start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				sink += parseTree(message).size();
+			}
+			time1 = System.nanoTime() - start;
+			System.out.println("ObjectMapper tree time: " + time1 / 1000000 + "ms");
+		}
+
+		{
+			long start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				sink += Protocol.parseJSONMessage(messageBytes, 0, messageBytes.length).size();
+			}
+			time2 = System.nanoTime() - start;
+			System.out.println("Streaming time: " + time2 / 1000000 + "ms");
+		}
+
+		System.out.println("Speed-up: " + time1 / (double) time2 + " (" + sink + ")");
+	}
+
+	/**
+	 * previous approach: new ObjectMapper per message, full tree, then copy of the top-level fields into a map
+	 *
+	 * @param message
+	 * @return
+	 * @throws IOException
+	 */
+	private static Map<String, Object> parseTree(String message) throws IOException {
+		Map<String, Object> map = new HashMap<String, Object>();
+		ObjectMapper om = new ObjectMapper();
+		JsonNode jn = om.readTree(message);
+		if (jn.isObject()) {
+			ObjectNode on = (ObjectNode) jn;
+			for (Iterator<Entry<String, JsonNode>> iterator = on.fields(); iterator.hasNext();) {
+				Entry<String, JsonNode> entry = iterator.next();
+				JsonNode val = entry.getValue();
+				if (val.isBoolean()) {
+					map.put(entry.getKey(), val.booleanValue());
+				} else if (val.isInt()) {
+					map.put(entry.getKey(), val.intValue());
+				} else if (val.isDouble()) {
+					map.put(entry.getKey(), val.doubleValue());
+				} else if (val.isLong()) {
+					map.put(entry.getKey(), val.longValue());
+				} else if (val.isTextual()) {
+					map.put(entry.getKey(), val.textValue());
+				} else if (val.isContainerNode()) {
+					map.put(entry.getKey(), val);
+				}
+			}
+		}
+		return map;
+	}
+
+}
@@ -0,0 +1,106 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import nl.tue.id.oocsi.server.model.QuantileSketch;
+
+public class QuantileSketchTest {
+
+	@Test
+	public void testSmallSketchIsExact() {
+		// below the capacity of the first level, no sample is compacted
+		QuantileSketch sketch = new QuantileSketch();
+		for (int i = 50; i >= 1; i--) {
+			sketch.add(i);
+		}
+
+		QuantileSketch.View view = sketch.view();
+		assertEquals(50, sketch.count());
+		assertEquals(50, view.total());
+		assertEquals(1, view.quantile(0), 0);
+		assertEquals(25, view.quantile(0.5), 0);
+		assertEquals(48, view.quantile(0.95), 0);
+		assertEquals(50, view.quantile(1), 0);
+		assertEquals(10, view.rank(10.5));
+	}
+
+	@Test
+	public void testEmptySketch() {
+		QuantileSketch sketch = new QuantileSketch();
+		assertEquals(0, sketch.count());
+		assertEquals(0, sketch.view().total());
+		assertTrue(Double.isNaN(sketch.view().quantile(0.5)));
+	}
+
+	@Test
+	public void testRankError() {
+		Random random = new Random(1);
+		double[] samples = new double[200000];
+		QuantileSketch sketch = new QuantileSketch();
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = random.nextGaussian() * 100 + (i % 1000 == 0 ? 10000 : 0);
+			sketch.add(samples[i]);
+		}
+		Arrays.sort(samples);
+
+		// compaction keeps the total weight
+		QuantileSketch.View view = sketch.view();
+		assertEquals(samples.length, sketch.count());
+		assertEquals(samples.length, view.total());
+
+		for (double q = 0.01; q < 1; q += 0.01) {
+			assertRank(samples, q, view.quantile(q), 0.02);
+		}
+	}
+
+	@Test
+	public void testMerge() {
+		Random random = new Random(2);
+		double[] samples = new double[100000];
+		QuantileSketch low = new QuantileSketch(), high = new QuantileSketch();
+		for (int i = 0; i < samples.length; i++) {
+			if (i % 4 == 0) {
+				samples[i] = random.nextDouble() * 1000;
+				low.add(samples[i]);
+			} else {
+				samples[i] = 500 + random.nextDouble() * 1000;
+				high.add(samples[i]);
+			}
+		}
+		Arrays.sort(samples);
+
+		// merge into an empty sketch with fewer levels, then the other sketch
+		QuantileSketch merged = new QuantileSketch();
+		merged.merge(high);
+		merged.merge(low);
+		assertEquals(samples.length, merged.count());
+		assertEquals(samples.length, merged.view().total());
+
+		for (double q = 0.05; q < 1; q += 0.05) {
+			assertRank(samples, q, merged.view().quantile(q), 0.02);
+
+			// a query over two views gives the same result as the merged sketch
+			assertRank(samples, q, QuantileSketch.View.quantile(low.view(), high.view(), q), 0.02);
+		}
+	}
+
+	/**
+	 * check that the rank of <code>value</code> in the sorted <code>samples</code> is close to <code>q</code>
+	 *
+	 * @param samples
+	 * @param q
+	 * @param value
+	 * @param error
+	 */
+	private static void assertRank(double[] samples, double q, double value, double error) {
+		int rank = 0;
+		while (rank < samples.length && samples[rank] <= value) {
+			rank++;
+		}
+		assertEquals("quantile " + q, q, rank / (double) samples.length, error);
+	}
+}
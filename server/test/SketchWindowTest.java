@@ -0,0 +1,140 @@
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import nl.tue.id.oocsi.server.model.SketchWindow;
+
+public class SketchWindowTest {
+
+	@Test
+	public void testDistinctSmallCardinality() {
+		// linear counting is (nearly) exact for a few distinct values
+		SketchWindow.Distinct distinct = new SketchWindow.Distinct(1000, 0);
+		for (int i = 0; i < 1000; i++) {
+			distinct.add(i % 7, i);
+		}
+		assertEquals(7, distinct.estimate(), 0);
+
+		// -0.0 and 0.0 are the same value
+		distinct = new SketchWindow.Distinct(10, 0);
+		distinct.add(0.0, 0);
+		distinct.add(-0.0, 1);
+		assertEquals(1, distinct.estimate(), 0);
+	}
+
+	@Test
+	public void testDistinctCountWindow() {
+		Random random = new Random(1);
+		for (int length : new int[] { 100, 1000, 20000 }) {
+			SketchWindow.Distinct distinct = new SketchWindow.Distinct(length, 0);
+			Deque<Double> reference = new ArrayDeque<Double>();
+			for (int i = 0; i < 5 * length; i++) {
+				double value = random.nextInt(length * 2);
+				distinct.add(value, i);
+				reference.addLast(value);
+				if (reference.size() > length) {
+					reference.removeFirst();
+				}
+
+				// sketch error plus a window boundary of one sub-window
+				if (i > length && i % 37 == 0) {
+					final double exact = new HashSet<Double>(reference).size();
+					assertEquals(exact, distinct.estimate(), exact * (0.1 + 1.0 / SketchWindow.BLOCKS));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testDistinctEviction() {
+		SketchWindow.Distinct distinct = new SketchWindow.Distinct(160, 0);
+		for (int i = 0; i < 160; i++) {
+			distinct.add(i, i);
+		}
+		assertEquals(160, distinct.estimate(), 16);
+
+		// a single repeated value replaces all sub-windows
+		for (int i = 0; i < 160; i++) {
+			distinct.add(-1, 160 + i);
+		}
+		assertEquals(1, distinct.estimate(), 0);
+	}
+
+	@Test
+	public void testDistinctTimeWindow() {
+		SketchWindow.Distinct distinct = new SketchWindow.Distinct(0, 1600);
+		Set<Integer> values = new HashSet<Integer>();
+		for (int t = 0; t < 1600; t++) {
+			distinct.add(t % 500, t);
+			values.add(t % 500);
+		}
+		assertEquals(values.size(), distinct.estimate(), values.size() * 0.1);
+
+		// after a gap longer than the window, only the new samples count
+		distinct.add(1, 10000);
+		distinct.add(2, 10001);
+		assertEquals(2, distinct.estimate(), 0);
+	}
+
+	@Test
+	public void testQuantilesCountWindow() {
+		Random random = new Random(2);
+		SketchWindow.Quantiles quantiles = new SketchWindow.Quantiles(1600, 0);
+		Deque<Double> reference = new ArrayDeque<Double>();
+		for (int i = 0; i < 20000; i++) {
+			// distribution shifts, so evicted samples would move the quantiles
+			double value = random.nextGaussian() * 10 + (i / 5000) * 100;
+			quantiles.add(value, i);
+			reference.addLast(value);
+			if (reference.size() > 1600) {
+				reference.removeFirst();
+			}
+
+			if (i > 1600 && i % 101 == 0) {
+				for (double q : new double[] { 0.05, 0.5, 0.95 }) {
+					assertRank(reference, q, quantiles.quantile(q), 0.03 + 1.0 / SketchWindow.BLOCKS);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testQuantilesTimeWindow() {
+		SketchWindow.Quantiles quantiles = new SketchWindow.Quantiles(0, 1000);
+		for (int t = 0; t < 5000; t++) {
+			quantiles.add(t < 3000 ? 1 : 2, t);
+		}
+		assertEquals(2, quantiles.quantile(0), 0);
+		assertEquals(2, quantiles.quantile(0.5), 0);
+
+		for (int t = 5000; t < 5500; t++) {
+			quantiles.add(3, t);
+		}
+		assertEquals(2, quantiles.quantile(0.25), 0);
+		assertEquals(3, quantiles.quantile(0.75), 0);
+	}
+
+	/**
+	 * check that the rank of <code>value</code> among <code>samples</code> is close to <code>q</code>
+	 *
+	 * @param samples
+	 * @param q
+	 * @param value
+	 * @param error
+	 */
+	private static void assertRank(Deque<Double> samples, double q, double value, double error) {
+		int rank = 0;
+		for (double sample : samples) {
+			if (sample <= value) {
+				rank++;
+			}
+		}
+		assertEquals("quantile " + q, q, rank / (double) samples.size(), error);
+	}
+}
@@ -0,0 +1,159 @@
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import org.junit.Test;
+
+import nl.tue.id.oocsi.server.model.SlidingWindow;
+
+public class SlidingWindowTest {
+
+	private static final double EPSILON = 1e-9;
+
+	@Test
+	public void testCountWindow() {
+		for (int length : new int[] { 1, 2, 5, 50, 1000 }) {
+			SlidingWindow window = SlidingWindow.ofLength(length);
+			Deque<double[]> reference = new ArrayDeque<double[]>();
+			Random random = new Random(length);
+
+			for (int i = 0; i < 5000; i++) {
+				double value = random.nextInt(1000) - 500 + random.nextDouble();
+				window.add(value, i);
+				reference.addLast(new double[] { value, i });
+				if (reference.size() > length) {
+					reference.removeFirst();
+				}
+				assertWindow(reference, length, window);
+			}
+		}
+	}
+
+	@Test
+	public void testCountWindowNotFilled() {
+		// missing samples count as 0 for mean and standard deviation
+		SlidingWindow window = SlidingWindow.ofLength(2);
+		window.add(100, 0);
+		assertEquals(1, window.size());
+		assertEquals(100, window.sum(), EPSILON);
+		assertEquals(50, window.mean(), EPSILON);
+		assertEquals(Math.sqrt(1250), window.stdev(), EPSILON);
+		assertEquals(100, window.min(), EPSILON);
+		assertEquals(100, window.max(), EPSILON);
+
+		window.add(100, 1);
+		assertEquals(100, window.mean(), EPSILON);
+		assertEquals(0, window.stdev(), EPSILON);
+	}
+
+	@Test
+	public void testTimeWindow() {
+		SlidingWindow window = SlidingWindow.ofDuration(100);
+		Deque<double[]> reference = new ArrayDeque<double[]>();
+		Random random = new Random(1);
+
+		long now = 0;
+		for (int i = 0; i < 20000; i++) {
+			// bursts and gaps, including gaps longer than the window
+			now += random.nextInt(10) == 0 ? random.nextInt(250) : random.nextInt(3);
+			double value = random.nextGaussian() * 100;
+			window.add(value, now);
+			reference.addLast(new double[] { value, now });
+			while (reference.peekFirst()[1] <= now - 100) {
+				reference.removeFirst();
+			}
+			assertWindow(reference, reference.size(), window);
+		}
+	}
+
+	@Test
+	public void testEviction() {
+		SlidingWindow window = SlidingWindow.ofLength(3);
+		window.add(5, 0);
+		window.add(1, 1);
+		window.add(9, 2);
+		assertEquals(1, window.min(), EPSILON);
+		assertEquals(9, window.max(), EPSILON);
+
+		// evicts 5
+		window.add(3, 3);
+		assertEquals(13, window.sum(), EPSILON);
+		assertEquals(1, window.min(), EPSILON);
+
+		// evicts 1, minimum moves to the next candidate in the deque
+		window.add(4, 4);
+		assertEquals(3, window.min(), EPSILON);
+		assertEquals(9, window.max(), EPSILON);
+
+		// evicts 9
+		window.add(2, 5);
+		assertEquals(2, window.min(), EPSILON);
+		assertEquals(4, window.max(), EPSILON);
+		assertEquals(3, window.size());
+
+		// time window: all samples expire
+		window = SlidingWindow.ofDuration(10);
+		window.add(7, 0);
+		window.add(8, 5);
+		window.add(1, 100);
+		assertEquals(1, window.size());
+		assertEquals(1, window.mean(), EPSILON);
+		assertEquals(1, window.max(), EPSILON);
+	}
+
+	@Test
+	public void testMonotonicDeques() {
+		// ascending and descending runs keep the deques at their longest
+		SlidingWindow window = SlidingWindow.ofLength(64);
+		Deque<double[]> reference = new ArrayDeque<double[]>();
+		for (int i = 0; i < 1000; i++) {
+			double value = (i / 100) % 2 == 0 ? i % 100 : 100 - i % 100;
+			window.add(value, i);
+			reference.addLast(new double[] { value, i });
+			if (reference.size() > 64) {
+				reference.removeFirst();
+			}
+			assertWindow(reference, 64, window);
+		}
+	}
+
+	@Test
+	public void testParseDuration() {
+		assertEquals(250, SlidingWindow.parseDuration("250ms"));
+		assertEquals(5000, SlidingWindow.parseDuration("5s"));
+		assertEquals(90000, SlidingWindow.parseDuration("1.5m"));
+		assertEquals(3600000, SlidingWindow.parseDuration(" 1 h "));
+		assertEquals(-1, SlidingWindow.parseDuration("5"));
+		assertEquals(-1, SlidingWindow.parseDuration("5 days"));
+	}
+
+	/**
+	 * compare window aggregates with a brute-force computation over the reference samples
+	 *
+	 * @param reference
+	 * @param length
+	 * @param window
+	 */
+	private static void assertWindow(Deque<double[]> reference, int length, SlidingWindow window) {
+		double sum = 0, min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		for (double[] sample : reference) {
+			sum += sample[0];
+			min = Math.min(min, sample[0]);
+			max = Math.max(max, sample[0]);
+		}
+		double mean = sum / length, squares = 0;
+		for (double[] sample : reference) {
+			squares += (sample[0] - mean) * (sample[0] - mean);
+		}
+
+		final double tolerance = EPSILON * (1 + Math.abs(sum));
+		assertEquals(reference.size(), window.size());
+		assertEquals(sum, window.sum(), tolerance);
+		assertEquals(mean, window.mean(), tolerance);
+		assertEquals(Math.sqrt(squares / length), window.stdev(), 1e-6 * (1 + Math.abs(mean)));
+		assertEquals(min, window.min(), 0);
+		assertEquals(max, window.max(), 0);
+	}
+}
@@ -0,0 +1,80 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import nl.tue.id.oocsi.server.model.WindowAggregate;
+
+public class WindowAggregateTest {
+
+	@Test
+	public void testForFunction() {
+		for (WindowAggregate aggregate : WindowAggregate.values()) {
+			assertEquals(aggregate, WindowAggregate.forFunction(aggregate.function()));
+			assertEquals(aggregate, WindowAggregate.forFunction(aggregate.function().toUpperCase()));
+		}
+		assertEquals(WindowAggregate.MIN, WindowAggregate.forFunction("emin"));
+		assertNull(WindowAggregate.forFunction("min"));
+		assertNull(WindowAggregate.forFunction("p50"));
+
+		assertTrue(WindowAggregate.QUANTILE.hasQuantile());
+		assertFalse(WindowAggregate.MEDIAN.hasQuantile());
+	}
+
+	@Test
+	public void testExactAggregates() {
+		double[] results = add(5, 0, 0, WindowAggregate.SUM, WindowAggregate.MEAN, WindowAggregate.STDEV,
+		        WindowAggregate.MIN, WindowAggregate.MAX);
+
+		// samples 96..100
+		assertEquals(490, results[0], 1e-9);
+		assertEquals(98, results[1], 1e-9);
+		assertEquals(Math.sqrt(2), results[2], 1e-9);
+		assertEquals(96, results[3], 0);
+		assertEquals(100, results[4], 0);
+	}
+
+	@Test
+	public void testSketchAggregates() {
+		double[] results = add(100, 0, 0.25, WindowAggregate.MEDIAN, WindowAggregate.P95, WindowAggregate.P99,
+		        WindowAggregate.QUANTILE, WindowAggregate.DISTINCT);
+
+		// samples 1..100 fit into the sub-windows exactly
+		assertEquals(50, results[0], 0);
+		assertEquals(95, results[1], 0);
+		assertEquals(99, results[2], 0);
+		assertEquals(25, results[3], 0);
+		assertEquals(100, results[4], 2);
+	}
+
+	@Test
+	public void testTimeWindow() {
+		// samples 1..100 at 1 ms intervals, window of the last 10 ms
+		double[] results = add(0, 10, 0, WindowAggregate.SUM, WindowAggregate.MIN, WindowAggregate.MEDIAN);
+		assertEquals(91 + 92 + 93 + 94 + 95 + 96 + 97 + 98 + 99 + 100, results[0], 1e-9);
+		assertEquals(91, results[1], 0);
+		assertEquals(95, results[2], 1);
+	}
+
+	/**
+	 * add the samples 1..100 to windows of the given aggregates and return the last result of each
+	 *
+	 * @param length
+	 * @param duration
+	 * @param quantile
+	 * @param aggregates
+	 * @return
+	 */
+	private static double[] add(int length, long duration, double quantile, WindowAggregate... aggregates) {
+		double[] results = new double[aggregates.length];
+		for (int i = 0; i < aggregates.length; i++) {
+			WindowAggregate.Window window = aggregates[i].create(length, duration, quantile);
+			for (int value = 1; value <= 100; value++) {
+				results[i] = window.add(value, value);
+			}
+		}
+		return results;
+	}
+}
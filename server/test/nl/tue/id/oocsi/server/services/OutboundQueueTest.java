@@ -0,0 +1,195 @@
+package nl.tue.id.oocsi.server.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class OutboundQueueTest {
+
+	// frames of 10 bytes, the budget holds three of them
+	private static final int FRAME = 10;
+	private static final long BUDGET = 3 * FRAME;
+
+	@Test
+	public void testWithinBudget() {
+		OutboundQueue queue = new OutboundQueue(BUDGET, SlowConsumerPolicy.DROP_OLDEST, 0);
+		assertTrue(queue.offer(frame(1), "a"));
+		assertTrue(queue.offer(frame(2), "a"));
+		assertTrue(queue.offer(frame(3), "a"));
+		assertEquals(3, queue.queuedFrames());
+		assertEquals(BUDGET, queue.queuedBytes());
+		assertEquals(0, queue.droppedFrames());
+
+		// an empty queue takes any frame
+		OutboundQueue empty = new OutboundQueue(BUDGET, SlowConsumerPolicy.DROP_NEWEST, 0);
+		assertTrue(empty.offer(ByteBuffer.allocate(100), null));
+		assertEquals(1, empty.queuedFrames());
+	}
+
+	@Test
+	public void testDropOldest() {
+		OutboundQueue queue = fill(SlowConsumerPolicy.DROP_OLDEST, 0);
+		assertFalse(queue.offer(frame(4), "a"));
+		assertArrayEquals(new int[] { 2, 3, 4 }, ids(queue));
+		assertEquals(1, queue.droppedFrames());
+		assertEquals(BUDGET, queue.queuedBytes());
+	}
+
+	@Test
+	public void testDropNewest() {
+		OutboundQueue queue = fill(SlowConsumerPolicy.DROP_NEWEST, 0);
+		assertFalse(queue.offer(frame(4), "a"));
+		assertArrayEquals(new int[] { 1, 2, 3 }, ids(queue));
+		assertEquals(1, queue.droppedFrames());
+	}
+
+	@Test
+	public void testConflate() {
+		OutboundQueue queue = new OutboundQueue(BUDGET, SlowConsumerPolicy.CONFLATE, 0);
+		queue.offer(frame(1), "a");
+		queue.offer(frame(2), "b");
+		queue.offer(frame(3), "a");
+
+		// all older frames of the channel are replaced by the new frame
+		assertFalse(queue.offer(frame(4), "a"));
+		assertArrayEquals(new int[] { 2, 4 }, ids(queue));
+		assertEquals(2, queue.droppedFrames());
+
+		// without frames of the channel, the oldest frames are dropped
+		queue.offer(frame(5), "c");
+		assertFalse(queue.offer(frame(6), "d"));
+		assertArrayEquals(new int[] { 4, 5, 6 }, ids(queue));
+		assertEquals(3, queue.droppedFrames());
+	}
+
+	@Test
+	public void testExpire() throws InterruptedException {
+		OutboundQueue queue = new OutboundQueue(BUDGET, SlowConsumerPolicy.EXPIRE, 100);
+		queue.offer(frame(1), "a");
+		queue.offer(frame(2), "a");
+		Thread.sleep(150);
+
+		// expired frames are dropped even if the new frame fits
+		assertTrue(queue.offer(frame(3), "a"));
+		assertArrayEquals(new int[] { 3 }, ids(queue));
+		assertEquals(2, queue.droppedFrames());
+
+		// over budget without expired frames, the oldest frames are dropped
+		queue.offer(frame(4), "a");
+		queue.offer(frame(5), "a");
+		assertFalse(queue.offer(frame(6), "a"));
+		assertArrayEquals(new int[] { 4, 5, 6 }, ids(queue));
+		assertEquals(3, queue.droppedFrames());
+	}
+
+	@Test
+	public void testDisconnect() {
+		OutboundQueue queue = fill(SlowConsumerPolicy.DISCONNECT, 0);
+		assertFalse(queue.offer(frame(4), "a"));
+
+		// the new frame and all queued frames are discarded
+		assertTrue(queue.isEmpty());
+		assertEquals(0, queue.queuedBytes());
+		assertEquals(4, queue.droppedFrames());
+	}
+
+	@Test
+	public void testInFlightFramesAreKept() {
+		OutboundQueue queue = fill(SlowConsumerPolicy.DROP_OLDEST, 0);
+
+		// frames handed to the writer are not dropped
+		queue.gather(new ByteBuffer[2]);
+		assertFalse(queue.offer(frame(4), "a"));
+		assertFalse(queue.offer(frame(5), "a"));
+		assertTrue(queue.written(0));
+		assertArrayEquals(new int[] { 1, 2, 5 }, ids(queue));
+		assertEquals(2, queue.droppedFrames());
+
+		// if all frames are in flight, the new frame exceeds the budget
+		queue.gather(new ByteBuffer[3]);
+		assertFalse(queue.offer(frame(6), "a"));
+		assertTrue(queue.written(0));
+		assertArrayEquals(new int[] { 1, 2, 5, 6 }, ids(queue));
+		assertEquals(2, queue.droppedFrames());
+
+		// the same holds for the disconnect policy
+		OutboundQueue disconnect = fill(SlowConsumerPolicy.DISCONNECT, 0);
+		disconnect.gather(new ByteBuffer[1]);
+		assertFalse(disconnect.offer(frame(4), "a"));
+		assertTrue(disconnect.written(0));
+		assertArrayEquals(new int[] { 1 }, ids(disconnect));
+		assertEquals(3, disconnect.droppedFrames());
+	}
+
+	@Test
+	public void testPartiallyWrittenFrameIsKept() {
+		OutboundQueue queue = fill(SlowConsumerPolicy.DROP_OLDEST, 0);
+
+		// the writer took half of the first frame
+		ByteBuffer[] gather = new ByteBuffer[3];
+		assertEquals(3, queue.gather(gather));
+		gather[0].position(FRAME / 2);
+		assertFalse(queue.written(3));
+
+		assertFalse(queue.offer(frame(4), "a"));
+		assertArrayEquals(new int[] { 1, 3, 4 }, ids(queue));
+		assertEquals(1, queue.droppedFrames());
+
+		// once written completely, the frame leaves the queue
+		gather[0].position(FRAME);
+		queue.gather(gather);
+		assertFalse(queue.written(2));
+		assertArrayEquals(new int[] { 3, 4 }, ids(queue));
+		assertEquals(2 * FRAME, queue.queuedBytes());
+	}
+
+	/**
+	 * create a queue that holds the frames 1, 2 and 3 of channel "a" and is full
+	 *
+	 * @param policy
+	 * @param ttl
+	 * @return
+	 */
+	private static OutboundQueue fill(SlowConsumerPolicy policy, long ttl) {
+		OutboundQueue queue = new OutboundQueue(BUDGET, policy, ttl);
+		for (int id = 1; id <= 3; id++) {
+			assertTrue(queue.offer(frame(id), "a"));
+		}
+		return queue;
+	}
+
+	/**
+	 * create a frame that is identified by its first byte
+	 *
+	 * @param id
+	 * @return
+	 */
+	private static ByteBuffer frame(int id) {
+		ByteBuffer buffer = ByteBuffer.allocate(FRAME);
+		buffer.put(0, (byte) id);
+		return buffer;
+	}
+
+	/**
+	 * retrieve the ids of the queued frames, oldest first (without leaving them in flight)
+	 *
+	 * @param queue
+	 * @return
+	 */
+	private static int[] ids(OutboundQueue queue) {
+		ByteBuffer[] gather = new ByteBuffer[queue.queuedFrames()];
+		int count = queue.gather(gather);
+		queue.written(0);
+
+		int[] ids = new int[count];
+		for (int i = 0; i < count; i++) {
+			ids[i] = gather[i].get(0);
+		}
+		return ids;
+	}
+}